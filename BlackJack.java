@@ -1,6 +1,23 @@
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import com.sun.net.httpserver.HttpServer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
 /**
  * Blackjack Multijugador
@@ -10,6 +27,11 @@ import java.net.*;
  * Características:
  * - Modo Singleplayer: Juega contra la casa
  * - Modo Multiplayer: Descubre automáticamente otros jugadores en la red local
+ * - Servidor de mesas: muchas partidas simultáneas contra la casa (NIO)
+ * - Partida rápida: el servidor de mesas empareja a los que esperan por apuesta, asientos y reglas
+ * - Simulación Monte Carlo en paralelo para medir la ventaja de la casa
+ * - Consejero de estrategia básica con tablas de EV precalculadas
+ * - Historial de cada ronda en disco, reproducible para auditorías
  * - Protocolo de comunicación robusto con sincronización de turnos
  * - Detección automática de IP local (192.168.x.x)
  * 
@@ -21,13 +43,27 @@ public class BlackJack {
     // Configuración de red
     private static final int PUERTO_JUEGO = 5555;
     private static final int PUERTO_BROADCAST = 5556;
+    private static final int PUERTO_LOBBY = 5557;      // anuncios periódicos de los hosts
     private static final String MENSAJE_BROADCAST = "BLACKJACK_GAME";
+    private static final int PROTOCOLO_VERSION = 1;
     private static final int TIMEOUT_SERVIDOR = 60000; // 1 minuto
     private static final int TIMEOUT_BUSQUEDA = 2000;  // 2 segundos
+    private static final int TIMEOUT_TURNO = 120000;   // 2 minutos esperando al oponente
+    private static final int GRACIA_RETOMA = 30000;    // 30 segundos para volver tras un corte
+    private static final int ESPERA_REVANCHA = 30000;  // 30 segundos para pedir otra ronda en una mesa
+    private static final int ESPERA_PROTO = 500;       // el servidor de mesas espera el PROTO antes de sentar
+    private static final int INTERVALO_ANUNCIO = 1000; // 1 segundo
+    private static final int TTL_LOBBY = 3 * INTERVALO_ANUNCIO;
+    private static final int MAX_LINEA = 1024;         // bytes por mensaje de texto
     
     // Reglas del juego
     private static final int DEALER_STAND_VALUE = 17;
     private static final int BLACKJACK_TARGET = 21;
+    private static final int MAZOS_SHOE = 6;
+    private static final double PENETRACION_SHOE = 0.75; // se rebaraja al salir el 75% del shoe
+
+    // Muestra la jugada óptima junto a cada decisión (se activa desde el menú)
+    private static volatile boolean consejero = false;
 
     /** ----- Clase Card ----- */
     static class Card implements Comparable<Card> {
@@ -35,6 +71,20 @@ public class BlackJack {
         public static final String[] RANKS = {null, "As", "2", "3", "4", "5", "6",
                                               "7", "8", "9", "10", "J", "Q", "K"};
 
+        /** Las 52 cartas, indexadas por código (suit * 13 + rank - 1) */
+        private static final Card[] TODAS = new Card[52];
+        /** Valor de Blackjack por código, para no tocar objetos en el camino rápido */
+        private static final byte[] VALORES = new byte[52];
+        /** Nombre de cada carta ("As de Picas"), armado una sola vez */
+        private static final String[] NOMBRES = new String[52];
+        static {
+            for (int code = 0; code < 52; code++) {
+                TODAS[code] = new Card(code % 13 + 1, code / 13);
+                VALORES[code] = (byte) TODAS[code].blackjackValue();
+                NOMBRES[code] = (RANKS[code % 13 + 1] + " de " + SUITS[code / 13]).intern();
+            }
+        }
+
         private final int rank; // 1..13
         private final int suit; // 0..3
 
@@ -43,12 +93,20 @@ public class BlackJack {
             this.suit = suit;
         }
 
+        /** Carta compartida para un código 0..51 (sin asignar memoria) */
+        public static Card of(int code) { return TODAS[code]; }
+
+        public static int rankOf(int code) { return code % 13 + 1; }
+        public static int valueOf(int code) { return VALORES[code]; }
+        public static String nombre(int code) { return NOMBRES[code]; }
+
         public int getRank() { return rank; }
         public int getSuit() { return suit; }
+        public int getCode() { return suit * 13 + rank - 1; }
 
         @Override
         public String toString() {
-            return RANKS[rank] + " de " + SUITS[suit];
+            return NOMBRES[getCode()];
         }
 
         @Override
@@ -61,643 +119,7015 @@ public class BlackJack {
             if (rank >= 10) return 10;
             return rank;
         }
-        
-        // Para serialización simple
-        public String serialize() {
-            return rank + "," + suit;
+    }
+
+    /** ----- Origen de cartas: lo que necesita una ronda para repartir ----- */
+    interface FuenteCartas {
+        /** Código 0..51 de la siguiente carta */
+        int dealCode();
+
+        /** Llamar antes de cada ronda; devuelve true si hubo que barajar */
+        default boolean prepararRonda() {
+            return false;
         }
-        
-        public static Card deserialize(String data) {
-            String[] parts = data.split(",");
-            return new Card(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+
+        default Card deal() {
+            return Card.of(dealCode());
         }
     }
 
-    /** ----- Clase Deck: crea 52 cartas, baraja y reparte ----- */
-    static class Deck {
-        private final List<Card> cards = new ArrayList<>();
+    /** ----- Clase Deck: 52 códigos de carta en un byte[], baraja y reparte ----- */
+    static class Deck implements FuenteCartas {
+        private final byte[] cards = new byte[52];
+        private int cursor; // siguiente carta a repartir
 
         public Deck() {
-            for (int suit = 0; suit < 4; suit++) {
-                for (int rank = 1; rank <= 13; rank++) {
-                    cards.add(new Card(rank, suit));
-                }
+            for (int code = 0; code < cards.length; code++) {
+                cards[code] = (byte) code;
+            }
+        }
+
+        public void shuffle() {
+            shuffle(ThreadLocalRandom.current());
+        }
+
+        /** Fisher-Yates en el sitio con un generador propio; vuelve a tener las 52 cartas */
+        public void shuffle(Random rnd) {
+            for (int i = cards.length - 1; i > 0; i--) {
+                int j = rnd.nextInt(i + 1);
+                byte tmp = cards[i];
+                cards[i] = cards[j];
+                cards[j] = tmp;
+            }
+            cursor = 0;
+        }
+
+        @Override
+        public int dealCode() {
+            if (cursor == cards.length) throw new NoSuchElementException("No hay más cartas");
+            return cards[cursor++];
+        }
+
+        public int remaining() { return cards.length - cursor; }
+    }
+
+    /**
+     * ----- Clase Shoe: varios mazos con carta de corte -----
+     * Se reutiliza entre rondas y solo se rebaraja cuando sale la carta de corte,
+     * como en el casino. El generador es intercambiable para poder fijar la semilla;
+     * con sembrar() cada barajado sale de una Semilla nueva que queda registrada.
+     */
+    static class Shoe implements FuenteCartas {
+        private final byte[] cards;
+        private final int corte;  // posición de la carta de corte
+        private Random rnd;
+        private RegistroMesa registro; // con semillas: dónde anotar cada una
+        private Semilla semilla;       // la del barajado en curso, o null sin semillas
+        private int cursor;       // siguiente carta a repartir
+        private int inicioRonda;  // primera carta de la ronda en curso
+        private boolean corteSalio;
+        private final int[] porValor = new int[11]; // cartas sin repartir por valor 1..10
+        private Conteo conteo;    // opcional: ve cada carta repartida
+
+        public Shoe() {
+            this(MAZOS_SHOE, PENETRACION_SHOE, new Random());
+        }
+
+        public Shoe(int mazos, double penetracion, Random rnd) {
+            if (mazos < 1) throw new IllegalArgumentException("El shoe necesita al menos un mazo");
+            if (penetracion <= 0 || penetracion >= 1) {
+                throw new IllegalArgumentException("La penetración debe estar entre 0 y 1");
+            }
+            this.cards = new byte[mazos * 52];
+            ordenar();
+            this.corte = Math.max(1, Math.min(cards.length - 1, (int) Math.round(cards.length * penetracion)));
+            this.rnd = rnd;
+            shuffle();
+        }
+
+        /** Llamar antes de cada ronda; devuelve true si hubo que rebarajar */
+        @Override
+        public boolean prepararRonda() {
+            if (corteSalio) {
+                shuffle();
+                return true;
             }
+            inicioRonda = cursor;
+            return false;
+        }
+
+        /**
+         * Shoe de MAZOS_SHOE mazos barajado con la semilla dada: el mismo orden
+         * que repartió una mesa que usó esa semilla.
+         */
+        static Shoe conSemilla(Semilla semilla) {
+            return new Shoe(MAZOS_SHOE, PENETRACION_SHOE, semilla.generador());
+        }
+
+        /**
+         * Desde ahora cada barajado parte del orden de fábrica y usa una Semilla
+         * nueva, que se anota en el registro. Baraja en el momento.
+         */
+        public Shoe sembrar(RegistroMesa registro) {
+            this.registro = registro;
+            shuffle();
+            return this;
         }
 
+        /** Semilla del barajado en curso; null si el shoe no usa semillas */
+        public Semilla semilla() { return semilla; }
+
+        /** Posición en el shoe de la primera carta de la ronda en curso */
+        public int inicioRonda() { return inicioRonda; }
+
+        /** Cartas repartidas desde el último barajado */
+        public int repartidas() { return cursor; }
+
+        /** Fisher-Yates en el sitio sobre todo el shoe */
         public void shuffle() {
-            Collections.shuffle(cards);
+            if (registro != null) {
+                // El orden depende solo de la semilla, no de los barajados anteriores
+                semilla = Semilla.nueva();
+                rnd = semilla.generador();
+                ordenar();
+                registro.semilla(semilla);
+            }
+            barajarDesde(0);
+            cursor = 0;
+            inicioRonda = 0;
+            corteSalio = false;
+            contarRestantes();
+        }
+
+        @Override
+        public int dealCode() {
+            if (cursor == cards.length) recuperarDescartes();
+            int code = cards[cursor++];
+            porValor[Card.valueOf(code)]--;
+            if (conteo != null) conteo.ver(code);
+            if (cursor >= corte) corteSalio = true;
+            return code;
+        }
+
+        /** Conecta un conteo, que arranca con lo ya repartido desde el último barajado */
+        public Shoe contar(Conteo conteo) {
+            this.conteo = conteo;
+            recontar();
+            return this;
+        }
+
+        public int remaining() { return cards.length - cursor; }
+        public int size() { return cards.length; }
+
+        /** Copia del orden de todo el shoe, repartidas o no */
+        public byte[] orden() { return cards.clone(); }
+
+        /** Cartas sin repartir por valor (índices 1..10), para el motor del dealer */
+        public int[] composicion() {
+            return porValor.clone();
+        }
+
+        /**
+         * Se acabó el shoe en mitad de una ronda: las cartas de esta ronda se quedan
+         * en juego y los descartes de rondas anteriores se barajan para seguir.
+         */
+        private void recuperarDescartes() {
+            int enJuego = cursor - inicioRonda;
+            if (inicioRonda == 0) throw new NoSuchElementException("No hay más cartas en el shoe");
+            byte[] ronda = Arrays.copyOfRange(cards, inicioRonda, cursor);
+            System.arraycopy(cards, 0, cards, enJuego, inicioRonda);
+            System.arraycopy(ronda, 0, cards, 0, enJuego);
+            barajarDesde(enJuego);
+            cursor = enJuego;
+            inicioRonda = 0;
+            corteSalio = true; // La próxima ronda empieza con el shoe completo
+            contarRestantes();
+        }
+
+        private void contarRestantes() {
+            Arrays.fill(porValor, 0);
+            for (int i = cursor; i < cards.length; i++) porValor[Card.valueOf(cards[i])]++;
+            recontar();
+        }
+
+        /** Tras barajar, lo único visto son las cartas de la ronda que siguen en juego */
+        private void recontar() {
+            if (conteo == null) return;
+            conteo.reiniciar(cards.length);
+            for (int i = 0; i < cursor; i++) conteo.ver(cards[i]);
+        }
+
+        private void ordenar() {
+            for (int i = 0; i < cards.length; i++) {
+                cards[i] = (byte) (i % 52);
+            }
+        }
+
+        private void barajarDesde(int desde) {
+            for (int i = cards.length - 1; i > desde; i--) {
+                int j = desde + rnd.nextInt(i - desde + 1);
+                byte tmp = cards[i];
+                cards[i] = cards[j];
+                cards[j] = tmp;
+            }
+        }
+    }
+
+    /**
+     * ----- Mazo infinito: cada carta es independiente de las anteriores -----
+     * La aproximación clásica de los libros de estrategia: nada que barajar ni
+     * contar, una carta es un número al azar. Para simular rápido; el shoe
+     * finito da el valor exacto.
+     */
+    static final class MazoInfinito implements FuenteCartas {
+        private final SplittableRandom rnd;
+
+        MazoInfinito(SplittableRandom rnd) {
+            this.rnd = rnd;
+        }
+
+        @Override
+        public int dealCode() {
+            return rnd.nextInt(52);
+        }
+    }
+
+    /**
+     * ----- Composición fija: cada ronda sale de las mismas cartas por valor -----
+     * Guarda solo cuántas quedan de cada valor (índices 1..10, como
+     * Shoe.composicion()) y cada ronda vuelve a empezar de esa composición, sin
+     * barajar nada. Sirve para un shoe completo o para medir un momento del shoe
+     * (una composición con conteo alto). Las cartas salen como el código de su
+     * valor en Tréboles: para jugar solo importa el valor.
+     */
+    static final class ComposicionFija implements FuenteCartas {
+        private final int[] inicial;
+        private final int[] restantes = new int[11];
+        private final int cartas;
+        private final SplittableRandom rnd;
+        private int quedan;
+
+        ComposicionFija(int[] porValor, SplittableRandom rnd) {
+            if (porValor.length != 11) throw new IllegalArgumentException("La composición va por valor, índices 1..10");
+            int suma = 0;
+            for (int v = 1; v <= 10; v++) {
+                if (porValor[v] < 0) throw new IllegalArgumentException("Composición negativa");
+                suma += porValor[v];
+            }
+            if (suma == 0) throw new IllegalArgumentException("La composición no tiene cartas");
+            this.inicial = porValor.clone();
+            this.cartas = suma;
+            this.rnd = rnd;
+            prepararRonda();
+        }
+
+        @Override
+        public boolean prepararRonda() {
+            System.arraycopy(inicial, 0, restantes, 0, restantes.length);
+            quedan = cartas;
+            return false;
+        }
+
+        @Override
+        public int dealCode() {
+            if (quedan == 0) throw new NoSuchElementException("No quedan cartas en la composición");
+            int r = rnd.nextInt(quedan);
+            int v = 1;
+            while (r >= restantes[v]) r -= restantes[v++];
+            restantes[v]--;
+            quedan--;
+            return v - 1; // Código del valor v en Tréboles: As = 0, ..., 10 = 9
+        }
+    }
+
+    /** ----- Semilla: barajados reproducibles y comprobables ----- */
+    /**
+     * 128 bits al azar de los que sale todo un barajado. El generador encadena
+     * SHA-256(semilla || contador), así que el orden se puede rehacer en
+     * cualquier máquina y no se puede adivinar la semilla mirando las cartas.
+     * La mesa publica la huella (SHA-256 de la semilla) antes de repartir y la
+     * semilla al rebarajar: el cliente comprueba que el shoe no cambió.
+     */
+    static final class Semilla {
+        static final int BYTES = 16;
+        static final int BYTES_HUELLA = 32;
+        private static final SecureRandom AZAR = new SecureRandom();
+
+        private final byte[] bytes;
+
+        private Semilla(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        static Semilla nueva() {
+            byte[] b = new byte[BYTES];
+            AZAR.nextBytes(b);
+            return new Semilla(b);
+        }
+
+        static Semilla de(byte[] b, int desde) {
+            return new Semilla(Arrays.copyOfRange(b, desde, desde + BYTES));
+        }
+
+        /** Copia los BYTES de la semilla en destino */
+        void copiar(byte[] destino, int desde) {
+            System.arraycopy(bytes, 0, destino, desde, BYTES);
+        }
+
+        /** Lo que se publica antes de repartir: SHA-256 de la semilla */
+        byte[] huella() {
+            return sha256().digest(bytes);
+        }
+
+        /** Generador determinista: el mismo para la misma semilla */
+        Random generador() {
+            return new Generador(bytes);
+        }
+
+        @Override
+        public String toString() {
+            return hex(bytes, BYTES);
+        }
+
+        static String hex(byte[] b, int largo) {
+            StringBuilder sb = new StringBuilder(2 * largo);
+            for (int i = 0; i < largo; i++) {
+                sb.append(Character.forDigit((b[i] >>> 4) & 0xF, 16)).append(Character.forDigit(b[i] & 0xF, 16));
+            }
+            return sb.toString();
+        }
+
+        static MessageDigest sha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("La JVM no tiene SHA-256", e); // Obligatorio en toda JVM
+            }
+        }
+
+        /** Random que saca sus bits de bloques SHA-256(semilla || contador) */
+        private static final class Generador extends Random {
+            private static final long serialVersionUID = 1L;
+            private final MessageDigest sha = sha256();
+            private final byte[] semilla;
+            private byte[] bloque = new byte[0];
+            private int usados;
+            private long contador;
+
+            Generador(byte[] semilla) {
+                super(0);
+                this.semilla = semilla;
+            }
+
+            @Override
+            protected int next(int bits) {
+                if (usados + 4 > bloque.length) {
+                    sha.update(semilla);
+                    for (int k = 56; k >= 0; k -= 8) sha.update((byte) (contador >>> k));
+                    contador++;
+                    bloque = sha.digest();
+                    usados = 0;
+                }
+                int v = (bloque[usados] & 0xFF) << 24 | (bloque[usados + 1] & 0xFF) << 16
+                    | (bloque[usados + 2] & 0xFF) << 8 | (bloque[usados + 3] & 0xFF);
+                usados += 4;
+                return v >>> (32 - bits);
+            }
+        }
+    }
+
+    /** ----- Conteo de cartas: Hi-Lo, KO y Omega II sobre lo que reparte un shoe ----- */
+    /**
+     * Los tres conteos y las cartas que quedan viven en un solo long, 16 bits por
+     * carril y con un sesgo para que ningún carril sea negativo. Cada carta suma
+     * un delta precalculado por código y publica el long con lazySet: O(1), sin
+     * locks ni memoria. Escribe solo el hilo dueño del shoe; cualquier otro hilo
+     * lee una instantánea coherente de los cuatro valores con un solo get().
+     */
+    static final class Conteo {
+        private static final int SESGO = 1 << 15;
+        private static final int HILO = 0, KO = 16, OMEGA = 32, RESTANTES = 48;
+
+        // Etiqueta de cada sistema por valor de Blackjack (1 = As .. 10)
+        private static final int[] ETIQUETAS_HILO  = { 0, -1, 1, 1, 1, 1, 1, 0, 0, 0, -1 };
+        private static final int[] ETIQUETAS_KO    = { 0, -1, 1, 1, 1, 1, 1, 1, 0, 0, -1 };
+        private static final int[] ETIQUETAS_OMEGA = { 0, 0, 1, 1, 2, 2, 2, 1, 0, -1, -2 };
+
+        /** Lo que suma cada código de carta a los cuatro carriles a la vez */
+        private static final long[] DELTAS = new long[52];
+        static {
+            for (int code = 0; code < 52; code++) {
+                int v = Card.valueOf(code);
+                DELTAS[code] = ((long) ETIQUETAS_HILO[v] << HILO) + ((long) ETIQUETAS_KO[v] << KO)
+                    + ((long) ETIQUETAS_OMEGA[v] << OMEGA) - (1L << RESTANTES);
+            }
+        }
+
+        /** Conteos de las mesas abiertas, por número de mesa del historial */
+        private static final ConcurrentMap<Integer, Conteo> ACTIVOS = new ConcurrentHashMap<>();
+
+        final int mesa;
+        private final AtomicLong publicado = new AtomicLong();
+        private long estado; // copia del dueño; evita releer el atómico en cada carta
+
+        Conteo(int mesa) {
+            this.mesa = mesa;
+        }
+
+        /** Conteo visible para los operadores (métricas) hasta quitar() */
+        static Conteo registrar(int mesa) {
+            Conteo conteo = new Conteo(mesa);
+            ACTIVOS.put(mesa, conteo);
+            return conteo;
         }
 
-        public Card deal() {
-            if (cards.isEmpty()) throw new NoSuchElementException("No hay más cartas");
-            return cards.remove(cards.size() - 1);
+        void quitar() { ACTIVOS.remove(mesa, this); }
+
+        static Collection<Conteo> activos() { return ACTIVOS.values(); }
+
+        /** Shoe recién barajado: Hi-Lo y Omega II en 0, KO en su conteo inicial 4 - 4 * mazos */
+        void reiniciar(int cartas) {
+            if (cartas > 256 * 52) throw new IllegalArgumentException("Shoe demasiado grande para contar");
+            int mazos = cartas / 52;
+            estado = carril(0, HILO) + carril(4 - 4 * mazos, KO) + carril(0, OMEGA) + ((long) cartas << RESTANTES);
+            publicado.lazySet(estado);
+        }
+
+        private static long carril(int valor, int desplazamiento) {
+            return (long) (valor + SESGO) << desplazamiento;
+        }
+
+        /** Una carta salió del shoe */
+        void ver(int code) {
+            estado += DELTAS[code];
+            publicado.lazySet(estado);
+        }
+
+        /** Lectura sin locks desde cualquier hilo */
+        Instantanea leer() { return new Instantanea(publicado.get()); }
+
+        /** Conteo verdadero Hi-Lo sin crear una instantánea, para el camino rápido */
+        double verdadero() {
+            long crudo = publicado.get();
+            return Instantanea.valor(crudo, HILO) / Instantanea.mazosRestantes((int) (crudo >>> RESTANTES));
+        }
+
+        /** Lo que ve un jugador: sin una carta ya repartida pero oculta (la del dealer) */
+        Instantanea leerSin(int codeOculta) { return new Instantanea(publicado.get() - DELTAS[codeOculta]); }
+
+        static final class Instantanea {
+            final int hiLo;
+            final int ko;
+            final int omega;
+            final int restantes;
+
+            Instantanea(long crudo) {
+                hiLo = valor(crudo, HILO);
+                ko = valor(crudo, KO);
+                omega = valor(crudo, OMEGA);
+                restantes = (int) (crudo >>> RESTANTES);
+            }
+
+            private static int valor(long crudo, int desplazamiento) {
+                return (int) (crudo >>> desplazamiento & 0xFFFF) - SESGO;
+            }
+
+            /** Mazos sin repartir, redondeados a medio mazo como se estiman en la mesa */
+            double mazosRestantes() { return mazosRestantes(restantes); }
+
+            static double mazosRestantes(int restantes) { return Math.max(0.5, Math.round(restantes / 26.0) / 2.0); }
+
+            /** Conteo verdadero Hi-Lo: conteo corrido por mazo restante */
+            double verdadero() { return hiLo / mazosRestantes(); }
+
+            double verdaderoOmega() { return omega / mazosRestantes(); }
+
+            @Override
+            public String toString() {
+                return String.format("Hi-Lo %+d (verdadero %+.1f), KO %+d, Omega II %+d, quedan %d cartas",
+                    hiLo, verdadero(), ko, omega, restantes);
+            }
         }
     }
 
     /** ----- Utilidades para una mano de Blackjack ----- */
     static class Hand {
         private final List<Card> cards = new ArrayList<>();
+        private int estado = ManoCompacta.VACIA; // total incremental, ver ManoCompacta
+        private final StringBuilder texto = new StringBuilder(48); // las cartas, carta a carta
+        private String mostrada; // toString() hasta la próxima carta
 
-        public void add(Card c) { cards.add(c); }
+        public void add(Card c) {
+            if (!cards.isEmpty()) texto.append(", ");
+            texto.append(c);
+            cards.add(c);
+            estado = ManoCompacta.agregar(estado, c.getCode());
+            mostrada = null;
+        }
 
         public List<Card> getCards() { return cards; }
 
+        /** Mano empaquetada en un int (total, ases y flag suave) */
+        public int getEstado() { return estado; }
+
         /** Suma con Ases flexibles (1 u 11) */
-        public int bestBlackjackTotal() {
-            int sum = 0;
-            int aces = 0;
-            for (Card c : cards) {
-                sum += c.blackjackValue();
-                if (c.getRank() == 1) aces++; // Ace
+        public int bestBlackjackTotal() { return ManoCompacta.total(estado); }
+
+        public boolean isBust() { return ManoCompacta.sePaso(estado); }
+
+        /** Se arma al agregar cada carta; el texto completo se guarda hasta que llegue otra */
+        @Override
+        public String toString() {
+            if (mostrada == null) {
+                int largo = texto.length();
+                mostrada = texto.append(" (total: ").append(bestBlackjackTotal()).append(')').toString();
+                texto.setLength(largo);
+            }
+            return mostrada;
+        }
+    }
+
+    /**
+     * ----- Mano empaquetada en un int -----
+     * bits 0-7: suma con los Ases como 1, bits 8-15: Ases, bits 16-23: cartas,
+     * bit 24: mano suave (un As cuenta como 11 sin pasarse).
+     * Agregar una carta y consultar el total es O(1) y no asigna memoria.
+     */
+    static final class ManoCompacta {
+        static final int VACIA = 0;
+        private static final int MASCARA = 0xFF;
+        private static final int ASES = 8;
+        private static final int CARTAS = 16;
+        private static final int SUAVE = 1 << 24;
+
+        private ManoCompacta() {}
+
+        static int agregar(int mano, int code) {
+            int valor = Card.valueOf(code);
+            int duro = (mano & MASCARA) + valor;
+            int ases = ((mano >>> ASES) & MASCARA) + (valor == 1 ? 1 : 0);
+            int cartas = ((mano >>> CARTAS) & MASCARA) + 1;
+            int nueva = duro | ases << ASES | cartas << CARTAS;
+            // Solo un As puede valer 11: dos ya suman 22
+            if (ases > 0 && duro + 10 <= BLACKJACK_TARGET) nueva |= SUAVE;
+            return nueva;
+        }
+
+        static int total(int mano) { return (mano & MASCARA) + ((mano & SUAVE) != 0 ? 10 : 0); }
+        static int duro(int mano) { return mano & MASCARA; }
+        static int ases(int mano) { return (mano >>> ASES) & MASCARA; }
+        static int cartas(int mano) { return (mano >>> CARTAS) & MASCARA; }
+        static boolean esSuave(int mano) { return (mano & SUAVE) != 0; }
+        static boolean sePaso(int mano) { return (mano & MASCARA) > BLACKJACK_TARGET; }
+    }
+
+    /**
+     * ----- Totales y resultados de muchas manos a la vez -----
+     * Las manos van en columnas (un int[] por campo, la mano i en la posición i):
+     * sumas con los Ases como 1, cantidad de Ases y marcas de pasado (0 o 1).
+     * Cada pasada es un bucle contado cuyo cuerpo solo suma, resta, multiplica y
+     * desplaza, sin saltos, así que el JIT puede vectorizarlo. La Vector API no
+     * existe en Java 8; no hace falta para esto.
+     */
+    static final class TotalesLote {
+        private TotalesLote() {}
+
+        /** Mejor total de cada mano: la suma dura más 10 si un As puede valer 11 */
+        static void totales(int[] duros, int[] ases, int[] totales, int n) {
+            for (int i = 0; i < n; i++) {
+                int duro = duros[i];
+                // 1 si hay Ases y duro + 10 <= 21; los dos signos, sin comparar
+                int suave = (-ases[i] >>> 31) & ((duro - (BLACKJACK_TARGET - 9)) >>> 31);
+                totales[i] = duro + 10 * suave;
+            }
+        }
+
+        /** 1 si la mano se pasó de 21, si no 0 */
+        static void pasados(int[] duros, int[] pasados, int n) {
+            for (int i = 0; i < n; i++) pasados[i] = (BLACKJACK_TARGET - duros[i]) >>> 31;
+        }
+
+        /** 1 si la mano es un natural (21 con dos cartas), si no 0; los totales ya calculados */
+        static void naturales(int[] cartas, int[] totales, int[] naturales, int n) {
+            for (int i = 0; i < n; i++) {
+                // 0 solo si cartas == 2 y total == 21: restarle 1 da negativo
+                naturales[i] = (((cartas[i] ^ 2) | (totales[i] ^ BLACKJACK_TARGET)) - 1) >>> 31;
+            }
+        }
+
+        /**
+         * Resultado de cada mano a contra la mano b, desde el lado de a:
+         * 1 gana, -1 pierde, 0 empate. Si los dos se pasan es empate, como en el
+         * duelo entre jugadores.
+         */
+        static void resultados(int[] totalesA, int[] pasadosA, int[] totalesB, int[] pasadosB,
+                               int[] resultados, int n) {
+            for (int i = 0; i < n; i++) {
+                resultados[i] = resultado(totalesA[i], pasadosA[i], totalesB[i], pasadosB[i]);
+            }
+        }
+
+        /** La misma regla para un solo par de manos */
+        static int resultado(int totalA, boolean pasadoA, int totalB, boolean pasadoB) {
+            return resultado(totalA, pasadoA ? 1 : 0, totalB, pasadoB ? 1 : 0);
+        }
+
+        private static int resultado(int totalA, int pasadoA, int totalB, int pasadoB) {
+            int comparacion = ((totalB - totalA) >>> 31) - ((totalA - totalB) >>> 31);
+            // Si alguno se pasó decide eso; si no, la comparación de totales
+            return pasadoB - pasadoA + ((pasadoA | pasadoB) ^ 1) * comparacion;
+        }
+
+        /**
+         * Liquidación contra el dealer, mano i contra dealer i, con los códigos
+         * de Pagos: el natural paga 3:2 (BLACKJACK) y dos naturales empatan; si
+         * no hay naturales, el jugador que se pasa pierde aunque el dealer
+         * también se pase. Da lo mismo que Pagos.resultado sin rendición ni
+         * manos divididas, que la mesa resuelve antes.
+         */
+        static void contraDealer(int[] totales, int[] pasados, int[] naturales,
+                                 int[] totalesDealer, int[] pasadosDealer, int[] naturalesDealer,
+                                 int[] resultados, int n) {
+            for (int i = 0; i < n; i++) {
+                int natural = naturales[i], naturalDealer = naturalesDealer[i];
+                int pasado = pasados[i];
+                // Con algún natural: 2 el del jugador, -1 el del dealer, 0 los dos
+                int porNatural = 2 * natural - naturalDealer - natural * naturalDealer;
+                int t = totales[i], td = totalesDealer[i];
+                int comparacion = ((td - t) >>> 31) - ((t - td) >>> 31);
+                // Sin naturales: pasarse pierde primero; si no, se pasó el dealer o se comparan totales
+                int sinNatural = -pasado + (pasado ^ 1) * (pasadosDealer[i] + (pasadosDealer[i] ^ 1) * comparacion);
+                int alguno = natural | naturalDealer;
+                resultados[i] = alguno * porNatural + (alguno ^ 1) * sinNatural;
             }
-            // Elevar algunos Ases a 11 si cabe sin pasarse de 21
-            while (aces > 0 && sum + 10 <= BLACKJACK_TARGET) {
-                sum += 10;
-                aces--;
+        }
+    }
+
+    /**
+     * ----- Manos de un asiento: la original y las que salen de dividir -----
+     * Arreglos fijos en vez de una lista de Hand: el estado empaquetado de cada
+     * mano (ManoCompacta, con el total al día carta a carta), sus marcas y sus
+     * cartas en un solo byte[] con MAX_CARTAS_MANO lugares por mano. Doblar,
+     * dividir o rendirse no recorren listas ni asignan memoria, y la misma
+     * instancia sirve ronda tras ronda con reiniciar().
+     *
+     * La mesa y el cliente aplican las mismas reglas sobre su copia, así que los
+     * dos saben a qué mano va cada carta y cuándo se pasa a la siguiente.
+     */
+    static final class Manos {
+        static final int MAX_MANOS = 4;        // la original y hasta tres divisiones
+        static final int MAX_CARTAS_MANO = 22; // 21 Ases suman 21: la carta siguiente ya se pasa
+        // Marcas de cada mano
+        static final int DOBLADA = 1;
+        static final int DIVIDIDA = 2;         // 21 con dos cartas no es blackjack
+        static final int ASES = 4;             // As dividido: recibe una sola carta
+        static final int RENDIDA = 8;
+        // Jugadas que admite la mano activa, además de HIT y STAND
+        static final int PUEDE_DOBLAR = 1;
+        static final int PUEDE_DIVIDIR = 2;
+        static final int PUEDE_RENDIRSE = 4;
+
+        private final int[] estados = new int[MAX_MANOS];
+        private final byte[] marcas = new byte[MAX_MANOS];
+        private final byte[] cartas = new byte[MAX_MANOS * MAX_CARTAS_MANO];
+        // Texto de las cartas para mostrar: se crea al pedirlo (la simulación nunca
+        // lo pide) y se le agregan solo las cartas nuevas desde la última vez
+        private final StringBuilder[] textos = new StringBuilder[MAX_MANOS];
+        private final byte[] escritas = new byte[MAX_MANOS];
+        private int cantidad;
+        private int activa; // == cantidad cuando todas terminaron
+
+        Manos() {
+            reiniciar();
+        }
+
+        /** Una sola mano vacía, para la próxima ronda */
+        Manos reiniciar() {
+            cantidad = 1;
+            activa = 0;
+            estados[0] = ManoCompacta.VACIA;
+            marcas[0] = 0;
+            escritas[0] = 0;
+            return this;
+        }
+
+        int cantidad() { return cantidad; }
+        int activa() { return activa; }
+        boolean terminada() { return activa >= cantidad; }
+
+        int estado(int mano) { return estados[mano]; }
+        int total(int mano) { return ManoCompacta.total(estados[mano]); }
+        boolean sePaso(int mano) { return ManoCompacta.sePaso(estados[mano]); }
+        int numCartas(int mano) { return ManoCompacta.cartas(estados[mano]); }
+        int carta(int mano, int i) { return cartas[mano * MAX_CARTAS_MANO + i]; }
+        boolean esDoblada(int mano) { return (marcas[mano] & DOBLADA) != 0; }
+        boolean esRendida(int mano) { return (marcas[mano] & RENDIDA) != 0; }
+
+        /** Apuestas de la mano: dos si se dobló */
+        int unidades(int mano) { return esDoblada(mano) ? 2 : 1; }
+
+        int unidades() {
+            int u = 0;
+            for (int i = 0; i < cantidad; i++) u += unidades(i);
+            return u;
+        }
+
+        /** La mano activa salió de dividir y todavía tiene una sola carta */
+        boolean necesitaCarta() { return activa < cantidad && numCartas(activa) < 2; }
+
+        /**
+         * Agrega la carta a una mano. Si es la activa y ya no puede seguir (se
+         * pasó, dobló o es un As dividido con su segunda carta) el turno pasa a
+         * la siguiente.
+         */
+        void agregar(int mano, int code) {
+            int n = numCartas(mano);
+            if (n == MAX_CARTAS_MANO) throw new IllegalStateException("Demasiadas cartas en una mano");
+            cartas[mano * MAX_CARTAS_MANO + n] = (byte) code;
+            estados[mano] = ManoCompacta.agregar(estados[mano], code);
+            if (mano != activa) return;
+            if (ManoCompacta.sePaso(estados[mano]) || esDoblada(mano) || ((marcas[mano] & ASES) != 0 && n >= 1)) activa++;
+        }
+
+        void agregar(int code) { agregar(activa, code); }
+
+        /** PUEDE_* de la mano activa: todo se decide con sus dos primeras cartas */
+        int permitidas() {
+            if (terminada() || numCartas(activa) != 2) return 0;
+            int p = PUEDE_DOBLAR;
+            if (cantidad < MAX_MANOS && Card.valueOf(carta(activa, 0)) == Card.valueOf(carta(activa, 1))) p |= PUEDE_DIVIDIR;
+            if (cantidad == 1 && marcas[0] == 0) p |= PUEDE_RENDIRSE;
+            return p;
+        }
+
+        boolean puede(int jugada) { return (permitidas() & jugada) != 0; }
+
+        /** La mano activa recibe una carta más y termina */
+        void doblar() { marcas[activa] |= DOBLADA; }
+
+        /**
+         * Separa el par de la mano activa: la segunda carta abre una mano nueva al
+         * final, que se juega cuando terminen las anteriores. Cada una recibe su
+         * segunda carta cuando le toca (necesitaCarta).
+         */
+        void dividir() {
+            int nueva = cantidad++;
+            int primera = carta(activa, 0);
+            int segunda = carta(activa, 1);
+            int marca = DIVIDIDA | (Card.valueOf(primera) == 1 ? ASES : 0);
+            estados[activa] = ManoCompacta.agregar(ManoCompacta.VACIA, primera);
+            marcas[activa] |= marca;
+            cartas[nueva * MAX_CARTAS_MANO] = (byte) segunda;
+            estados[nueva] = ManoCompacta.agregar(ManoCompacta.VACIA, segunda);
+            marcas[nueva] = (byte) marca;
+            escritas[activa] = 0; // Las dos manos cambiaron de cartas
+            escritas[nueva] = 0;
+        }
+
+        /** Abandona la mano original y recupera media apuesta */
+        void rendirse() {
+            marcas[activa] |= RENDIDA;
+            activa++;
+        }
+
+        void plantarse() { activa++; }
+
+        /** Alguna mano sigue en juego contra el dealer (ni pasada ni rendida) */
+        boolean algunaEnPie() {
+            for (int i = 0; i < cantidad; i++) {
+                if (!sePaso(i) && !esRendida(i)) return true;
             }
-            return sum;
+            return false;
+        }
+
+        /** Pagos.* de una mano contra la mano final del dealer */
+        int resultado(int mano, int dealer) {
+            if (esRendida(mano)) return Pagos.RENDIDA;
+            return Pagos.resultado(estados[mano], dealer, (marcas[mano] & DIVIDIDA) == 0);
+        }
+
+        /** Ganancia de todas las manos en medias apuestas */
+        int medias(int dealer) {
+            int medias = 0;
+            for (int i = 0; i < cantidad; i++) medias += Pagos.medias(resultado(i, dealer)) * unidades(i);
+            return medias;
         }
 
-        public boolean isBust() { return bestBlackjackTotal() > BLACKJACK_TARGET; }
+        String texto(int mano) {
+            StringBuilder sb = textos[mano];
+            if (sb == null) sb = textos[mano] = new StringBuilder(64);
+            if (escritas[mano] == 0) sb.setLength(0);
+            int n = numCartas(mano);
+            for (int i = escritas[mano]; i < n; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(Card.nombre(carta(mano, i)));
+            }
+            escritas[mano] = (byte) n;
+            int largo = sb.length();
+            sb.append(" (total: ").append(total(mano)).append(')');
+            if (esDoblada(mano)) sb.append(" [doblada]");
+            if (esRendida(mano)) sb.append(" [rendida]");
+            String texto = sb.toString();
+            sb.setLength(largo);
+            return texto;
+        }
 
         @Override
         public String toString() {
+            if (cantidad == 1) return texto(0);
             StringBuilder sb = new StringBuilder();
-            for (Card c : cards) sb.append(c).append(", ");
-            if (!cards.isEmpty()) sb.setLength(sb.length() - 2);
-            sb.append(" (total: ").append(bestBlackjackTotal()).append(")");
+            for (int i = 0; i < cantidad; i++) {
+                sb.append(i > 0 ? " | " : "").append("Mano ").append(i + 1).append(": ").append(texto(i));
+            }
             return sb.toString();
         }
     }
 
+    /** ----- Salida: un solo escritor con búfer para la consola ----- */
+    /**
+     * System.out hacía flush en cada println. Se reemplaza por un PrintStream sin
+     * autoflush sobre un búfer grande: escribir solo copia bytes, y la consola
+     * recibe todo junto una vez por pregunta, justo antes de esperar al jugador
+     * (Consola.leerLinea, Sesion) o a la red. Un hook vacía lo que quede al salir.
+     */
+    static final class Salida {
+        private static final int BUFER = 1 << 16;
+        private static boolean instalada;
+
+        private Salida() {}
+
+        static synchronized void instalar() {
+            if (instalada) return;
+            instalada = true;
+            System.setOut(new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BUFER), false));
+            Runtime.getRuntime().addShutdownHook(new Thread(Salida::vaciar, "salida"));
+        }
+
+        /** Muestra lo escrito; llamar antes de bloquear */
+        static void vaciar() {
+            System.out.flush();
+        }
+    }
+
+    /** ----- Consola: un solo lector de System.in para todo el programa ----- */
+    /**
+     * Cada modo creaba su propio Scanner(System.in) y uno se quedaba con líneas
+     * que esperaba el otro. Ahora un hilo lee las líneas y las entrega al destino
+     * actual: la cola de los menús o la cola de eventos de una Sesion de red.
+     */
+    static final class Consola extends Thread {
+        private static final String FIN = new String("fin"); // se compara por identidad
+        private static Consola global;
+
+        private final BufferedReader lector = new BufferedReader(new InputStreamReader(System.in));
+        private final BlockingQueue<String> lineas = new LinkedBlockingQueue<>();
+        private Consumer<String> destino; // null = lineas
+        private boolean terminada;        // ya llegó el fin de la entrada
+
+        private Consola() {
+            super("consola");
+            setDaemon(true);
+        }
+
+        static synchronized Consola global() {
+            if (global == null) {
+                global = new Consola();
+                global.start();
+            }
+            return global;
+        }
+
+        @Override
+        public void run() {
+            String linea;
+            do {
+                try {
+                    linea = lector.readLine();
+                } catch (IOException e) {
+                    linea = null;
+                }
+                entregar(linea);
+            } while (linea != null);
+        }
+
+        /** null = fin de la entrada */
+        private synchronized void entregar(String linea) {
+            if (linea == null) terminada = true;
+            if (destino != null) destino.accept(linea);
+            else lineas.add(linea == null ? FIN : linea);
+        }
+
+        /** Bloquea hasta la próxima línea, como Scanner.nextLine() */
+        String leerLinea() {
+            Salida.vaciar(); // La pregunta se ve antes de esperar la respuesta
+            try {
+                String linea = lineas.take();
+                if (linea == FIN) {
+                    lineas.add(FIN); // Las siguientes lecturas también ven el fin
+                    throw new NoSuchElementException("No hay más líneas en la entrada");
+                }
+                return linea;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NoSuchElementException("Lectura interrumpida");
+            }
+        }
+
+        /** Envía las líneas (y lo ya escrito sin leer) a otro destino, p. ej. una Sesion */
+        synchronized void redirigir(Consumer<String> nuevo) {
+            String linea;
+            while ((linea = lineas.poll()) != null) nuevo.accept(linea == FIN ? null : linea);
+            destino = nuevo;
+        }
+
+        /** Si el fin llegó mientras estaba redirigida, lo vuelve a poner: el hilo lector ya terminó */
+        synchronized void restaurar() {
+            destino = null;
+            if (terminada && lineas.isEmpty()) lineas.add(FIN);
+        }
+    }
+
     /** ----- Juego Singleplayer (contra la casa) ----- */
     static void jugarSingleplayer() {
-        Scanner in = new Scanner(System.in);
+        Consola in = Consola.global();
+        final int jugador = 0;
+        // Las cartas no se anotan: salen de la semilla al reproducir las jugadas
+        RegistroMesa registro = Historial.global().nuevaMesa().soloJugadas(jugador);
+        Shoe deck = new Shoe().sembrar(registro); // Se reutiliza entre rondas; cada barajado anota su semilla
+        Conteo conteo = new Conteo(registro.getMesa());
+        deck.contar(conteo);
+        Cuenta cuenta = Libro.global().abrir("local"); // El saldo sigue entre partidas mientras corre el programa
+        Liquidacion liquidacion = new Liquidacion();
+        long apuesta = Libro.APUESTA_INICIAL;
+        Manos jugadorManos = new Manos();
         boolean jugarOtraVez = true;
         
         while (jugarOtraVez) {
             System.out.println("\n=== Nueva Partida ===");
-            Deck deck = new Deck();
-            deck.shuffle();
+            if (cuenta.saldo() == 0) {
+                System.out.println("Te quedaste sin fichas: la casa te da " + Libro.SALDO_INICIAL + ".");
+                cuenta.acreditar(Libro.SALDO_INICIAL);
+            }
+            System.out.print("Saldo: " + cuenta.saldo() + " fichas. Apuesta (Enter = " + Math.min(apuesta, cuenta.saldo()) + "): ");
+            apuesta = Math.min(leerNumero(in, apuesta), cuenta.saldo());
+            cuenta.apostar(apuesta);
+            if (deck.prepararRonda()) System.out.println("Se baraja el shoe.");
+            registro.nuevaRonda();
 
-            Hand player = new Hand();
+            Manos manos = jugadorManos.reiniciar();
             Hand dealer = new Hand();
 
             // Repartir inicial
-            player.add(deck.deal());
-            dealer.add(deck.deal());
-            player.add(deck.deal());
-            dealer.add(deck.deal());
+            manos.agregar(registro.carta(jugador, deck.deal()).getCode());
+            dealer.add(registro.carta(Historial.DEALER, deck.deal()));
+            manos.agregar(registro.carta(jugador, deck.deal()).getCode());
+            dealer.add(registro.carta(Historial.DEALER, deck.deal()));
 
             // Mostrar estado inicial
-            System.out.println("Dealer muestra: " + dealer.getCards().get(0));
-            System.out.println("Tu mano: " + player);
+            Card visible = dealer.getCards().get(0);
+            System.out.println("Dealer muestra: " + visible);
+            System.out.println("Tu mano: " + manos);
 
-            // Turno del jugador
-            boolean jugadorPierde = false;
-            while (true) {
-                if (player.isBust()) {
-                    System.out.println("Te pasaste de " + BLACKJACK_TARGET + ". Pierdes.");
-                    jugadorPierde = true;
-                    break;
-                }
-                System.out.print("¿HIT (h) o STAND (s) o QUIT (q)? ");
-                String ans = in.nextLine().trim().toLowerCase();
-                if (ans.equals("q")) {
-                    System.out.println("Abandonaste la partida.");
-                    return;
-                } else if (ans.startsWith("h")) {
-                    player.add(deck.deal());
-                    System.out.println("Tu mano: " + player);
-                } else if (ans.startsWith("s")) {
-                    break;
-                } else {
-                    System.out.println("Opción no válida. Escribe 'h', 's' o 'q'.");
+            int upcard = visible.blackjackValue();
+            long seguro = 0;
+            if (upcard == 1 && Pagos.seguro(apuesta) > 0 && cuenta.saldo() >= Pagos.seguro(apuesta)) {
+                System.out.print("¿Seguro contra blackjack por " + Pagos.seguro(apuesta) + " fichas? (s/n): ");
+                if (in.leerLinea().trim().toLowerCase().startsWith("s") && cuenta.apostar(Pagos.seguro(apuesta))) {
+                    seguro = Pagos.seguro(apuesta);
                 }
             }
+            boolean natural = Pagos.esNatural(manos.estado(0));
+            boolean dealerNatural = Pagos.esNatural(dealer.getEstado());
 
-            if (!jugadorPierde) {
-                // Turno del dealer (regla: roba hasta 17 o más)
-                System.out.println("\nTurno del dealer...");
+            if (natural || (Pagos.dealerMira(upcard) && dealerNatural)) {
+                // Se decide con el reparto: nadie pide cartas
                 System.out.println("Dealer tenía: " + dealer);
-                while (dealer.bestBlackjackTotal() < DEALER_STAND_VALUE) {
-                    Card c = deck.deal();
-                    dealer.add(c);
-                    System.out.println("Dealer roba: " + c + " -> " + dealer);
+                int resultado = manos.resultado(0, dealer.getEstado());
+                if (resultado == Pagos.EMPATE) System.out.println("Ambos tienen blackjack. Empate.");
+                else if (resultado == Pagos.BLACKJACK) System.out.println("¡Blackjack! Se paga 3:2.");
+                else System.out.println("El dealer tiene blackjack. Pierdes.");
+            } else {
+                // Turno del jugador, mano por mano; con 'a' decide la estrategia básica hasta el final
+                PoliticaJugador piloto = null;
+                while (!manos.terminada()) {
+                    int mano = manos.activa();
+                    if (manos.necesitaCarta()) {
+                        // Mano que salió de dividir: recibe su segunda carta al empezar
+                        manos.agregar(registro.carta(jugador, deck.deal()).getCode());
+                        System.out.println("Mano " + (mano + 1) + ": " + manos.texto(mano));
+                        continue;
+                    }
+                    int permitidas = manos.permitidas();
+                    // Doblar y dividir piden otra apuesta: sin saldo para cubrirla no se ofrecen (ni al piloto)
+                    if (cuenta.saldo() < apuesta) permitidas &= ~(Manos.PUEDE_DOBLAR | Manos.PUEDE_DIVIDIR);
+                    if (consejero) {
+                        // Lo que el jugador no ha visto: el shoe más la carta oculta del dealer
+                        int[] composicion = deck.composicion();
+                        composicion[dealer.getCards().get(1).blackjackValue()]++;
+                        System.out.println(Estrategia.para(MAZOS_SHOE).consejo(manos.estado(mano), permitidas, visible, composicion));
+                        System.out.println("Conteo: " + conteo.leerSin(dealer.getCards().get(1).getCode()));
+                    }
+                    String ans;
+                    if (piloto != null) {
+                        Estrategia.Accion accion = piloto.jugada(manos.estado(mano), upcard, permitidas);
+                        ans = String.valueOf(accion.letra);
+                        System.out.println(piloto.nombre() + ": " + accion);
+                    } else {
+                        System.out.print("¿" + opciones(permitidas) + "automático (a) o QUIT (q)? ");
+                        ans = in.leerLinea().trim().toLowerCase();
+                    }
+                    if (ans.equals("a")) {
+                        piloto = Politicas.basica();
+                    } else if (ans.equals("q")) {
+                        // Quien abandona pierde todo lo apostado
+                        long enJuego = apuesta * manos.unidades();
+                        liquidacion.pagar(cuenta, enJuego, -enJuego);
+                        if (seguro > 0) liquidacion.pagar(cuenta, seguro, -seguro);
+                        Libro.global().liquidar(liquidacion);
+                        System.out.println("Abandonaste la partida.");
+                        return;
+                    } else if (ans.startsWith("h")) {
+                        registro.hit(jugador);
+                        manos.agregar(registro.carta(jugador, deck.deal()).getCode());
+                        mostrarMano(manos, mano);
+                    } else if (ans.startsWith("s")) {
+                        registro.stand(jugador);
+                        manos.plantarse();
+                    } else if (ans.startsWith("d") && (permitidas & Manos.PUEDE_DOBLAR) != 0) {
+                        if (!cuenta.apostar(apuesta)) {
+                            System.out.println("No te alcanza el saldo para doblar.");
+                            continue;
+                        }
+                        registro.doblar(jugador);
+                        manos.doblar();
+                        manos.agregar(registro.carta(jugador, deck.deal()).getCode());
+                        mostrarMano(manos, mano);
+                    } else if (ans.startsWith("p") && (permitidas & Manos.PUEDE_DIVIDIR) != 0) {
+                        if (!cuenta.apostar(apuesta)) {
+                            System.out.println("No te alcanza el saldo para dividir.");
+                            continue;
+                        }
+                        registro.dividir(jugador);
+                        manos.dividir();
+                        System.out.println("Tus manos: " + manos);
+                    } else if (ans.startsWith("r") && (permitidas & Manos.PUEDE_RENDIRSE) != 0) {
+                        registro.rendirse(jugador);
+                        manos.rendirse();
+                        System.out.println("Te rindes: recuperas la mitad de la apuesta.");
+                    } else {
+                        System.out.println("Opción no válida.");
+                    }
                 }
-                if (dealer.isBust()) {
-                    System.out.println("El dealer se pasa. ¡Ganas!");
-                } else {
-                    // Decisión final
-                    int p = player.bestBlackjackTotal();
-                    int d = dealer.bestBlackjackTotal();
-                    System.out.println("\nResultado final:");
-                    System.out.println("Tu total: " + p + " | Dealer: " + d);
-                    if (p > d) System.out.println("¡Ganas!");
-                    else if (p < d) System.out.println("Pierdes.");
-                    else System.out.println("Empate.");
+
+                if (manos.algunaEnPie()) {
+                    // Turno del dealer (regla: roba hasta 17 o más)
+                    System.out.println("\nTurno del dealer...");
+                    System.out.println("Dealer tenía: " + dealer);
+                    while (dealer.bestBlackjackTotal() < DEALER_STAND_VALUE) {
+                        Card c = registro.carta(Historial.DEALER, deck.deal());
+                        dealer.add(c);
+                        System.out.println("Dealer roba: " + c + " -> " + dealer);
+                    }
+                    if (dealer.isBust()) System.out.println("El dealer se pasa.");
+                }
+                // Decisión final, mano por mano
+                System.out.println("\nResultado final:");
+                for (int i = 0; i < manos.cantidad(); i++) {
+                    String etiqueta = manos.cantidad() > 1 ? "Mano " + (i + 1) + ": " : "Tu total: ";
+                    int resultado = manos.resultado(i, dealer.getEstado());
+                    if (manos.esRendida(i)) {
+                        System.out.println(etiqueta + "te rendiste.");
+                    } else if (manos.sePaso(i)) {
+                        System.out.println(etiqueta + manos.total(i) + " (te pasaste). Pierdes.");
+                    } else {
+                        System.out.println(etiqueta + manos.total(i) + " | Dealer: " + dealer.bestBlackjackTotal()
+                            + " -> " + (resultado > 0 ? "¡Ganas!" : resultado < 0 ? "Pierdes." : "Empate."));
+                    }
                 }
             }
+
+            // Pagos de la ronda: cada mano con su apuesta (doble si se dobló) y, si lo hubo, el seguro
+            long neto = 0;
+            for (int i = 0; i < manos.cantidad(); i++) {
+                int resultado = manos.resultado(i, dealer.getEstado());
+                registro.resultado(jugador, resultado, manos.total(i));
+                long apostado = apuesta * manos.unidades(i);
+                long netoMano = Pagos.neto(resultado, apostado);
+                liquidacion.pagar(cuenta, apostado, netoMano);
+                neto += netoMano;
+            }
+            if (seguro > 0) {
+                long netoSeguro = Pagos.netoSeguro(seguro, dealerNatural);
+                System.out.println(dealerNatural ? "El seguro paga " + netoSeguro + "." : "Pierdes el seguro.");
+                liquidacion.pagar(cuenta, seguro, netoSeguro);
+                neto += netoSeguro;
+            }
+            Libro.global().liquidar(liquidacion);
+            mostrarSaldo(neto, cuenta.saldo());
             
             System.out.print("\n¿Jugar otra vez? (s/n): ");
-            String respuesta = in.nextLine().trim().toLowerCase();
+            String respuesta = in.leerLinea().trim().toLowerCase();
             jugarOtraVez = respuesta.startsWith("s");
         }
     }
 
-    /** ----- Descubrimiento de red ----- */
-    static class NetworkDiscovery extends Thread {
-        private volatile boolean running = true;
-        private String miIP;
-        
-        public NetworkDiscovery() {
-            setDaemon(true);
-            try {
-                miIP = obtenerIPLocal();
-            } catch (Exception e) {
-                miIP = "desconocida";
+    /** Las jugadas que admite la mano, para el prompt */
+    static String opciones(int permitidas) {
+        StringBuilder sb = new StringBuilder("HIT (h), STAND (s), ");
+        if ((permitidas & Manos.PUEDE_DOBLAR) != 0) sb.append("DOUBLE (d), ");
+        if ((permitidas & Manos.PUEDE_DIVIDIR) != 0) sb.append("SPLIT (p), ");
+        if ((permitidas & Manos.PUEDE_RENDIRSE) != 0) sb.append("SURRENDER (r), ");
+        return sb.toString();
+    }
+
+    /** La mano que acaba de recibir carta, y si se pasó */
+    static void mostrarMano(Manos manos, int mano) {
+        String etiqueta = manos.cantidad() > 1 ? "Mano " + (mano + 1) + ": " : "Tu mano: ";
+        System.out.println(etiqueta + manos.texto(mano));
+        if (manos.sePaso(mano)) System.out.println("Te pasaste de " + BLACKJACK_TARGET + ".");
+    }
+
+    /** ----- Pagos: lo que cobra o paga cada mano ----- */
+    /**
+     * Resultado de una mano desde el jugador. Las ganancias se calculan en medias
+     * apuestas para que el 3:2 del blackjack y el seguro sean enteros exactos.
+     */
+    static final class Pagos {
+        static final int PIERDE = -1;
+        static final int EMPATE = 0;
+        static final int GANA = 1;
+        static final int BLACKJACK = 2; // natural: As y carta de 10 en las dos primeras, paga 3:2
+        static final int RENDIDA = -2;  // se rindió: pierde media apuesta
+
+        private Pagos() {}
+
+        /** Dos cartas que suman BLACKJACK_TARGET */
+        static boolean esNatural(int mano) {
+            return ManoCompacta.cartas(mano) == 2 && ManoCompacta.total(mano) == BLACKJACK_TARGET;
+        }
+
+        /** El dealer mira su carta oculta con un As o un 10 a la vista */
+        static boolean dealerMira(int upcard) {
+            return upcard == 1 || upcard == 10;
+        }
+
+        /**
+         * Compara dos manos terminadas. Un natural gana a cualquier 21 de más
+         * cartas; dos naturales empatan.
+         */
+        static int resultado(int jugador, int dealer) {
+            return resultado(jugador, dealer, true);
+        }
+
+        /** Tras dividir, 21 con dos cartas es un 21 más: admiteNatural = false */
+        static int resultado(int jugador, int dealer, boolean admiteNatural) {
+            boolean natural = admiteNatural && esNatural(jugador);
+            boolean dealerNatural = esNatural(dealer);
+            if (natural || dealerNatural) {
+                if (natural && dealerNatural) return EMPATE;
+                return natural ? BLACKJACK : PIERDE;
             }
+            if (ManoCompacta.sePaso(jugador)) return PIERDE;
+            if (ManoCompacta.sePaso(dealer)) return GANA;
+            return Integer.compare(ManoCompacta.total(jugador), ManoCompacta.total(dealer));
         }
-        
-        // Obtener la IP real de la red local (WiFi), no VPN
-        private String obtenerIPLocal() throws Exception {
-            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-            
-            while (interfaces.hasMoreElements()) {
-                NetworkInterface ni = interfaces.nextElement();
-                
-                // Saltar interfaces inactivas o loopback
-                if (!ni.isUp() || ni.isLoopback()) continue;
-                
-                Enumeration<InetAddress> addresses = ni.getInetAddresses();
-                while (addresses.hasMoreElements()) {
-                    InetAddress addr = addresses.nextElement();
-                    // Solo IPv4
-                    if (!(addr instanceof java.net.Inet4Address)) continue;
-                    String ip = addr.getHostAddress();
-                    
-                    // Buscar IP de red local (192.168.x.x o 10.x.x.x)
-                    if (ip.startsWith("192.168.") || ip.startsWith("10.")) {
-                        return ip;
-                    }
-                    // También aceptar 172.16-31.x.x (rango privado)
-                    if (ip.startsWith("172.")) {
-                        String[] parts = ip.split("\\.");
-                        if (parts.length >= 2) {
-                            int second = Integer.parseInt(parts[1]);
-                            if (second >= 16 && second <= 31) {
-                                return ip;
-                            }
-                        }
-                    }
+
+        /** Ganancia neta en medias apuestas */
+        static int medias(int resultado) {
+            if (resultado == BLACKJACK) return 3;
+            if (resultado == RENDIDA) return -1;
+            return 2 * resultado;
+        }
+
+        /** Ganancia neta en fichas; el 3:2 de una apuesta impar se redondea hacia abajo, como en el casino */
+        static long neto(int resultado, long apuesta) {
+            return Math.floorDiv(medias(resultado) * apuesta, 2);
+        }
+
+        /** El seguro cuesta media apuesta y paga 2:1 si el dealer tiene blackjack */
+        static long seguro(long apuesta) {
+            return apuesta / 2;
+        }
+
+        static long netoSeguro(long seguro, boolean dealerNatural) {
+            return dealerNatural ? 2 * seguro : -seguro;
+        }
+
+        static String texto(int resultado) {
+            switch (resultado) {
+                case BLACKJACK: return "Blackjack";
+                case RENDIDA: return "Se rinde";
+                case GANA: return "Gana";
+                case PIERDE: return "Pierde";
+                default: return "Empate";
+            }
+        }
+    }
+
+    /** ----- Cuentas de los jugadores y liquidación por ronda ----- */
+    /**
+     * Cada cuenta tiene su propio AtomicLong: dos mesas solo compiten si liquidan
+     * la misma cuenta, nunca por un lock global. La ganancia de la casa, que todas
+     * las mesas tocan, va en un LongAdder. Una mesa junta los pagos de la ronda en
+     * su Liquidacion y los aplica de una vez al terminarla.
+     */
+    static final class Cuenta {
+        final String id;
+        private final AtomicLong saldo;
+
+        Cuenta(String id, long saldoInicial) {
+            this.id = id;
+            this.saldo = new AtomicLong(saldoInicial);
+        }
+
+        long saldo() { return saldo.get(); }
+
+        /** Descuenta la apuesta si alcanza el saldo */
+        boolean apostar(long monto) {
+            long actual;
+            do {
+                actual = saldo.get();
+                if (actual < monto) return false;
+            } while (!saldo.compareAndSet(actual, actual - monto));
+            return true;
+        }
+
+        void acreditar(long monto) { saldo.addAndGet(monto); }
+    }
+
+    /** Pagos de una ronda en una mesa; se reutiliza ronda tras ronda */
+    static final class Liquidacion {
+        private Cuenta[] cuentas = new Cuenta[Mesa.MAX_ASIENTOS + 1];
+        private long[] montos = new long[Mesa.MAX_ASIENTOS + 1];
+        private int pagos;
+        private long casa;
+
+        /** La apuesta ya se descontó: se devuelve junto con la ganancia (nada si perdió) */
+        void pagar(Cuenta cuenta, long apostado, long neto) {
+            if (pagos == cuentas.length) {
+                cuentas = Arrays.copyOf(cuentas, pagos * 2);
+                montos = Arrays.copyOf(montos, pagos * 2);
+            }
+            cuentas[pagos] = cuenta;
+            montos[pagos] = apostado + neto;
+            pagos++;
+            casa -= neto;
+        }
+    }
+
+    static final class Libro {
+        static final long SALDO_INICIAL = 1000;
+        static final long APUESTA_INICIAL = 10;
+        private static final Libro GLOBAL = new Libro();
+
+        private final ConcurrentMap<String, Cuenta> cuentas = new ConcurrentHashMap<>();
+        private final AtomicLong siguiente = new AtomicLong();
+        private final LongAdder casa = new LongAdder();
+
+        static Libro global() { return GLOBAL; }
+
+        /** La cuenta con ese nombre, o una nueva con SALDO_INICIAL */
+        Cuenta abrir(String id) {
+            return cuentas.computeIfAbsent(id, k -> new Cuenta(k, SALDO_INICIAL));
+        }
+
+        /** Cuenta anónima para un asiento del servidor de mesas */
+        Cuenta abrir() {
+            return abrir("jugador-" + siguiente.incrementAndGet());
+        }
+
+        /** La cuenta del jugador que se identificó al negociar; no se cierra al dejar el asiento */
+        Cuenta abrir(long jugador) {
+            return abrir(String.format("id-%016x", jugador));
+        }
+
+        void cerrar(Cuenta cuenta) { cuentas.remove(cuenta.id, cuenta); }
+
+        /** Aplica todos los pagos de la ronda y deja la liquidación vacía */
+        void liquidar(Liquidacion l) {
+            for (int i = 0; i < l.pagos; i++) {
+                if (l.montos[i] != 0) l.cuentas[i].acreditar(l.montos[i]);
+                l.cuentas[i] = null;
+            }
+            if (l.casa != 0) casa.add(l.casa);
+            l.pagos = 0;
+            l.casa = 0;
+        }
+
+        /** Lo que ganó la casa, sumando todas las mesas */
+        long gananciaCasa() { return casa.sum(); }
+    }
+
+    /** ----- Políticas de jugador: quién decide en lugar de la consola ----- */
+    /**
+     * Una política recibe la mano como ManoCompacta y el valor de la carta
+     * visible del dealer (1 = As .. 10), así que decidir no asigna memoria y se
+     * puede llamar miles de millones de veces. Debe ser inmutable: el simulador
+     * comparte la misma instancia entre todos los hilos.
+     */
+    interface PoliticaJugador {
+        String nombre();
+
+        /** true = HIT, false = STAND */
+        boolean pedir(int mano, int upcard);
+
+        /** Con las jugadas que admite la mano (Manos.PUEDE_*); por defecto solo HIT o STAND */
+        default Estrategia.Accion jugada(int mano, int upcard, int permitidas) {
+            return pedir(mano, upcard) ? Estrategia.Accion.HIT : Estrategia.Accion.STAND;
+        }
+
+        /** Unidades a apostar antes de repartir, viendo el conteo del shoe */
+        default int apuesta(Conteo conteo) {
+            return 1;
+        }
+
+        /** Con un As a la vista: ¿tomar el seguro? */
+        default boolean seguro(Conteo conteo) {
+            return false;
+        }
+    }
+
+    static final class Politicas {
+        static final int MAX_UNIDADES = 8; // Apuesta máxima de la política de conteo
+
+        private Politicas() {}
+
+        /** La regla del simulador original: pedir por debajo de un total */
+        static PoliticaJugador umbral(int umbral) {
+            return new PoliticaJugador() {
+                @Override public String nombre() { return "Pedir bajo " + umbral; }
+                @Override public boolean pedir(int mano, int upcard) { return ManoCompacta.total(mano) < umbral; }
+            };
+        }
+
+        /** Juega como el dealer: pide hasta DEALER_STAND_VALUE */
+        static PoliticaJugador imitarDealer() {
+            return new PoliticaJugador() {
+                @Override public String nombre() { return "Imitar al dealer"; }
+                @Override public boolean pedir(int mano, int upcard) { return ManoCompacta.total(mano) < DEALER_STAND_VALUE; }
+            };
+        }
+
+        /** Solo pide cuando ninguna carta lo puede pasar (mano dura de 11 o menos, o suave) */
+        static PoliticaJugador nuncaPasarse() {
+            return new PoliticaJugador() {
+                @Override public String nombre() { return "Nunca pasarse"; }
+                @Override public boolean pedir(int mano, int upcard) {
+                    return ManoCompacta.esSuave(mano) ? ManoCompacta.total(mano) < DEALER_STAND_VALUE
+                                                      : ManoCompacta.total(mano) <= BLACKJACK_TARGET - 10;
+                }
+            };
+        }
+
+        /** Las tablas del consejero: la jugada de mayor EV contra la carta visible */
+        static PoliticaJugador basica() {
+            Estrategia tablas = Estrategia.para(MAZOS_SHOE);
+            return new PoliticaJugador() {
+                @Override public String nombre() { return "Estrategia básica"; }
+                @Override public boolean pedir(int mano, int upcard) {
+                    return tablas.pedir(ManoCompacta.total(mano), ManoCompacta.esSuave(mano), upcard);
                 }
+                @Override public Estrategia.Accion jugada(int mano, int upcard, int permitidas) {
+                    return tablas.jugada(mano, upcard, permitidas);
+                }
+            };
+        }
+
+        /** Estrategia básica apostando 1 a MAX_UNIDADES según el conteo verdadero Hi-Lo */
+        static PoliticaJugador conteo() {
+            PoliticaJugador basica = basica();
+            return new PoliticaJugador() {
+                @Override public String nombre() { return "Conteo Hi-Lo (1-" + MAX_UNIDADES + ")"; }
+                @Override public boolean pedir(int mano, int upcard) { return basica.pedir(mano, upcard); }
+                @Override public Estrategia.Accion jugada(int mano, int upcard, int permitidas) {
+                    return basica.jugada(mano, upcard, permitidas);
+                }
+                @Override public int apuesta(Conteo conteo) {
+                    int verdadero = (int) Math.floor(conteo.verdadero());
+                    return Math.max(1, Math.min(MAX_UNIDADES, verdadero));
+                }
+                // Con conteo verdadero +3 o más quedan tantos dieces que el seguro conviene
+                @Override public boolean seguro(Conteo conteo) { return conteo.verdadero() >= 3; }
+            };
+        }
+
+        static List<PoliticaJugador> todas() {
+            return Arrays.asList(imitarDealer(), nuncaPasarse(), basica(), conteo());
+        }
+    }
+
+    /** ----- Simulación Monte Carlo: las mismas reglas, sin consola ----- */
+    static class Simulador {
+        private static final long RONDAS_POR_TAREA = 50_000;
+        private static final double Z_95 = 1.959964; // Intervalo de confianza del 95%
+
+        /** Conteo de resultados y ganancias desde el punto de vista del jugador */
+        static class Resultado {
+            long victorias;
+            long derrotas;
+            long empates;
+            long apostado;          // unidades apostadas (sin el seguro)
+            long ganancia;          // medias unidades ganadas (negativo si pierde)
+            long gananciaCuadrados; // suma de ganancia^2 por ronda, para la varianza
+
+            long rondas() { return victorias + derrotas + empates; }
+
+            /** medias: ganancia de la ronda en medias apuestas, seguro incluido */
+            void sumar(int medias, int apuesta) {
+                if (medias > 0) victorias++;
+                else if (medias < 0) derrotas++;
+                else empates++;
+                long g = (long) medias * apuesta;
+                apostado += apuesta;
+                ganancia += g;
+                gananciaCuadrados += g * g;
+            }
+
+            Resultado combinar(Resultado otro) {
+                victorias += otro.victorias;
+                derrotas += otro.derrotas;
+                empates += otro.empates;
+                apostado += otro.apostado;
+                ganancia += otro.ganancia;
+                gananciaCuadrados += otro.gananciaCuadrados;
+                return this;
+            }
+
+            /** Ganancia esperada de la casa por unidad apostada */
+            double ventajaCasa() {
+                return apostado == 0 ? 0 : -ganancia / 2.0 / apostado;
+            }
+
+            /** Ganancia media del jugador por ronda, en unidades */
+            double ev() {
+                long n = rondas();
+                return n == 0 ? 0 : ganancia / 2.0 / n;
+            }
+
+            /** Varianza de la ganancia por ronda, en unidades al cuadrado */
+            double varianza() {
+                long n = rondas();
+                if (n < 2) return 0;
+                double media = ev();
+                return (gananciaCuadrados / 4.0 - n * media * media) / (n - 1);
+            }
+
+            /** Mitad del intervalo de confianza del 95% para ev() */
+            double margen() {
+                long n = rondas();
+                return n == 0 ? 0 : Z_95 * Math.sqrt(varianza() / n);
             }
-            
-            // Si no encuentra IP local, usar la por defecto
-            return InetAddress.getLocalHost().getHostAddress();
         }
-        
-        @Override
-        public void run() {
-            try (DatagramSocket socket = new DatagramSocket(PUERTO_BROADCAST)) {
-                socket.setBroadcast(true);
-                while (running) {
-                    byte[] buffer = new byte[256];
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(packet);
-                    String mensaje = new String(packet.getData(), 0, packet.getLength());
-                    if (mensaje.startsWith(MENSAJE_BROADCAST)) {
-                        // Responder con nuestra IP
-                        String respuesta = MENSAJE_BROADCAST + ":" + miIP;
-                        byte[] respuestaBytes = respuesta.getBytes();
-                        DatagramPacket respuestaPacket = new DatagramPacket(
-                            respuestaBytes, respuestaBytes.length, 
-                            packet.getAddress(), packet.getPort()
-                        );
-                        socket.send(respuestaPacket);
-                    }
+
+        /**
+         * De dónde salen las cartas. El shoe es el juego exacto; el mazo infinito
+         * y la composición fija no barajan nada y son mucho más rápidos, a cambio
+         * de aproximar (sin efecto de las cartas ya vistas, o siempre el mismo
+         * punto del shoe).
+         */
+        enum Mazo {
+            SHOE("Shoe de " + MAZOS_SHOE + " mazos"),
+            INFINITO("Mazo infinito"),
+            COMPOSICION("Composición fija de " + MAZOS_SHOE + " mazos");
+
+            final String nombre;
+
+            Mazo(String nombre) {
+                this.nombre = nombre;
+            }
+
+            /** La fuente de una hoja; el shoe avisa sus cartas al conteo, las otras no tienen nada que contar */
+            FuenteCartas crear(SplittableRandom rnd, Conteo conteo) {
+                switch (this) {
+                    case INFINITO: return new MazoInfinito(rnd.split());
+                    case COMPOSICION: return new ComposicionFija(MotorDealer.composicionCompleta(MAZOS_SHOE), rnd.split());
+                    default: return new Shoe(MAZOS_SHOE, PENETRACION_SHOE, new Random(rnd.nextLong())).contar(conteo);
                 }
-            } catch (Exception e) {
-                // Silencioso
             }
         }
-        
-        public void detener() {
-            running = false;
+
+        /** Divide las rondas por la mitad hasta un tamaño razonable; cada hoja tiene su propio RNG */
+        static class Tarea extends RecursiveTask<Resultado> {
+            private static final long serialVersionUID = 1L;
+
+            private final long rondas;
+            private final PoliticaJugador politica;
+            private final Mazo mazo;
+            private final SplittableRandom rnd;
+
+            Tarea(long rondas, PoliticaJugador politica, Mazo mazo, SplittableRandom rnd) {
+                this.rondas = rondas;
+                this.politica = politica;
+                this.mazo = mazo;
+                this.rnd = rnd;
+            }
+
+            @Override
+            protected Resultado compute() {
+                if (rondas <= RONDAS_POR_TAREA) {
+                    Conteo conteo = new Conteo(0);
+                    return simularSecuencial(rondas, politica, mazo.crear(rnd, conteo), conteo);
+                }
+                long mitad = rondas / 2;
+                Tarea izquierda = new Tarea(mitad, politica, mazo, rnd.split());
+                Tarea derecha = new Tarea(rondas - mitad, politica, mazo, rnd.split());
+                izquierda.fork();
+                return derecha.compute().combinar(izquierda.join());
+            }
         }
-    }
-    
-    static Set<String> buscarJugadores() {
-        Set<String> jugadores = new HashSet<>();
-        try {
-            DatagramSocket socket = new DatagramSocket();
-            socket.setBroadcast(true);
-            socket.setSoTimeout(TIMEOUT_BUSQUEDA);
-            
-            byte[] buffer = MENSAJE_BROADCAST.getBytes();
-            DatagramPacket packet = new DatagramPacket(
-                buffer, buffer.length,
-                InetAddress.getByName("255.255.255.255"), PUERTO_BROADCAST
-            );
-            
-            socket.send(packet);
-            
-            long inicio = System.currentTimeMillis();
-            while (System.currentTimeMillis() - inicio < TIMEOUT_BUSQUEDA) {
-                try {
-                    byte[] respuestaBuffer = new byte[256];
-                    DatagramPacket respuesta = new DatagramPacket(respuestaBuffer, respuestaBuffer.length);
-                    socket.receive(respuesta);
-                    String mensaje = new String(respuesta.getData(), 0, respuesta.getLength());
-                    if (mensaje.startsWith(MENSAJE_BROADCAST)) {
-                        String[] partes = mensaje.split(":");
-                        if (partes.length > 1) {
-                            jugadores.add(partes[1]);
-                        }
-                    }
-                } catch (SocketTimeoutException e) {
-                    break;
+
+        /** Reparte las rondas entre todos los núcleos con fork-join */
+        static Resultado simular(long rondas, PoliticaJugador politica, long semilla) {
+            return simular(rondas, politica, Mazo.SHOE, semilla);
+        }
+
+        static Resultado simular(long rondas, PoliticaJugador politica, Mazo mazo, long semilla) {
+            return ForkJoinPool.commonPool().invoke(
+                new Tarea(rondas, politica, mazo, new SplittableRandom(semilla)));
+        }
+
+        /**
+         * Todas las políticas con la misma semilla: cada hoja baraja los mismos
+         * shoes para todas, así las diferencias de EV no dependen de la suerte de
+         * cada una (números aleatorios comunes) y los intervalos son más estrechos.
+         */
+        static Map<PoliticaJugador, Resultado> torneo(List<PoliticaJugador> politicas, long rondas, long semilla) {
+            return torneo(politicas, rondas, Mazo.SHOE, semilla);
+        }
+
+        static Map<PoliticaJugador, Resultado> torneo(List<PoliticaJugador> politicas, long rondas, Mazo mazo, long semilla) {
+            Map<PoliticaJugador, Resultado> resultados = new LinkedHashMap<>();
+            for (PoliticaJugador p : politicas) resultados.put(p, simular(rondas, p, mazo, semilla));
+            return resultados;
+        }
+
+        static Resultado simularSecuencial(long rondas, PoliticaJugador politica, Random rnd) {
+            Conteo conteo = new Conteo(0);
+            return simularSecuencial(rondas, politica, new Shoe(MAZOS_SHOE, PENETRACION_SHOE, rnd).contar(conteo), conteo);
+        }
+
+        /** Una hoja: todas sus rondas salen de la misma fuente (un shoe por hoja) */
+        static Resultado simularSecuencial(long rondas, PoliticaJugador politica, FuenteCartas deck, Conteo conteo) {
+            Resultado r = new Resultado();
+            Manos manos = new Manos();
+            for (long i = 0; i < rondas; i++) {
+                deck.prepararRonda();
+                int apuesta = politica.apuesta(conteo);
+                r.sumar(jugarRonda(deck, politica, conteo, manos), apuesta);
+            }
+            return r;
+        }
+
+        static int jugarRonda(FuenteCartas deck, PoliticaJugador politica, Manos manos) {
+            return jugarRonda(deck, politica, null, manos);
+        }
+
+        /**
+         * Una ronda completa con las reglas de la mesa: seguro si el dealer muestra
+         * un As (solo si hay conteo para decidirlo), el dealer mira su carta oculta
+         * y los naturales se pagan 3:2 sin jugar. Si no, el jugador juega cada
+         * mano (doblar, dividir y rendirse incluidos) como diga la política y el
+         * dealer roba hasta DEALER_STAND_VALUE. Trabaja con códigos de carta y
+         * manos empaquetadas en el Manos que recibe, así que no asigna memoria.
+         * Devuelve la ganancia en medias apuestas (Pagos.medias) de todas las
+         * manos, seguro incluido.
+         */
+        static int jugarRonda(FuenteCartas deck, PoliticaJugador politica, Conteo conteo, Manos manos) {
+            int dealer = ManoCompacta.VACIA;
+            manos.reiniciar().agregar(deck.dealCode());
+            int upcard = deck.dealCode();
+            dealer = ManoCompacta.agregar(dealer, upcard);
+            manos.agregar(deck.dealCode());
+            dealer = ManoCompacta.agregar(dealer, deck.dealCode());
+            int player = manos.estado(0);
+
+            int valorUpcard = Card.valueOf(upcard);
+            int seguro = 0;
+            if (valorUpcard == 1 && conteo != null && politica.seguro(conteo)) {
+                seguro = Pagos.esNatural(dealer) ? 2 : -1; // media apuesta que paga 2:1
+            }
+            if (Pagos.esNatural(player) || (Pagos.dealerMira(valorUpcard) && Pagos.esNatural(dealer))) {
+                return Pagos.medias(Pagos.resultado(player, dealer)) + seguro;
+            }
+
+            while (!manos.terminada()) {
+                if (manos.necesitaCarta()) {
+                    manos.agregar(deck.dealCode());
+                    continue;
+                }
+                switch (politica.jugada(manos.estado(manos.activa()), valorUpcard, manos.permitidas())) {
+                    case HIT:
+                        manos.agregar(deck.dealCode());
+                        break;
+                    case DOUBLE:
+                        manos.doblar();
+                        manos.agregar(deck.dealCode());
+                        break;
+                    case SPLIT:
+                        manos.dividir();
+                        break;
+                    case SURRENDER:
+                        manos.rendirse();
+                        break;
+                    default:
+                        manos.plantarse();
+                        break;
                 }
             }
-            socket.close();
-        } catch (Exception e) {
-            System.out.println("Error buscando jugadores: " + e.getMessage());
+            if (manos.algunaEnPie()) {
+                while (ManoCompacta.total(dealer) < DEALER_STAND_VALUE) {
+                    dealer = ManoCompacta.agregar(dealer, deck.dealCode());
+                }
+            }
+            return manos.medias(dealer) + seguro;
         }
-        return jugadores;
     }
 
-    /** ----- Modo Multiplayer ----- */
-    static void modoMultiplayer() {
-        Scanner in = new Scanner(System.in);
-        
-        System.out.println("\n=== Modo Multiplayer ===");
-        System.out.println("1. Crear partida (esperar jugador)");
-        System.out.println("2. Buscar partidas");
-        System.out.print("Opción: ");
-        String opcion = in.nextLine().trim();
-        
-        if (opcion.equals("1")) {
-            crearPartida();
-        } else if (opcion.equals("2")) {
-            buscarYConectar(in);
+    static void menuSimulacion(Consola in) {
+        System.out.println("\n=== Simulación Monte Carlo ===");
+        System.out.print("Número de rondas (por defecto 1000000): ");
+        long rondas = leerNumero(in, 1_000_000);
+        System.out.println("Política del jugador:");
+        System.out.println("1. Pedir por debajo de un total");
+        System.out.println("2. Imitar al dealer");
+        System.out.println("3. Nunca pasarse");
+        System.out.println("4. Estrategia básica");
+        System.out.println("5. Estrategia básica con conteo Hi-Lo");
+        System.out.println("6. Torneo: todas las políticas con las mismas cartas");
+        System.out.print("Selecciona una opción (por defecto 1): ");
+        int opcion = (int) leerNumero(in, 1);
+
+        List<PoliticaJugador> politicas;
+        switch (opcion) {
+            case 2: politicas = Collections.singletonList(Politicas.imitarDealer()); break;
+            case 3: politicas = Collections.singletonList(Politicas.nuncaPasarse()); break;
+            case 4: politicas = Collections.singletonList(Politicas.basica()); break;
+            case 5: politicas = Collections.singletonList(Politicas.conteo()); break;
+            case 6: politicas = Politicas.todas(); break;
+            default:
+                System.out.print("El jugador pide carta por debajo de (por defecto " + DEALER_STAND_VALUE + "): ");
+                // Ningún total está por debajo de 2, y por debajo de 22 ya pide siempre
+                int umbral = (int) leerNumero(in, DEALER_STAND_VALUE, 2, BLACKJACK_TARGET + 1);
+                politicas = Collections.singletonList(Politicas.umbral(umbral));
+        }
+
+        System.out.println("Origen de las cartas:");
+        System.out.println("1. " + Simulador.Mazo.SHOE.nombre + " (exacto)");
+        System.out.println("2. " + Simulador.Mazo.INFINITO.nombre + " (aproximado, más rápido)");
+        System.out.println("3. " + Simulador.Mazo.COMPOSICION.nombre + " (aproximado, más rápido)");
+        System.out.println("4. Comparar los tres");
+        System.out.print("Selecciona una opción (por defecto 1): ");
+        int origen = (int) leerNumero(in, 1);
+        Simulador.Mazo[] mazos = origen == 4 ? Simulador.Mazo.values()
+            : new Simulador.Mazo[] { Simulador.Mazo.values()[origen >= 1 && origen <= 3 ? origen - 1 : 0] };
+
+        System.out.println("Simulando en " + ForkJoinPool.commonPool().getParallelism() + " hilos...");
+        Salida.vaciar();
+        long semilla = System.nanoTime(); // La misma para todos los mazos comparados
+        for (Simulador.Mazo mazo : mazos) {
+            long inicio = System.nanoTime();
+            Map<PoliticaJugador, Simulador.Resultado> resultados = Simulador.torneo(politicas, rondas, mazo, semilla);
+            double segundos = (System.nanoTime() - inicio) / 1e9;
+            mostrarSimulacion(mazo, rondas, resultados, segundos);
         }
     }
-    
-    static void crearPartida() {
-        NetworkDiscovery discovery = null;
+
+    static void mostrarSimulacion(Simulador.Mazo mazo, long rondas,
+                                  Map<PoliticaJugador, Simulador.Resultado> resultados, double segundos) {
+        if (resultados.size() == 1) {
+            Simulador.Resultado r = resultados.values().iterator().next();
+            long n = r.rondas();
+            System.out.println("\n=== Resultado: " + mazo.nombre + " ===");
+            System.out.printf("Victorias: %.3f%%%n", 100.0 * r.victorias / n);
+            System.out.printf("Derrotas:  %.3f%%%n", 100.0 * r.derrotas / n);
+            System.out.printf("Empates:   %.3f%%%n", 100.0 * r.empates / n);
+            System.out.printf("EV por ronda: %+.4f ± %.4f unidades (varianza %.3f)%n", r.ev(), r.margen(), r.varianza());
+            System.out.printf("Ventaja de la casa: %.3f%%%n", 100.0 * r.ventajaCasa());
+        } else {
+            System.out.println("\n=== Torneo: " + mazo.nombre + " (" + rondas + " rondas por política, IC 95%) ===");
+            System.out.printf("%-26s %10s %10s %10s %10s%n", "Política", "EV/ronda", "±", "Varianza", "Casa");
+            for (Map.Entry<PoliticaJugador, Simulador.Resultado> e : resultados.entrySet()) {
+                Simulador.Resultado r = e.getValue();
+                System.out.printf("%-26s %+10.4f %10.4f %10.3f %9.3f%%%n", e.getKey().nombre(),
+                    r.ev(), r.margen(), r.varianza(), 100.0 * r.ventajaCasa());
+            }
+        }
+        long total = rondas * resultados.size();
+        System.out.printf("%d rondas en %.2f s (%.0f rondas/s)%n", total, segundos, total / segundos);
+    }
+
+    /** Lee un número positivo; una línea vacía o inválida usa el valor por defecto */
+    static long leerNumero(Consola in, long porDefecto) {
+        String linea = in.leerLinea().trim();
         try {
-            // Iniciar descubrimiento de red SOLO cuando creamos partida
-            discovery = new NetworkDiscovery();
-            discovery.start();
-            
-            System.out.println("\nEsperando jugador...");
-            ServerSocket servidor = new ServerSocket(PUERTO_JUEGO);
-            servidor.setSoTimeout(TIMEOUT_SERVIDOR);
-            
-            Socket cliente = servidor.accept();
+            long valor = Long.parseLong(linea);
+            return valor > 0 ? valor : porDefecto;
+        } catch (NumberFormatException e) {
+            return porDefecto;
+        }
+    }
+
+    /** Como leerNumero, pero un valor fuera de [minimo, maximo] se ajusta al límite más cercano */
+    static long leerNumero(Consola in, long porDefecto, long minimo, long maximo) {
+        long valor = leerNumero(in, porDefecto);
+        long ajustado = Math.max(minimo, Math.min(maximo, valor));
+        if (ajustado != valor) System.out.println("Fuera de rango (" + minimo + " a " + maximo + "), se usa " + ajustado + ".");
+        return ajustado;
+    }
+
+    /** ----- Motor del dealer: distribución exacta de su total final ----- */
+    /**
+     * Recorre todas las secuencias de cartas que puede robar el dealer, quitando
+     * cada carta de la composición restante, con la misma regla que el juego:
+     * roba mientras su mejor total sea menor que DEALER_STAND_VALUE.
+     *
+     * Cada consulta se memoriza con una clave compacta (composición + carta visible
+     * en un long), así que repetirla sobre el mismo estado del shoe es O(1). Dentro
+     * de una consulta, los subestados se memorizan por las cartas ya robadas.
+     */
+    static final class MotorDealer {
+        /** Índices de la distribución: 0 = DEALER_STAND_VALUE ... , último = se pasa */
+        static final int RESULTADOS = BLACKJACK_TARGET - DEALER_STAND_VALUE + 2;
+        static final int BUST = RESULTADOS - 1;
+        /** Límite de la clave compacta: hasta 8 mazos */
+        static final int MAX_MAZOS = 8;
+
+        private static final int BASE_RANGO = 4 * MAX_MAZOS + 1;  // 0..32 por valor 1..9
+        private static final int BASE_DIEZ = 16 * MAX_MAZOS + 1;  // 0..128 dieces y figuras
+        private static final int LIMITE_MEMO = 100_000;
+
+        /** Motor compartido por el consejero y las mesas */
+        static final MotorDealer COMPARTIDO = new MotorDealer();
+
+        private final ConcurrentHashMap<Long, double[]> memo = new ConcurrentHashMap<>();
+        private final ThreadLocal<Calculo> calculos = ThreadLocal.withInitial(Calculo::new);
+
+        /**
+         * @param upcardValor  valor de la carta visible (1 = As, 10 = figuras)
+         * @param composicion  cartas que quedan por valor, índices 1..10 (sin la visible)
+         * @return distribución compartida: no modificar
+         */
+        double[] distribucion(int upcardValor, int[] composicion) {
+            long clave = clave(upcardValor, composicion);
+            double[] d = memo.get(clave);
+            if (d == null) {
+                d = calculos.get().calcular(upcardValor, composicion);
+                if (memo.size() >= LIMITE_MEMO) memo.clear(); // Shoes viejos ya no se consultan
+                memo.put(clave, d);
+            }
+            return d;
+        }
+
+        /** Probabilidad de que el dealer se pase */
+        double probabilidadBust(int upcardValor, int[] composicion) {
+            return distribucion(upcardValor, composicion)[BUST];
+        }
+
+        /** Composición en base mixta: 33^9 * 129 * 11 cabe en un long */
+        static long clave(int upcardValor, int[] composicion) {
+            long clave = 0;
+            for (int v = 1; v <= 9; v++) {
+                if (composicion[v] < 0 || composicion[v] >= BASE_RANGO) {
+                    throw new IllegalArgumentException("Composición fuera de rango (máximo " + MAX_MAZOS + " mazos)");
+                }
+                clave = clave * BASE_RANGO + composicion[v];
+            }
+            if (composicion[10] < 0 || composicion[10] >= BASE_DIEZ) {
+                throw new IllegalArgumentException("Composición fuera de rango (máximo " + MAX_MAZOS + " mazos)");
+            }
+            clave = clave * BASE_DIEZ + composicion[10];
+            return clave * 11 + upcardValor;
+        }
+
+        /** Composición de un shoe completo de N mazos, por valor 1..10 */
+        static int[] composicionCompleta(int mazos) {
+            int[] comp = new int[11];
+            for (int v = 1; v <= 9; v++) comp[v] = 4 * mazos;
+            comp[10] = 16 * mazos; // 10, J, Q, K
+            return comp;
+        }
+
+        /**
+         * Estado de trabajo de un hilo. Los subestados de una consulta se identifican
+         * por las cartas que ya robó el dealer (5 bits por valor); se guardan en una
+         * tabla de direccionamiento abierto que se invalida cambiando de generación.
+         */
+        private static final class Calculo {
+            private static final int CAPACIDAD = 1 << 13; // sobra: el dealer tiene < 2000 subestados
+            private static final int MASCARA = CAPACIDAD - 1;
+
+            private final int[] comp = new int[11];
+            private final long[] claves = new long[CAPACIDAD];
+            private final int[] generaciones = new int[CAPACIDAD];
+            private final double[] valores = new double[CAPACIDAD * RESULTADOS];
+            private int generacion;
+            private int usados;
+
+            double[] calcular(int upcardValor, int[] composicion) {
+                System.arraycopy(composicion, 0, comp, 0, comp.length);
+                int restantes = 0;
+                for (int v = 1; v <= 10; v++) restantes += comp[v];
+                generacion++;
+                usados = 0;
+                int raiz = resolver(restantes, upcardValor, upcardValor == 1 ? 1 : 0, 0L);
+                return Arrays.copyOfRange(valores, raiz * RESULTADOS, (raiz + 1) * RESULTADOS);
+            }
+
+            /** Deja la distribución desde este estado en valores[slot]; devuelve el slot */
+            private int resolver(int restantes, int duro, int ases, long robadas) {
+                int slot = (int) (mezclar(robadas) & MASCARA);
+                while (generaciones[slot] == generacion) {
+                    if (claves[slot] == robadas) return slot;
+                    slot = (slot + 1) & MASCARA;
+                }
+                if (++usados > CAPACIDAD * 3 / 4) throw new IllegalStateException("Tabla del motor del dealer llena");
+                generaciones[slot] = generacion;
+                claves[slot] = robadas;
+                int base = slot * RESULTADOS;
+                Arrays.fill(valores, base, base + RESULTADOS, 0.0);
+
+                for (int v = 1; v <= 10; v++) {
+                    if (comp[v] == 0) continue;
+                    double p = (double) comp[v] / restantes;
+                    int nuevoDuro = duro + v;
+                    int nuevosAses = ases + (v == 1 ? 1 : 0);
+                    int mejor = nuevosAses > 0 && nuevoDuro + 10 <= BLACKJACK_TARGET ? nuevoDuro + 10 : nuevoDuro;
+                    if (mejor >= DEALER_STAND_VALUE) {
+                        valores[base + (mejor > BLACKJACK_TARGET ? BUST : mejor - DEALER_STAND_VALUE)] += p;
+                        continue;
+                    }
+                    comp[v]--;
+                    int hijo = resolver(restantes - 1, nuevoDuro, nuevosAses, robadas + (1L << (5 * (v - 1))));
+                    comp[v]++;
+                    int baseHijo = hijo * RESULTADOS;
+                    for (int i = 0; i < RESULTADOS; i++) valores[base + i] += p * valores[baseHijo + i];
+                }
+                return slot;
+            }
+
+            private static long mezclar(long x) {
+                x *= 0x9E3779B97F4A7C15L;
+                return x ^ (x >>> 29);
+            }
+        }
+    }
+
+    /** ----- Estrategia básica: tablas de EV precalculadas ----- */
+    /**
+     * Para cada total del jugador (duro o suave) y cada carta visible del dealer
+     * guarda el valor esperado de plantarse y de pedir jugando óptimo después.
+     * Se calcula una vez por cantidad de mazos, queda en memoria y se guarda en
+     * un archivo para que el siguiente arranque solo tenga que leerlo.
+     */
+    static final class Estrategia {
+        enum Accion {
+            HIT('h'), STAND('s'), DOUBLE('d'), SPLIT('p'), SURRENDER('r');
+
+            final char letra; // la tecla del jugador
+
+            Accion(char letra) {
+                this.letra = letra;
+            }
+        }
+
+        private static final int MAGICO = 0x424A5354; // "BJST"
+        private static final int VERSION = 2;
+        private static final double EV_RENDIRSE = -0.5;
+        private static final int TOTALES = BLACKJACK_TARGET + 1;
+        private static final Map<Integer, Estrategia> CACHE = new ConcurrentHashMap<>();
+
+        private final int mazos;
+        // [upcard 1..10][suave 0/1][total 0..21]
+        private final float[][][] evStand = new float[11][2][TOTALES];
+        private final float[][][] evHit = new float[11][2][TOTALES];
+        private final float[][][] evDoblar = new float[11][2][TOTALES];
+        // [upcard 1..10][valor del par 1..10]: las dos manos, doblando después de dividir
+        private final float[][] evDividir = new float[11][11];
+
+        private Estrategia(int mazos) {
+            this.mazos = mazos;
+        }
+
+        /** Tablas para un shoe de N mazos: de memoria, del archivo o calculadas */
+        static Estrategia para(int mazos) {
+            return CACHE.computeIfAbsent(mazos, Estrategia::cargarOCalcular);
+        }
+
+        static File archivo(int mazos) {
+            return new File("estrategia_" + mazos + "mazos.dat");
+        }
+
+        private static Estrategia cargarOCalcular(int mazos) {
+            File f = archivo(mazos);
+            if (f.isFile()) {
+                try {
+                    return leer(f, mazos);
+                } catch (IOException e) {
+                    // Archivo de otra versión o dañado: se recalcula
+                }
+            }
+            Estrategia e = calcular(mazos);
+            try {
+                e.guardar(f);
+            } catch (IOException ex) {
+                // Sin permiso de escritura: se usa solo en memoria
+            }
+            return e;
+        }
+
+        /** Enumeración exacta sobre la composición del shoe, sin la carta visible del dealer */
+        static Estrategia calcular(int mazos) {
+            Estrategia e = new Estrategia(mazos);
+            for (int up = 1; up <= 10; up++) {
+                int[] comp = MotorDealer.composicionCompleta(mazos);
+                comp[up]--;
+                double[] dealer = MotorDealer.COMPARTIDO.distribucion(up, comp);
+                int restantes = 0;
+                for (int v = 1; v <= 10; v++) restantes += comp[v];
+                double[] p = new double[11];
+                for (int v = 1; v <= 10; v++) p[v] = (double) comp[v] / restantes;
+                e.llenar(up, dealer, p);
+            }
+            return e;
+        }
+
+        private void llenar(int up, double[] dealer, double[] p) {
+            float[][] stand = evStand[up];
+            float[][] hit = evHit[up];
+            for (int t = 4; t <= BLACKJACK_TARGET; t++) {
+                stand[0][t] = stand[1][t] = (float) evPlantarse(t, dealer);
+            }
+            // Orden de cálculo: cada estado solo depende de estados ya calculados
+            for (int t = BLACKJACK_TARGET; t >= 11; t--) hit[0][t] = (float) evPedir(t, false, p, up);
+            for (int t = BLACKJACK_TARGET; t >= 12; t--) hit[1][t] = (float) evPedir(t, true, p, up);
+            for (int t = 10; t >= 4; t--) hit[0][t] = (float) evPedir(t, false, p, up);
+            for (int t = 4; t <= BLACKJACK_TARGET; t++) evDoblar[up][0][t] = (float) (2 * evUnaCarta(t, false, p, up));
+            for (int t = 12; t <= BLACKJACK_TARGET; t++) evDoblar[up][1][t] = (float) (2 * evUnaCarta(t, true, p, up));
+            for (int v = 1; v <= 10; v++) evDividir[up][v] = (float) (2 * evManoDividida(v, p, up));
+        }
+
+        /** Pide exactamente una carta y se planta (doblar, o un As dividido) */
+        private double evUnaCarta(int total, boolean suave, double[] p, int up) {
+            double ev = 0;
+            for (int v = 1; v <= 10; v++) {
+                int nuevo = total + v;
+                boolean nuevoSuave = suave;
+                if (v == 1 && !suave && total + 11 <= BLACKJACK_TARGET) {
+                    nuevo = total + 11;
+                    nuevoSuave = true;
+                }
+                if (nuevo > BLACKJACK_TARGET && nuevoSuave) {
+                    nuevo -= 10;
+                    nuevoSuave = false;
+                }
+                ev += p[v] * (nuevo > BLACKJACK_TARGET ? -1 : evStand[up][nuevoSuave ? 1 : 0][nuevo]);
+            }
+            return ev;
+        }
+
+        /**
+         * Una de las dos manos tras dividir un par de valor v: recibe su segunda
+         * carta y se juega de la mejor forma, doblando si conviene. Los Ases
+         * reciben una sola carta. Sin contar nuevas divisiones ni las cartas
+         * del par que salen del shoe: una aproximación que basta para decidir.
+         */
+        private double evManoDividida(int v, double[] p, int up) {
+            if (v == 1) return evUnaCarta(11, true, p, up);
+            double ev = 0;
+            for (int c = 1; c <= 10; c++) {
+                boolean suave = c == 1;
+                int total = v + (suave ? 11 : c);
+                int s = suave ? 1 : 0;
+                ev += p[c] * Math.max(mejorEv(up, suave, total), evDoblar[up][s][total]);
+            }
+            return ev;
+        }
+
+        private static double evPlantarse(int total, double[] dealer) {
+            double ev = dealer[MotorDealer.BUST];
+            for (int i = 0; i < MotorDealer.BUST; i++) {
+                int d = DEALER_STAND_VALUE + i;
+                if (total > d) ev += dealer[i];
+                else if (total < d) ev -= dealer[i];
+            }
+            return ev;
+        }
+
+        private double evPedir(int total, boolean suave, double[] p, int up) {
+            double ev = 0;
+            for (int v = 1; v <= 10; v++) {
+                int nuevo = total + v;
+                boolean nuevoSuave = suave;
+                if (v == 1 && !suave && total + 11 <= BLACKJACK_TARGET) {
+                    nuevo = total + 11;
+                    nuevoSuave = true;
+                }
+                if (nuevo > BLACKJACK_TARGET && nuevoSuave) {
+                    nuevo -= 10; // El As pasa a valer 1
+                    nuevoSuave = false;
+                }
+                ev += p[v] * (nuevo > BLACKJACK_TARGET ? -1 : mejorEv(up, nuevoSuave, nuevo));
+            }
+            return ev;
+        }
+
+        private double mejorEv(int up, boolean suave, int total) {
+            int s = suave ? 1 : 0;
+            return Math.max(evStand[up][s][total], evHit[up][s][total]);
+        }
+
+        /** Valor de la carta visible: 1 para el As, 10 para las figuras */
+        private static int valorUpcard(Card upcard) {
+            return upcard.blackjackValue();
+        }
+
+        double evStand(int total, boolean suave, Card upcard) {
+            return evStand[valorUpcard(upcard)][suave ? 1 : 0][total];
+        }
+
+        double evHit(int total, boolean suave, Card upcard) {
+            return evHit[valorUpcard(upcard)][suave ? 1 : 0][total];
+        }
+
+        /** Para las políticas: upcard es el valor 1..10 de la carta visible */
+        boolean pedir(int total, boolean suave, int upcard) {
+            int s = suave ? 1 : 0;
+            return evHit[upcard][s][total] > evStand[upcard][s][total];
+        }
+
+        Accion accion(int total, boolean suave, Card upcard) {
+            return evHit(total, suave, upcard) > evStand(total, suave, upcard) ? Accion.HIT : Accion.STAND;
+        }
+
+        /**
+         * La jugada de mayor EV para una ManoCompacta entre las que admite
+         * (Manos.PUEDE_*); upcard es el valor 1..10 de la carta visible.
+         */
+        Accion jugada(int mano, int upcard, int permitidas) {
+            int total = ManoCompacta.total(mano);
+            int s = ManoCompacta.esSuave(mano) ? 1 : 0;
+            Accion mejor = evHit[upcard][s][total] > evStand[upcard][s][total] ? Accion.HIT : Accion.STAND;
+            double ev = Math.max(evHit[upcard][s][total], evStand[upcard][s][total]);
+            if ((permitidas & Manos.PUEDE_DOBLAR) != 0 && evDoblar[upcard][s][total] > ev) {
+                mejor = Accion.DOUBLE;
+                ev = evDoblar[upcard][s][total];
+            }
+            // Un par suma el doble de su valor con los Ases como 1
+            if ((permitidas & Manos.PUEDE_DIVIDIR) != 0 && evDividir[upcard][ManoCompacta.duro(mano) / 2] > ev) {
+                mejor = Accion.SPLIT;
+                ev = evDividir[upcard][ManoCompacta.duro(mano) / 2];
+            }
+            if ((permitidas & Manos.PUEDE_RENDIRSE) != 0 && EV_RENDIRSE > ev) mejor = Accion.SURRENDER;
+            return mejor;
+        }
+
+        /**
+         * Texto para mostrar junto al prompt del jugador. Si se conoce lo que queda
+         * en el shoe (vista del jugador: incluye la carta oculta del dealer), agrega
+         * la probabilidad exacta de que el dealer se pase con esa composición.
+         */
+        String consejo(int estado, int permitidas, Card upcard, int[] composicion) {
+            int total = ManoCompacta.total(estado);
+            boolean suave = ManoCompacta.esSuave(estado);
+            int up = valorUpcard(upcard);
+            int s = suave ? 1 : 0;
+            String texto = String.format("Consejo: %s (EV plantarse %+.3f, pedir %+.3f",
+                jugada(estado, up, permitidas), evStand(total, suave, upcard), evHit(total, suave, upcard));
+            if ((permitidas & Manos.PUEDE_DOBLAR) != 0) texto += String.format(", doblar %+.3f", evDoblar[up][s][total]);
+            if ((permitidas & Manos.PUEDE_DIVIDIR) != 0) {
+                texto += String.format(", dividir %+.3f", evDividir[up][ManoCompacta.duro(estado) / 2]);
+            }
+            texto += ")";
+            if (composicion != null) {
+                double bust = MotorDealer.COMPARTIDO.probabilidadBust(valorUpcard(upcard), composicion);
+                texto += String.format(" | con este shoe el dealer se pasa %.1f%%", 100 * bust);
+            }
+            return texto;
+        }
+
+        private void guardar(File f) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(f)))) {
+                out.writeInt(MAGICO);
+                out.writeByte(VERSION);
+                out.writeByte(mazos);
+                out.writeByte(DEALER_STAND_VALUE);
+                for (int up = 1; up <= 10; up++) {
+                    for (int s = 0; s < 2; s++) {
+                        for (int t = 0; t < TOTALES; t++) {
+                            out.writeFloat(evStand[up][s][t]);
+                            out.writeFloat(evHit[up][s][t]);
+                            out.writeFloat(evDoblar[up][s][t]);
+                        }
+                    }
+                    for (int v = 1; v <= 10; v++) out.writeFloat(evDividir[up][v]);
+                }
+            }
+        }
+
+        private static Estrategia leer(File f, int mazos) throws IOException {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(f)))) {
+                if (in.readInt() != MAGICO || in.readByte() != VERSION
+                        || in.readByte() != mazos || in.readByte() != DEALER_STAND_VALUE) {
+                    throw new IOException("Tablas de estrategia con otra configuración");
+                }
+                Estrategia e = new Estrategia(mazos);
+                for (int up = 1; up <= 10; up++) {
+                    for (int s = 0; s < 2; s++) {
+                        for (int t = 0; t < TOTALES; t++) {
+                            e.evStand[up][s][t] = in.readFloat();
+                            e.evHit[up][s][t] = in.readFloat();
+                            e.evDoblar[up][s][t] = in.readFloat();
+                        }
+                    }
+                    for (int v = 1; v <= 10; v++) e.evDividir[up][v] = in.readFloat();
+                }
+                return e;
+            }
+        }
+    }
+
+    static void alternarConsejero() {
+        consejero = !consejero;
+        if (consejero) {
+            long inicio = System.nanoTime();
+            String origen = Estrategia.CACHE.containsKey(MAZOS_SHOE) ? "en memoria"
+                : Estrategia.archivo(MAZOS_SHOE).isFile() ? "leídas del archivo" : "calculadas";
+            Estrategia.para(MAZOS_SHOE);
+            System.out.printf("Consejero activado (tablas %s, %.0f ms).%n",
+                origen, (System.nanoTime() - inicio) / 1e6);
+        } else {
+            System.out.println("Consejero desactivado.");
+        }
+    }
+
+    /** ----- Historial: diario binario de solo-agregar, mapeado en memoria ----- */
+    /**
+     * Cada evento (carta repartida, HIT, STAND, resultado) es un registro de 32 bytes.
+     * Un hilo reserva su lugar con un getAndAdd sobre el cursor y escribe directo en
+     * el archivo mapeado, sin candados ni llamadas al sistema. El tipo se escribe al
+     * final: un registro con tipo 0 todavía no se completó y la reproducción lo salta.
+     *
+     * Registro: sesión (long), hora en ms (long), mesa (int), ronda (int),
+     * asiento, carta, resultado, total (bytes), 3 bytes libres y el tipo.
+     */
+    static final class Historial {
+        static final byte RONDA = 1;
+        static final byte CARTA = 2;
+        static final byte HIT = 3;
+        static final byte STAND = 4;
+        static final byte RESULTADO = 5;
+        static final byte DOBLAR = 6;
+        static final byte DIVIDIR = 7;
+        static final byte RENDIRSE = 8;
+        static final byte SEMILLA = 9; // dos registros: la semilla va en el lugar de la hora
+        static final byte RONDA_SOLA = 10; // ronda de un solo asiento: sin CARTA, las cartas salen de la semilla
+
+        /** Asiento del dealer en los registros */
+        static final int DEALER = -1;
+
+        static final int TAM_REGISTRO = 32;
+        private static final int REGISTROS_POR_SEGMENTO = 1 << 19;
+        private static final long TAM_SEGMENTO = (long) TAM_REGISTRO * REGISTROS_POR_SEGMENTO; // 16 MB
+        private static final int MAX_SEGMENTOS = 1024;
+        private static final File DIRECTORIO = new File("historial");
+
+        private static volatile Historial global;
+
+        private final File directorio;
+        private final long sesion = System.currentTimeMillis();
+        private final AtomicLong cursor = new AtomicLong();
+        private final AtomicInteger mesas = new AtomicInteger();
+        private final AtomicBoolean avisoLleno = new AtomicBoolean();
+        private final AtomicReferenceArray<MappedByteBuffer> segmentos =
+            new AtomicReferenceArray<>(MAX_SEGMENTOS);
+        private final FileChannel[] canales = new FileChannel[MAX_SEGMENTOS]; // abiertos: sostienen el candado
+        private int ultimoArchivo = -1; // número del último segmento tomado
+
+        private Historial(File directorio) {
+            this.directorio = directorio;
+            directorio.mkdirs();
+            // El primer segmento se toma ya: dos procesos en la misma carpeta no pueden elegir el mismo
+            try {
+                long inicio = reclamar(0, false);
+                if (inicio >= 0) cursor.set(inicio);
+            } catch (IOException e) {
+                System.out.println("No se pudo abrir el historial: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Toma el primer segmento desde 'desde' que no tenga abierto otro
+         * proceso y deja su canal en canales[n] con el candado puesto; devuelve
+         * la posición del primer registro libre, o -1 si no hay lugar. El
+         * candado cubre un byte lejos de los registros, así que quien solo lee
+         * el diario (también en Windows) no choca con él. Un segmento que dejó
+         * otra ejecución se sigue llenando después de su último registro; con
+         * 'vacio' solo sirve uno sin registros, porque el cursor no salta.
+         */
+        private long reclamar(int n, boolean vacio) throws IOException {
+            if (n >= MAX_SEGMENTOS) return -1;
+            for (int numero = ultimoArchivo + 1; ; numero++) {
+                File f = new File(directorio, String.format("segmento-%05d.bj", numero));
+                FileChannel canal = FileChannel.open(f.toPath(), java.nio.file.StandardOpenOption.CREATE,
+                    java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE);
+                long libre;
+                try {
+                    libre = canal.tryLock(Long.MAX_VALUE - 1, 1, false) == null ? TAM_SEGMENTO : finDeRegistros(canal);
+                } catch (OverlappingFileLockException e) {
+                    libre = TAM_SEGMENTO; // Lo tiene este mismo proceso
+                } catch (IOException e) {
+                    canal.close();
+                    throw e;
+                }
+                if (libre >= TAM_SEGMENTO || (vacio && libre > 0)) {
+                    canal.close(); // Lo usa otro proceso, o ya no tiene lugar
+                    continue;
+                }
+                canales[n] = canal;
+                ultimoArchivo = numero;
+                return (long) n * TAM_SEGMENTO + libre;
+            }
+        }
+
+        /** Posición después del último registro completo del archivo */
+        private static long finDeRegistros(FileChannel canal) throws IOException {
+            ByteBuffer bloque = ByteBuffer.allocate(TAM_REGISTRO * 1024);
+            long hasta = Math.min(canal.size(), TAM_SEGMENTO) / TAM_REGISTRO * TAM_REGISTRO;
+            while (hasta > 0) {
+                long desde = Math.max(0, hasta - bloque.capacity());
+                bloque.clear().limit((int) (hasta - desde));
+                while (bloque.hasRemaining() && canal.read(bloque, desde + bloque.position()) > 0) {
+                    // read() puede devolver menos de lo pedido
+                }
+                for (int i = (int) (hasta - desde) - TAM_REGISTRO; i >= 0; i -= TAM_REGISTRO) {
+                    if (bloque.get(i + TAM_REGISTRO - 1) != 0) return desde + i + TAM_REGISTRO;
+                }
+                hasta = desde;
+            }
+            return 0;
+        }
+
+        /** Diario del proceso; se abre al primer uso */
+        static Historial global() {
+            Historial h = global;
+            if (h == null) {
+                synchronized (Historial.class) {
+                    h = global;
+                    if (h == null) {
+                        h = new Historial(DIRECTORIO);
+                        final Historial cerrar = h;
+                        Runtime.getRuntime().addShutdownHook(new Thread(cerrar::forzar));
+                        global = h;
+                    }
+                }
+            }
+            return h;
+        }
+
+        /** Registro de eventos para una mesa nueva */
+        RegistroMesa nuevaMesa() {
+            return new RegistroMesa(this, mesas.incrementAndGet());
+        }
+
+        void registrar(int mesa, int ronda, byte tipo, int asiento, int carta, int resultado, int total) {
+            long pos = cursor.getAndAdd(TAM_REGISTRO);
+            MappedByteBuffer b = segmento((int) (pos / TAM_SEGMENTO));
+            if (b == null) { // Diario lleno o sin disco: el juego sigue igual
+                descartar();
+                return;
+            }
+            int i = (int) (pos % TAM_SEGMENTO);
+            b.putLong(i, sesion);
+            b.putLong(i + 8, System.currentTimeMillis());
+            b.putInt(i + 16, mesa);
+            b.putInt(i + 20, ronda);
+            b.put(i + 24, (byte) asiento);
+            b.put(i + 25, (byte) carta);
+            b.put(i + 26, (byte) resultado);
+            b.put(i + 27, (byte) total);
+            publicar(b, i, tipo);
+        }
+
+        /** Un registro que lleva 8 bytes de datos donde los demás llevan la hora */
+        void registrarDato(int mesa, int ronda, byte tipo, int parte, long dato) {
+            long pos = cursor.getAndAdd(TAM_REGISTRO);
+            MappedByteBuffer b = segmento((int) (pos / TAM_SEGMENTO));
+            if (b == null) {
+                descartar();
+                return;
+            }
+            int i = (int) (pos % TAM_SEGMENTO);
+            b.putLong(i, sesion);
+            b.putLong(i + 8, dato);
+            b.putInt(i + 16, mesa);
+            b.putInt(i + 20, ronda);
+            b.put(i + 24, (byte) parte);
+            publicar(b, i, tipo);
+        }
+
+        /**
+         * El tipo va último y marca el registro como completo: se escribe como el
+         * int de los bytes 28..31 (big-endian, así el tipo queda en el último byte
+         * y 28..30 en cero) con una escritura release, que no puede adelantarse a
+         * los datos. Con Java 8 no hay VarHandle y una escritura volatile hace de
+         * barrera antes del tipo.
+         */
+        private static void publicar(MappedByteBuffer b, int i, byte tipo) {
+            if (ESCRITURA_RELEASE != null) {
+                try {
+                    ESCRITURA_RELEASE.invokeExact((ByteBuffer) b, i + TAM_REGISTRO - 4, tipo & 0xFF);
+                    return;
+                } catch (Throwable t) {
+                    throw new IllegalStateException(t);
+                }
+            }
+            barrera = i;
+            b.putInt(i + TAM_REGISTRO - 4, tipo & 0xFF);
+        }
+
+        /** VarHandle.setRelease sobre un int de un ByteBuffer (Java 9+), o null en Java 8 */
+        private static final MethodHandle ESCRITURA_RELEASE = escrituraRelease();
+        @SuppressWarnings("unused")
+        private static volatile int barrera;
+
+        private static MethodHandle escrituraRelease() {
+            try {
+                Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+                Class<?> modos = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+                Object vh = MethodHandles.class.getMethod("byteBufferViewVarHandle", Class.class, ByteOrder.class)
+                    .invoke(null, int[].class, ByteOrder.BIG_ENDIAN);
+                Object setRelease = modos.getMethod("valueOf", String.class).invoke(null, "SET_RELEASE");
+                return (MethodHandle) varHandle.getMethod("toMethodHandle", modos).invoke(vh, setRelease);
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        /** Registro que no entró en el diario: se cuenta, y se avisa la primera vez */
+        private void descartar() {
+            if (avisoLleno.getAndSet(true)) Metricas.HISTORIAL_DESCARTADOS.sumar();
+            else Metricas.error(Metricas.HISTORIAL_DESCARTADOS, new IOException("Historial lleno o sin disco: se descartan registros"));
+        }
+
+        /**
+         * Mapea el segmento la primera vez que alguien escribe en él; el primero
+         * ya se tomó al abrir el diario, los siguientes se toman aquí.
+         */
+        private MappedByteBuffer segmento(int n) {
+            if (n >= MAX_SEGMENTOS) return null;
+            MappedByteBuffer b = segmentos.get(n);
+            if (b != null) return b;
+            synchronized (segmentos) {
+                b = segmentos.get(n);
+                if (b == null) {
+                    try {
+                        if (canales[n] == null && (n == 0 || reclamar(n, true) < 0)) return null;
+                        b = canales[n].map(FileChannel.MapMode.READ_WRITE, 0, TAM_SEGMENTO);
+                    } catch (IOException e) {
+                        System.out.println("No se pudo abrir el historial: " + e.getMessage());
+                        return null;
+                    }
+                    segmentos.set(n, b);
+                }
+            }
+            return b;
+        }
+
+        /** Baja a disco lo escrito (al salir del programa) */
+        void forzar() {
+            for (int n = 0; n < MAX_SEGMENTOS; n++) {
+                MappedByteBuffer b = segmentos.get(n);
+                if (b != null) b.force();
+            }
+        }
+
+        private static List<File> archivos(File directorio) {
+            File[] lista = directorio.listFiles((d, nombre) -> nombre.startsWith("segmento-") && nombre.endsWith(".bj"));
+            List<File> archivos = new ArrayList<>(lista == null ? Collections.<File>emptyList() : Arrays.asList(lista));
+            Collections.sort(archivos);
+            return archivos;
+        }
+
+        /** ----- Reproducción: reconstruye cada ronda a partir de los registros ----- */
+        static class Ronda {
+            final long sesion;
+            final int mesa;
+            final int ronda;
+            final long inicio;
+            final Hand dealer = new Hand();
+            // Las jugadas se vuelven a aplicar en orden, como en la mesa, para separar las manos divididas
+            final Map<Integer, Manos> manos = new TreeMap<>();
+            final Map<Integer, String> acciones = new TreeMap<>();
+            final Map<Integer, String> resultados = new TreeMap<>();
+            Semilla semilla;    // la del shoe, si esta ronda es la primera tras barajar
+            int verificadas;    // cartas que coinciden con las que da la semilla
+            boolean alterada;   // alguna carta no coincide
+            // Ronda de un solo asiento: las cartas se vuelven a sacar del shoe al aplicar las jugadas
+            private Shoe rehacer;
+            private boolean decidida;   // blackjack al repartir: nadie pidió cartas
+            private boolean dealerJugo;
+            private int liquidadas;     // manos con su RESULTADO ya comparado
+            int rehechas;               // cartas sacadas de la semilla
+            boolean sinCartas;          // RONDA_SOLA sin la semilla del shoe: no hay cartas que mostrar
+
+            Ronda(long sesion, int mesa, int ronda, long inicio) {
+                this.sesion = sesion;
+                this.mesa = mesa;
+                this.ronda = ronda;
+                this.inicio = inicio;
+            }
+
+            private Manos mano(int asiento) {
+                return manos.computeIfAbsent(asiento, a -> new Manos());
+            }
+
+            private void carta(int asiento, int code) {
+                if (asiento == DEALER) {
+                    dealer.add(Card.of(code));
+                    return;
+                }
+                // Un registro fuera de orden (archivo cortado) va a la última mano en vez de romper la reproducción
+                Manos m = mano(asiento);
+                m.agregar(m.terminada() ? m.cantidad() - 1 : m.activa(), code);
+            }
+
+            /** STAND, DOUBLE, SPLIT o SURRENDER sobre la mano activa del asiento */
+            private void jugada(int asiento, String nombre, byte tipo) {
+                accion(asiento, nombre);
+                Manos m = mano(asiento);
+                if (m.terminada()) return;
+                if (tipo == STAND) m.plantarse();
+                else if (tipo == DOBLAR) m.doblar();
+                else if (tipo == DIVIDIR && m.puede(Manos.PUEDE_DIVIDIR)) m.dividir();
+                else if (tipo == RENDIRSE) m.rendirse();
+                if (rehacer == null) return;
+                if (tipo == DOBLAR) m.agregar(sacar());
+                completar(m);
+            }
+
+            /**
+             * Reparte como jugarSingleplayer: asiento, dealer, asiento, dealer.
+             * Las demás cartas salen al aplicar HIT, DOUBLE y SPLIT, y las del
+             * dealer con el primer RESULTADO.
+             */
+            private void rehacer(Shoe shoe, int asiento) {
+                rehacer = shoe;
+                Manos m = mano(asiento);
+                m.agregar(sacar());
+                dealer.add(Card.of(sacar()));
+                m.agregar(sacar());
+                dealer.add(Card.of(sacar()));
+                decidida = Pagos.esNatural(m.estado(0)) || (Pagos.dealerMira(dealer.getCards().get(0).blackjackValue())
+                    && Pagos.esNatural(dealer.getEstado()));
+            }
+
+            private int sacar() {
+                rehechas++;
+                return rehacer.dealCode();
+            }
+
+            private void hit(int asiento) {
+                accion(asiento, "HIT");
+                Manos m = mano(asiento);
+                if (rehacer == null || m.terminada()) return;
+                m.agregar(sacar());
+                completar(m);
+            }
+
+            /** La segunda carta de cada mano dividida, al empezar a jugarla */
+            private void completar(Manos m) {
+                while (m.necesitaCarta()) m.agregar(sacar());
+            }
+
+            /** En una ronda rehecha el total registrado tiene que ser el de las cartas de la semilla */
+            private void liquidar(int asiento, int resultado, int total) {
+                resultado(asiento, resultado);
+                if (rehacer == null) return;
+                Manos m = mano(asiento);
+                if (!decidida && !dealerJugo && m.algunaEnPie()) {
+                    while (dealer.bestBlackjackTotal() < DEALER_STAND_VALUE) dealer.add(Card.of(sacar()));
+                }
+                dealerJugo = true;
+                int i = liquidadas++;
+                if (i >= m.cantidad() || (m.total(i) & 0xFF) != total || m.resultado(i, dealer.getEstado()) != resultado) {
+                    alterada = true;
+                }
+            }
+
+            private void accion(int asiento, String accion) {
+                acciones.merge(asiento, accion, (a, b) -> a + " " + b);
+            }
+
+            private void resultado(int asiento, int resultado) {
+                resultados.merge(asiento, Pagos.texto(resultado).toLowerCase(), (a, b) -> a + ", " + b);
+            }
+
+            @Override
+            public String toString() {
+                StringBuilder sb = new StringBuilder();
+                sb.append(String.format("Mesa %d, ronda %d (%tF %<tT)%n", mesa, ronda, new Date(inicio)));
+                if (!dealer.getCards().isEmpty()) sb.append("  Dealer: ").append(dealer).append(String.format("%n"));
+                for (Map.Entry<Integer, Manos> e : manos.entrySet()) {
+                    int asiento = e.getKey();
+                    sb.append("  Asiento " + asiento + ": ").append(e.getValue());
+                    if (acciones.containsKey(asiento)) sb.append(" [").append(acciones.get(asiento)).append("]");
+                    String r = resultados.get(asiento);
+                    if (r != null) sb.append(" -> ").append(r);
+                    sb.append(String.format("%n"));
+                }
+                if (semilla != null) sb.append("  Shoe nuevo, semilla ").append(semilla).append(String.format("%n"));
+                if (sinCartas) {
+                    sb.append(String.format("  Sin cartas: falta la semilla del shoe para rehacerlas%n"));
+                } else if (rehechas > 0) {
+                    sb.append(alterada ? String.format("  ¡Los resultados no coinciden con las cartas de la semilla del shoe!%n")
+                        : String.format("  Las %d cartas salen de la semilla del shoe%n", rehechas));
+                } else if (alterada) {
+                    sb.append(String.format("  ¡Las cartas no coinciden con la semilla del shoe!%n"));
+                } else if (verificadas > 0) {
+                    sb.append(String.format("  Las %d cartas coinciden con la semilla del shoe%n", verificadas));
+                }
+                return sb.toString();
+            }
+        }
+
+        /**
+         * Lee todos los segmentos del directorio y devuelve las rondas en orden.
+         * Cada mesa con semillas vuelve a barajar su shoe y compara carta por
+         * carta lo registrado con lo que tenía que salir. Las rondas de un solo
+         * asiento no traen cartas: se sacan del shoe y se comparan los totales.
+         */
+        static List<Ronda> reproducir(File directorio) throws IOException {
+            Map<String, Ronda> rondas = new LinkedHashMap<>();
+            Map<String, Shoe> shoes = new HashMap<>();        // por sesión y mesa
+            Map<String, byte[]> semillas = new HashMap<>();   // mitades ya leídas
+            Map<String, Semilla> nuevas = new HashMap<>();    // para anotar en la ronda siguiente
+            for (File f : archivos(directorio)) {
+                try (FileChannel canal = FileChannel.open(f.toPath(), java.nio.file.StandardOpenOption.READ)) {
+                    MappedByteBuffer b = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+                    for (int i = 0; i + TAM_REGISTRO <= b.limit(); i += TAM_REGISTRO) {
+                        byte tipo = b.get(i + TAM_REGISTRO - 1);
+                        if (tipo == 0) continue; // Sin completar o espacio libre
+                        long sesion = b.getLong(i);
+                        int mesa = b.getInt(i + 16);
+                        int numRonda = b.getInt(i + 20);
+                        int asiento = b.get(i + 24);
+                        String deMesa = sesion + "/" + mesa;
+                        if (tipo == SEMILLA) {
+                            // No abre ronda: el barajado ocurre antes de anotar la siguiente
+                            byte[] mitades = semillas.computeIfAbsent(deMesa, k -> new byte[Semilla.BYTES]);
+                            long dato = b.getLong(i + 8);
+                            for (int k = 0; k < 8; k++) mitades[asiento * 8 + k] = (byte) (dato >>> (56 - 8 * k));
+                            if (asiento == 1) {
+                                Semilla semilla = Semilla.de(mitades, 0);
+                                shoes.put(deMesa, Shoe.conSemilla(semilla));
+                                nuevas.put(deMesa, semilla);
+                            }
+                            continue;
+                        }
+                        String clave = deMesa + "/" + numRonda;
+                        Ronda ronda = rondas.get(clave);
+                        if (ronda == null) {
+                            ronda = new Ronda(sesion, mesa, numRonda, b.getLong(i + 8));
+                            rondas.put(clave, ronda);
+                        }
+                        Shoe shoe = shoes.get(deMesa);
+                        switch (tipo) {
+                            case RONDA:
+                                if (shoe != null) shoe.prepararRonda();
+                                ronda.semilla = nuevas.remove(deMesa);
+                                break;
+                            case RONDA_SOLA:
+                                ronda.semilla = nuevas.remove(deMesa);
+                                if (shoe == null) {
+                                    ronda.sinCartas = true;
+                                    break;
+                                }
+                                shoe.prepararRonda();
+                                ronda.rehacer(shoe, asiento);
+                                break;
+                            case CARTA:
+                                if (shoe != null) {
+                                    if (shoe.dealCode() == b.get(i + 25)) ronda.verificadas++;
+                                    else ronda.alterada = true;
+                                }
+                                ronda.carta(asiento, b.get(i + 25));
+                                break;
+                            case HIT: ronda.hit(asiento); break;
+                            case STAND: ronda.jugada(asiento, "STAND", tipo); break;
+                            case DOBLAR: ronda.jugada(asiento, "DOUBLE", tipo); break;
+                            case DIVIDIR: ronda.jugada(asiento, "SPLIT", tipo); break;
+                            case RENDIRSE: ronda.jugada(asiento, "SURRENDER", tipo); break;
+                            case RESULTADO: ronda.liquidar(asiento, b.get(i + 26), b.get(i + 27) & 0xFF); break;
+                            default: break;
+                        }
+                    }
+                }
+            }
+            return new ArrayList<>(rondas.values());
+        }
+    }
+
+    /** ----- Eventos de una mesa: numera las rondas y escribe en el historial ----- */
+    static final class RegistroMesa {
+        private final Historial historial;
+        private final int mesa;
+        private int ronda;
+        private int asientoSolo = -1; // >= 0: mesa de un asiento, sin registros de CARTA
+
+        RegistroMesa(Historial historial, int mesa) {
+            this.historial = historial;
+            this.mesa = mesa;
+        }
+
+        int getMesa() { return mesa; }
+
+        /**
+         * Mesa de un solo asiento que reparte en el orden de jugarSingleplayer:
+         * basta con la semilla y las jugadas para rehacer cada carta, así que
+         * las cartas no se anotan.
+         */
+        RegistroMesa soloJugadas(int asiento) {
+            asientoSolo = asiento;
+            return this;
+        }
+
+        void nuevaRonda() {
+            Metricas.RONDAS.sumar();
+            ronda++;
+            if (asientoSolo >= 0) historial.registrar(mesa, ronda, Historial.RONDA_SOLA, asientoSolo, 0, 0, 0);
+            else historial.registrar(mesa, ronda, Historial.RONDA, 0, 0, 0, 0);
+        }
+
+        /** Registra la carta y la devuelve, para usar directo en hand.add(...) */
+        Card carta(int asiento, Card c) {
+            if (asientoSolo < 0) historial.registrar(mesa, ronda, Historial.CARTA, asiento, c.getCode(), 0, 0);
+            return c;
+        }
+
+        void hit(int asiento) { historial.registrar(mesa, ronda, Historial.HIT, asiento, 0, 0, 0); }
+        void stand(int asiento) { historial.registrar(mesa, ronda, Historial.STAND, asiento, 0, 0, 0); }
+        void doblar(int asiento) { historial.registrar(mesa, ronda, Historial.DOBLAR, asiento, 0, 0, 0); }
+        void dividir(int asiento) { historial.registrar(mesa, ronda, Historial.DIVIDIR, asiento, 0, 0, 0); }
+        void rendirse(int asiento) { historial.registrar(mesa, ronda, Historial.RENDIRSE, asiento, 0, 0, 0); }
+
+        /** La semilla de un barajado, en dos registros de 8 bytes */
+        void semilla(Semilla semilla) {
+            byte[] b = new byte[Semilla.BYTES];
+            semilla.copiar(b, 0);
+            ByteBuffer bb = ByteBuffer.wrap(b);
+            historial.registrarDato(mesa, ronda, Historial.SEMILLA, 0, bb.getLong(0));
+            historial.registrarDato(mesa, ronda, Historial.SEMILLA, 1, bb.getLong(8));
+        }
+
+        /** resultado: Pagos.*, uno por mano */
+        void resultado(int asiento, int resultado, int total) {
+            historial.registrar(mesa, ronda, Historial.RESULTADO, asiento, 0, resultado, total);
+        }
+    }
+
+    static void verHistorial(Consola in) {
+        System.out.print("\nNúmero de mesa (Enter para las últimas 10 rondas): ");
+        String linea = in.leerLinea().trim();
+        try {
+            List<Historial.Ronda> rondas = Historial.reproducir(Historial.DIRECTORIO);
+            if (!linea.isEmpty()) {
+                int mesa = Integer.parseInt(linea);
+                List<Historial.Ronda> deMesa = new ArrayList<>();
+                for (Historial.Ronda r : rondas) if (r.mesa == mesa) deMesa.add(r);
+                rondas = deMesa;
+            } else if (rondas.size() > 10) {
+                rondas = rondas.subList(rondas.size() - 10, rondas.size());
+            }
+            if (rondas.isEmpty()) System.out.println("No hay rondas registradas.");
+            for (Historial.Ronda r : rondas) System.out.print(r);
+        } catch (NumberFormatException e) {
+            System.out.println("Opción no válida.");
+        } catch (IOException e) {
+            System.out.println("Error leyendo el historial: " + e.getMessage());
+        }
+    }
+
+    /** ----- Métricas: contadores e histogramas para ver qué hace un host ----- */
+    /**
+     * Registrar no asigna memoria (LongAdder y AtomicLongArray), así que se puede
+     * medir cada HIT. Se leen por JMX (blackjack:type=Metricas) o en texto plano
+     * por HTTP en PUERTO_METRICAS, en el formato que entienden los scrapers.
+     */
+    static final class Contador {
+        final String nombre;
+        final String ayuda;
+        private final LongAdder valor = new LongAdder();
+
+        Contador(String nombre, String ayuda) {
+            this.nombre = nombre;
+            this.ayuda = ayuda;
+        }
+
+        void sumar() { valor.increment(); }
+        void restar() { valor.decrement(); }
+        long valor() { return valor.sum(); }
+    }
+
+    /**
+     * Histograma log-lineal al estilo HDR: cada potencia de dos se divide en
+     * SUBCUBETAS partes, así el error relativo de cualquier percentil es menor a
+     * 1/SUBCUBETAS sin importar si se miden nanosegundos o segundos.
+     */
+    static final class Histograma {
+        private static final int BITS_SUB = 3;
+        private static final int SUBCUBETAS = 1 << BITS_SUB;
+
+        final String nombre;
+        final String ayuda;
+        final String etiqueta; // "" o tipo="HIT"
+        private final AtomicLongArray cubetas = new AtomicLongArray(64 * SUBCUBETAS);
+        private final LongAdder suma = new LongAdder();
+        private final AtomicLong maximo = new AtomicLong();
+
+        Histograma(String nombre, String ayuda, String etiqueta) {
+            this.nombre = nombre;
+            this.ayuda = ayuda;
+            this.etiqueta = etiqueta;
+        }
+
+        void registrar(long valor) {
+            if (valor < 0) valor = 0;
+            cubetas.incrementAndGet(indice(valor));
+            suma.add(valor);
+            long max = maximo.get();
+            while (valor > max && !maximo.compareAndSet(max, valor)) max = maximo.get();
+        }
+
+        /** Registra el tiempo desde inicio (System.nanoTime()) */
+        void desde(long inicio) { registrar(System.nanoTime() - inicio); }
+
+        static int indice(long valor) {
+            if (valor < SUBCUBETAS) return (int) valor;
+            int exp = 63 - Long.numberOfLeadingZeros(valor);
+            int sub = (int) (valor >>> (exp - BITS_SUB)) & (SUBCUBETAS - 1);
+            return (exp - BITS_SUB + 1) * SUBCUBETAS + sub;
+        }
+
+        /** Mayor valor que cae en la cubeta i */
+        static long limite(int i) {
+            if (i < SUBCUBETAS) return i;
+            int exp = i / SUBCUBETAS + BITS_SUB - 1;
+            int sub = i % SUBCUBETAS;
+            long ancho = 1L << (exp - BITS_SUB);
+            return (SUBCUBETAS + sub) * ancho + ancho - 1;
+        }
+
+        long cantidad() {
+            long n = 0;
+            for (int i = 0; i < cubetas.length(); i++) n += cubetas.get(i);
+            return n;
+        }
+
+        long suma() { return suma.sum(); }
+        long maximo() { return maximo.get(); }
+
+        /** Percentil q (0..1); 0 si todavía no hay mediciones */
+        long percentil(double q) {
+            long total = cantidad();
+            if (total == 0) return 0;
+            long objetivo = Math.max(1, (long) Math.ceil(q * total));
+            long acumulado = 0;
+            for (int i = 0; i < cubetas.length(); i++) {
+                acumulado += cubetas.get(i);
+                if (acumulado >= objetivo) return Math.min(limite(i), maximo());
+            }
+            return maximo();
+        }
+    }
+
+    /** Atributos visibles en jconsole / VisualVM */
+    public interface MetricasMBean {
+        long getRondas();
+        double getRondasPorSegundo();
+        long getConexionesActivas();
+        long getMensajesProcesados();
+        long getPaquetesDescubrimiento();
+        long getErroresDescubrimiento();
+        String getUltimoError();
+        double getRepartoP99Micros();
+        double getConteoVerdaderoMaximo();
+        long getGananciaCasa();
+        String getTexto();
+    }
+
+    public static final class Metricas implements MetricasMBean {
+        static final int PUERTO_METRICAS = 5558;
+        private static final double[] CUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+        static final Contador RONDAS = new Contador("blackjack_rondas_total", "Rondas iniciadas en todas las mesas");
+        static final Contador CONEXIONES = new Contador("blackjack_conexiones_activas", "Conexiones de juego abiertas");
+        static final Contador MENSAJES = new Contador("blackjack_mensajes_total", "Mensajes de juego recibidos");
+        static final Contador ESPECTADORES = new Contador("blackjack_espectadores_activos", "Conexiones mirando una mesa");
+        static final Contador RESINCRONIZACIONES = new Contador("blackjack_espectadores_resincronizaciones_total",
+            "Colas de espectadores descartadas por lentas y reemplazadas por una foto de la mesa");
+        static final Contador HISTORIAL_DESCARTADOS = new Contador("blackjack_historial_descartados_total",
+            "Registros del historial descartados porque el diario está lleno o no se pudo abrir");
+        static final Contador EN_SALA = new Contador("blackjack_sala_esperando", "Conexiones esperando en la sala de emparejamiento");
+        static final Contador DESCUBRIMIENTO = new Contador("blackjack_descubrimiento_paquetes_total",
+            "Paquetes UDP de descubrimiento y lobby atendidos");
+        static final Contador ERRORES_DESCUBRIMIENTO = new Contador("blackjack_descubrimiento_errores_total",
+            "Errores en el descubrimiento de red");
+        static final Contador ERRORES_CONEXION = new Contador("blackjack_conexiones_errores_total",
+            "Conexiones cerradas por un error inesperado al atender sus mensajes");
+        static final Histograma REPARTO = new Histograma("blackjack_reparto_ns",
+            "Tiempo de repartir una ronda y codificar las manos", "");
+        static final Histograma EMPAREJAMIENTO = new Histograma("blackjack_emparejamiento_ns",
+            "Espera en la sala desde BUSCAR hasta sentarse en una mesa emparejada", "");
+        /** Espera bloqueado en recibir() hasta cada tipo de mensaje (clientes y host) */
+        static final Histograma[] ESPERA = porTipo("blackjack_espera_mensaje_ns", "Espera hasta recibir el mensaje");
+        /** Tiempo de la mesa procesando cada tipo de mensaje (servidor de mesas) */
+        static final Histograma[] PROCESO = porTipo("blackjack_proceso_mensaje_ns", "Procesamiento del mensaje en la mesa");
+
+        private static final Contador[] CONTADORES = { RONDAS, CONEXIONES, MENSAJES, ESPECTADORES, RESINCRONIZACIONES,
+            EN_SALA, HISTORIAL_DESCARTADOS, DESCUBRIMIENTO, ERRORES_DESCUBRIMIENTO, ERRORES_CONEXION };
+        private static final Metricas GLOBAL = new Metricas();
+        private static HttpServer http;
+
+        private static final long VENTANA_RONDAS = TimeUnit.SECONDS.toNanos(10);
+
+        private volatile String ultimoError = "";
+        // Dos muestras de RONDAS: la tasa se mide desde la más vieja, que tiene entre una y dos
+        // ventanas, así da lo mismo cuántos lean (JMX, HTTP) ni cada cuánto
+        private long muestraNanos = System.nanoTime();
+        private long muestraRondas;
+        private long siguienteNanos = muestraNanos;
+        private long siguienteRondas;
+
+        private Metricas() { }
+
+        private static Histograma[] porTipo(String nombre, String ayuda) {
+            Histograma[] h = new Histograma[Mensaje.ULTIMO + 1];
+            for (int t = 1; t <= Mensaje.ULTIMO; t++) {
+                String tipo = new String(ProtocoloTexto.NOMBRES[t], StandardCharsets.US_ASCII);
+                h[t] = new Histograma(nombre, ayuda, "tipo=\"" + tipo + "\"");
+            }
+            h[Mensaje.DESCONOCIDO] = new Histograma(nombre, ayuda, "tipo=\"DESCONOCIDO\"");
+            return h;
+        }
+
+        static Metricas global() { return GLOBAL; }
+
+        /** Cuenta un error que antes se descartaba en silencio y guarda su texto */
+        static void error(Contador contador, Exception e) {
+            contador.sumar();
+            GLOBAL.ultimoError = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+
+        /**
+         * Registra el MBean y abre el endpoint de texto. Si el puerto está ocupado
+         * (otro host en la misma computadora) sigue solo con JMX.
+         */
+        static synchronized void exponer() {
+            try {
+                ObjectName nombre = new ObjectName("blackjack:type=Metricas");
+                MBeanServer jmx = ManagementFactory.getPlatformMBeanServer();
+                if (!jmx.isRegistered(nombre)) jmx.registerMBean(GLOBAL, nombre);
+            } catch (Exception e) {
+                System.out.println("No se pudo registrar el MBean de métricas: " + e.getMessage());
+            }
+            if (http != null) return;
+            try {
+                http = HttpServer.create(new InetSocketAddress(PUERTO_METRICAS), 0);
+                http.createContext("/metrics", intercambio -> {
+                    byte[] cuerpo = GLOBAL.getTexto().getBytes(StandardCharsets.UTF_8);
+                    intercambio.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    intercambio.sendResponseHeaders(200, cuerpo.length);
+                    try (OutputStream out = intercambio.getResponseBody()) {
+                        out.write(cuerpo);
+                    }
+                });
+                http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "metricas-http");
+                    t.setDaemon(true);
+                    return t;
+                }));
+                http.start();
+                System.out.println("Métricas en http://localhost:" + PUERTO_METRICAS + "/metrics");
+            } catch (IOException e) {
+                http = null;
+                System.out.println("Métricas solo por JMX (puerto " + PUERTO_METRICAS + " ocupado)");
+            }
+        }
+
+        @Override public long getRondas() { return RONDAS.valor(); }
+        @Override public long getConexionesActivas() { return CONEXIONES.valor(); }
+        @Override public long getMensajesProcesados() { return MENSAJES.valor(); }
+        @Override public long getPaquetesDescubrimiento() { return DESCUBRIMIENTO.valor(); }
+        @Override public long getErroresDescubrimiento() { return ERRORES_DESCUBRIMIENTO.valor(); }
+        @Override public String getUltimoError() { return ultimoError; }
+        @Override public double getRepartoP99Micros() { return REPARTO.percentil(0.99) / 1000.0; }
+
+        /** Mesa más favorable al jugador ahora mismo: donde conviene mirar las apuestas */
+        @Override
+        public double getConteoVerdaderoMaximo() {
+            double maximo = 0;
+            for (Conteo c : Conteo.activos()) maximo = Math.max(maximo, c.leer().verdadero());
+            return maximo;
+        }
+
+        /** Fichas ganadas por la casa en todas las mesas desde que arrancó el proceso */
+        @Override public long getGananciaCasa() { return Libro.global().gananciaCasa(); }
+
+        /** Rondas por segundo en los últimos 10 a 20 segundos, sin importar quién más lea */
+        @Override
+        public synchronized double getRondasPorSegundo() {
+            long ahora = System.nanoTime();
+            long rondas = RONDAS.valor();
+            if (ahora - siguienteNanos >= VENTANA_RONDAS) {
+                muestraNanos = siguienteNanos;
+                muestraRondas = siguienteRondas;
+                siguienteNanos = ahora;
+                siguienteRondas = rondas;
+            }
+            long transcurrido = ahora - muestraNanos;
+            return transcurrido > 0 ? (rondas - muestraRondas) * 1e9 / transcurrido : 0;
+        }
+
+        @Override
+        public String getTexto() {
+            StringBuilder sb = new StringBuilder(4096);
+            for (Contador c : CONTADORES) {
+                encabezado(sb, c.nombre, c.ayuda, c == CONEXIONES || c == ESPECTADORES || c == EN_SALA ? "gauge" : "counter");
+                sb.append(c.nombre).append(' ').append(c.valor()).append('\n');
+            }
+            encabezado(sb, "blackjack_rondas_por_segundo", "Rondas por segundo en los últimos 10 a 20 segundos", "gauge");
+            sb.append("blackjack_rondas_por_segundo ").append(getRondasPorSegundo()).append('\n');
+            encabezado(sb, "blackjack_casa_ganancia_fichas", "Fichas ganadas por la casa (negativo si pierde)", "gauge");
+            sb.append("blackjack_casa_ganancia_fichas ").append(getGananciaCasa()).append('\n');
+            resumen(sb, REPARTO, true);
+            if (EMPAREJAMIENTO.cantidad() > 0) resumen(sb, EMPAREJAMIENTO, true);
+            escribirPorTipo(sb, ESPERA);
+            escribirPorTipo(sb, PROCESO);
+            escribirConteos(sb);
+            return sb.toString();
+        }
+
+        /** Una instantánea por mesa, así los cuatro valores de cada línea son coherentes */
+        private static void escribirConteos(StringBuilder sb) {
+            List<Conteo.Instantanea> instantaneas = new ArrayList<>();
+            List<Integer> numeros = new ArrayList<>();
+            for (Conteo c : Conteo.activos()) {
+                instantaneas.add(c.leer());
+                numeros.add(c.mesa);
+            }
+            if (instantaneas.isEmpty()) return;
+            encabezado(sb, "blackjack_conteo", "Conteo corrido por mesa y sistema", "gauge");
+            for (int i = 0; i < instantaneas.size(); i++) {
+                Conteo.Instantanea c = instantaneas.get(i);
+                String mesa = "{mesa=\"" + numeros.get(i) + "\",sistema=";
+                sb.append("blackjack_conteo").append(mesa).append("\"hilo\"} ").append(c.hiLo).append('\n');
+                sb.append("blackjack_conteo").append(mesa).append("\"ko\"} ").append(c.ko).append('\n');
+                sb.append("blackjack_conteo").append(mesa).append("\"omega2\"} ").append(c.omega).append('\n');
+            }
+            encabezado(sb, "blackjack_conteo_verdadero", "Conteo verdadero por mesa (por mazo restante)", "gauge");
+            for (int i = 0; i < instantaneas.size(); i++) {
+                Conteo.Instantanea c = instantaneas.get(i);
+                String mesa = "{mesa=\"" + numeros.get(i) + "\",sistema=";
+                sb.append("blackjack_conteo_verdadero").append(mesa).append("\"hilo\"} ").append(c.verdadero()).append('\n');
+                sb.append("blackjack_conteo_verdadero").append(mesa).append("\"omega2\"} ").append(c.verdaderoOmega()).append('\n');
+            }
+            encabezado(sb, "blackjack_cartas_restantes", "Cartas sin repartir en el shoe de cada mesa", "gauge");
+            for (int i = 0; i < instantaneas.size(); i++) {
+                sb.append("blackjack_cartas_restantes{mesa=\"").append(numeros.get(i)).append("\"} ")
+                  .append(instantaneas.get(i).restantes).append('\n');
+            }
+        }
+
+        private static void escribirPorTipo(StringBuilder sb, Histograma[] porTipo) {
+            boolean primero = true;
+            for (Histograma h : porTipo) {
+                if (h.cantidad() == 0) continue;
+                resumen(sb, h, primero);
+                primero = false;
+            }
+        }
+
+        private static void encabezado(StringBuilder sb, String nombre, String ayuda, String tipo) {
+            sb.append("# HELP ").append(nombre).append(' ').append(ayuda).append('\n');
+            sb.append("# TYPE ").append(nombre).append(' ').append(tipo).append('\n');
+        }
+
+        private static void resumen(StringBuilder sb, Histograma h, boolean conEncabezado) {
+            if (conEncabezado) encabezado(sb, h.nombre, h.ayuda, "summary");
+            String sep = h.etiqueta.isEmpty() ? "" : ",";
+            for (double q : CUANTILES) {
+                sb.append(h.nombre).append('{').append(h.etiqueta).append(sep)
+                  .append("quantile=\"").append(q).append("\"} ").append(h.percentil(q)).append('\n');
+            }
+            String etiquetas = h.etiqueta.isEmpty() ? "" : "{" + h.etiqueta + "}";
+            sb.append(h.nombre).append("_max").append(etiquetas).append(' ').append(h.maximo()).append('\n');
+            sb.append(h.nombre).append("_sum").append(etiquetas).append(' ').append(h.suma()).append('\n');
+            sb.append(h.nombre).append("_count").append(etiquetas).append(' ').append(h.cantidad()).append('\n');
+        }
+    }
+
+    /** ----- Descubrimiento de red ----- */
+    /**
+     * Responde a las búsquedas (BLACKJACK_GAME) como siempre y además anuncia la
+     * partida cada INTERVALO_ANUNCIO por broadcast al puerto del lobby, con los
+     * datos que necesita la lista de partidas: protocolos, versión, mesas y lugares.
+     */
+    static class NetworkDiscovery extends Thread {
+        private volatile boolean running = true;
+        private volatile DatagramSocket socket;
+        private String miIP;
+        private final String protocolos; // Se anuncia junto a la IP, p. ej. "BIN"
+        private final IntSupplier mesas;
+        private final IntSupplier libres;
+        
+        /** Partida de dos jugadores: una mesa con un lugar libre */
+        public NetworkDiscovery() {
+            this("", () -> 1, () -> 1);
+        }
+        
+        public NetworkDiscovery(String protocolos, IntSupplier mesas, IntSupplier libres) {
+            this.protocolos = protocolos;
+            this.mesas = mesas;
+            this.libres = libres;
+            setDaemon(true);
+            try {
+                miIP = obtenerIPLocal();
+            } catch (Exception e) {
+                miIP = "desconocida";
+            }
+        }
+        
+        // Obtener la IP real de la red local (WiFi), no VPN
+        private String obtenerIPLocal() throws Exception {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            
+            while (interfaces.hasMoreElements()) {
+                NetworkInterface ni = interfaces.nextElement();
+                
+                // Saltar interfaces inactivas o loopback
+                if (!ni.isUp() || ni.isLoopback()) continue;
+                
+                Enumeration<InetAddress> addresses = ni.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    InetAddress addr = addresses.nextElement();
+                    // Solo IPv4
+                    if (!(addr instanceof java.net.Inet4Address)) continue;
+                    String ip = addr.getHostAddress();
+                    
+                    // Buscar IP de red local (192.168.x.x o 10.x.x.x)
+                    if (ip.startsWith("192.168.") || ip.startsWith("10.")) {
+                        return ip;
+                    }
+                    // También aceptar 172.16-31.x.x (rango privado)
+                    if (ip.startsWith("172.")) {
+                        String[] parts = ip.split("\\.");
+                        if (parts.length >= 2) {
+                            int second = Integer.parseInt(parts[1]);
+                            if (second >= 16 && second <= 31) {
+                                return ip;
+                            }
+                        }
+                    }
+                }
+            }
+            
+            // Si no encuentra IP local, usar la por defecto
+            return InetAddress.getLocalHost().getHostAddress();
+        }
+        
+        private byte[] anuncio() {
+            Partida p = new Partida(miIP, protocolos, PROTOCOLO_VERSION,
+                mesas.getAsInt(), libres.getAsInt(), 0);
+            return p.anuncio().getBytes(StandardCharsets.US_ASCII);
+        }
+        
+        @Override
+        public void run() {
+            try (DatagramSocket s = new DatagramSocket(PUERTO_BROADCAST)) {
+                socket = s;
+                s.setBroadcast(true);
+                s.setSoTimeout(INTERVALO_ANUNCIO);
+                InetAddress broadcast = InetAddress.getByName("255.255.255.255");
+                byte[] consulta = MENSAJE_BROADCAST.getBytes(StandardCharsets.US_ASCII);
+                // Un solo buffer y un solo paquete para todo lo que llega
+                byte[] buffer = new byte[256];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                byte[] anuncio = anuncio();
+                long proximoAnuncio = 0;
+                
+                while (running) {
+                    long ahora = System.currentTimeMillis();
+                    if (ahora >= proximoAnuncio) {
+                        anuncio = anuncio();
+                        s.send(new DatagramPacket(anuncio, anuncio.length, broadcast, PUERTO_LOBBY));
+                        Metricas.DESCUBRIMIENTO.sumar();
+                        proximoAnuncio = ahora + INTERVALO_ANUNCIO;
+                    }
+                    packet.setLength(buffer.length);
+                    try {
+                        s.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    if (empiezaCon(buffer, packet.getLength(), consulta)) {
+                        // Responder con nuestra IP y los datos de la partida
+                        s.send(new DatagramPacket(anuncio, anuncio.length, packet.getAddress(), packet.getPort()));
+                        Metricas.DESCUBRIMIENTO.sumar();
+                    }
+                }
+            } catch (Exception e) {
+                // detener() cierra el socket a propósito; cualquier otro error se cuenta
+                if (running) Metricas.error(Metricas.ERRORES_DESCUBRIMIENTO, e);
+            }
+        }
+        
+        private static boolean empiezaCon(byte[] datos, int largo, byte[] prefijo) {
+            if (largo < prefijo.length) return false;
+            for (int i = 0; i < prefijo.length; i++) {
+                if (datos[i] != prefijo[i]) return false;
+            }
+            return true;
+        }
+        
+        public void detener() {
+            running = false;
+            DatagramSocket s = socket;
+            if (s != null) s.close(); // Despierta al receive() y libera el puerto
+        }
+    }
+
+    /** ----- Partida anunciada en la red local ----- */
+    static final class Partida {
+        final String ip;
+        final String protocolos;
+        final int version;   // 0 = versión sin anuncios
+        final int mesas;     // -1 = desconocido
+        final int libres;    // -1 = desconocido
+        final long visto;    // System.nanoTime() del último anuncio
+
+        Partida(String ip, String protocolos, int version, int mesas, int libres, long visto) {
+            this.ip = ip;
+            this.protocolos = protocolos;
+            this.version = version;
+            this.mesas = mesas;
+            this.libres = libres;
+            this.visto = visto;
+        }
+
+        boolean binario() { return protocolos.contains("BIN"); }
+
+        /** Partida de dos que compromete su shoe (COMPROMISO y SEMILLA) */
+        boolean justa() { return protocolos.contains("JUSTA"); }
+
+        /** BLACKJACK_GAME:ip:protocolos:version:mesas:libres (las versiones viejas solo leen la IP) */
+        String anuncio() {
+            return MENSAJE_BROADCAST + ":" + ip + ":" + protocolos + ":" + version + ":" + mesas + ":" + libres;
+        }
+
+        /** Interpreta un anuncio o una respuesta; null si no es del juego */
+        static Partida leer(String mensaje, long visto) {
+            if (!mensaje.startsWith(MENSAJE_BROADCAST + ":")) return null;
+            String[] partes = mensaje.split(":", -1);
+            if (partes.length < 2 || partes[1].isEmpty()) return null;
+            try {
+                String protocolos = partes.length > 2 ? partes[2] : "";
+                int version = partes.length > 3 ? Integer.parseInt(partes[3]) : 0;
+                int mesas = partes.length > 4 ? Integer.parseInt(partes[4]) : -1;
+                int libres = partes.length > 5 ? Integer.parseInt(partes[5]) : -1;
+                return new Partida(partes[1], protocolos, version, mesas, libres, visto);
+            } catch (NumberFormatException e) {
+                return new Partida(partes[1], "", 0, -1, -1, visto);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(ip);
+            if (binario()) sb.append(" (servidor de mesas");
+            else sb.append(" (partida");
+            if (mesas >= 0 && binario()) sb.append(", ").append(mesas).append(" mesas");
+            if (libres == 0) sb.append(", llena");
+            else if (libres > 0 && binario()) sb.append(", ").append(libres).append(" lugares");
+            return sb.append(")").toString();
+        }
+    }
+
+    /**
+     * ----- Lobby: escucha los anuncios y mantiene la lista de partidas -----
+     * Un hilo por proceso guarda cada partida con la hora de su último anuncio y
+     * descarta las que llevan más de TTL_LOBBY sin anunciarse, así la lista se
+     * muestra al instante en vez de esperar una búsqueda completa.
+     */
+    static final class Lobby extends Thread {
+        private static Lobby global;
+
+        private final DatagramSocket socket;
+        private final ConcurrentHashMap<String, Partida> partidas = new ConcurrentHashMap<>();
+
+        private Lobby() throws SocketException {
+            setDaemon(true);
+            socket = new DatagramSocket(null);
+            socket.setReuseAddress(true); // Varios clientes en la misma computadora
+            socket.setBroadcast(true);
+            socket.bind(new InetSocketAddress(PUERTO_LOBBY));
+        }
+
+        static synchronized Lobby global() throws SocketException {
+            if (global == null) {
+                global = new Lobby();
+                global.start();
+            }
+            return global;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[256];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                    String mensaje = new String(buffer, 0, packet.getLength(), StandardCharsets.US_ASCII);
+                    Partida p = Partida.leer(mensaje, System.nanoTime());
+                    if (p != null) partidas.put(p.ip, p);
+                    Metricas.DESCUBRIMIENTO.sumar();
+                } catch (IOException e) {
+                    // Paquete perdido o socket cerrado: se sigue escuchando mientras esté abierto
+                    if (!socket.isClosed()) Metricas.error(Metricas.ERRORES_DESCUBRIMIENTO, e);
+                }
+            }
+        }
+
+        /** Pregunta por broadcast; los hosts sin anuncios periódicos también responden */
+        void consultar() {
+            try {
+                byte[] consulta = MENSAJE_BROADCAST.getBytes(StandardCharsets.US_ASCII);
+                socket.send(new DatagramPacket(consulta, consulta.length,
+                    InetAddress.getByName("255.255.255.255"), PUERTO_BROADCAST));
+            } catch (IOException e) {
+                Metricas.error(Metricas.ERRORES_DESCUBRIMIENTO, e);
+                System.out.println("Error buscando jugadores: " + e.getMessage());
+            }
+        }
+
+        /** Partidas vigentes, sin las que dejaron de anunciarse */
+        List<Partida> partidas() {
+            long limite = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(TTL_LOBBY);
+            partidas.values().removeIf(p -> p.visto - limite < 0);
+            List<Partida> lista = new ArrayList<>(partidas.values());
+            lista.sort(Comparator.comparing(p -> p.ip));
+            return lista;
+        }
+
+        /** Espera hasta maxMs a que aparezca alguna partida (solo cuando la lista está vacía) */
+        List<Partida> esperar(long maxMs) throws InterruptedException {
+            long fin = System.currentTimeMillis() + maxMs;
+            List<Partida> lista = partidas();
+            while (lista.isEmpty() && System.currentTimeMillis() < fin) {
+                Thread.sleep(50);
+                lista = partidas();
+            }
+            return lista;
+        }
+    }
+
+    /** ----- Modo Multiplayer ----- */
+    static void modoMultiplayer(Consola in) {
+        
+        System.out.println("\n=== Modo Multiplayer ===");
+        System.out.println("1. Crear partida (esperar jugador)");
+        System.out.println("2. Buscar partidas");
+        System.out.println("3. Servidor de mesas (varias partidas contra la casa)");
+        System.out.println("4. Partida rápida (el servidor de mesas te junta con otros jugadores)");
+        System.out.print("Opción: ");
+        String opcion = in.leerLinea().trim();
+        
+        if (opcion.equals("1")) {
+            crearPartida();
+        } else if (opcion.equals("2")) {
+            buscarYConectar(in);
+        } else if (opcion.equals("3")) {
+            iniciarServidorMesas(in);
+        } else if (opcion.equals("4")) {
+            partidaRapida(in);
+        }
+    }
+    
+    static void crearPartida() {
+        NetworkDiscovery discovery = null;
+        try {
+            // Iniciar descubrimiento de red SOLO cuando creamos partida; el shoe es comprobable
+            discovery = new NetworkDiscovery("JUSTA", () -> 1, () -> 1);
+            discovery.start();
+            Metricas.exponer();
+            
+            System.out.println("\nEsperando jugador...");
+            Salida.vaciar();
+            ServerSocket servidor = new ServerSocket(PUERTO_JUEGO);
+            servidor.setSoTimeout(TIMEOUT_SERVIDOR);
+            
+            Socket cliente = servidor.accept();
             System.out.println("¡Jugador conectado desde " + cliente.getInetAddress().getHostAddress() + "!");
             
             // Detener descubrimiento una vez conectado
             if (discovery != null) discovery.detener();
             
-            jugarMultiplayer(servidor, cliente, true);
+            CanalJuego canal = new CanalJuego(cliente);
+            canal.atenderNegociacion(Mensaje.OPCION_JUSTA, ESPERA_PROTO);
+            jugarMultiplayer(servidor, canal, true);
+        } catch (Exception e) {
+            System.out.println("Error al crear partida: " + e.getMessage());
+        } finally {
+            if (discovery != null) discovery.detener();
+        }
+    }
+    
+    static void buscarYConectar(Consola in) {
+        Lobby lobby;
+        try {
+            lobby = Lobby.global();
+        } catch (SocketException e) {
+            System.out.println("Error buscando jugadores: " + e.getMessage());
+            return;
+        }
+        while (true) {
+            System.out.println("\nBuscando partidas...");
+            Salida.vaciar();
+            lobby.consultar();
+            List<Partida> partidas;
+            try {
+                partidas = lobby.esperar(TIMEOUT_BUSQUEDA);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            
+            if (partidas.isEmpty()) {
+                System.out.println("No se encontraron partidas.");
+            } else {
+                System.out.println("\nPartidas disponibles:");
+                for (int i = 0; i < partidas.size(); i++) {
+                    System.out.println((i + 1) + ". " + partidas.get(i));
+                }
+                System.out.println("\nm + número. Mirar la mesa más concurrida de un servidor de mesas (p. ej. m1)");
+                System.out.println("0. Refrescar");
+                System.out.println("q. Volver al menú");
+                System.out.print("Selecciona una opción: ");
+                String seleccion = in.leerLinea().trim();
+                
+                if (seleccion.equals("q")) {
+                    return;
+                } else if (seleccion.equals("0")) {
+                    continue;
+                } else if (seleccion.startsWith("m")) {
+                    try {
+                        int index = Integer.parseInt(seleccion.substring(1).trim()) - 1;
+                        if (index >= 0 && index < partidas.size()) {
+                            Partida partida = partidas.get(index);
+                            if (partida.binario()) {
+                                mirarMesa(in, partida.ip, true);
+                                return;
+                            }
+                            System.out.println("Solo un servidor de mesas admite espectadores.");
+                        }
+                    } catch (NumberFormatException e) {
+                        System.out.println("Opción no válida.");
+                    }
+                } else {
+                    try {
+                        int index = Integer.parseInt(seleccion) - 1;
+                        if (index >= 0 && index < partidas.size()) {
+                            Partida partida = partidas.get(index);
+                            conectarAPartida(partida.ip, partida.binario(), partida.justa());
+                            return;
+                        }
+                    } catch (NumberFormatException e) {
+                        System.out.println("Opción no válida.");
+                    }
+                }
+            }
+            
+            System.out.print("\nPresiona Enter para refrescar (o 'q' para salir): ");
+            String cmd = in.leerLinea().trim();
+            if (cmd.equals("q")) return;
+        }
+    }
+    
+    static void conectarAPartida(String ip, boolean binario, boolean justa) {
+        try {
+            System.out.println("Conectando a " + ip + "...");
+            Salida.vaciar();
+            Socket socket = new Socket(ip, PUERTO_JUEGO);
+            System.out.println("¡Conectado!");
+            
+            CanalJuego canal = new CanalJuego(socket);
+            if (binario) {
+                negociarMesa(canal);
+                if (canal.getAsiento() >= 0) System.out.println("Sentado en el asiento " + (canal.getAsiento() + 1) + ".");
+                if (canal.isApuestas()) elegirApuesta(canal);
+            } else if (justa) {
+                canal.negociar(Mensaje.OPCION_JUSTA);
+            }
+            jugarMultiplayer(null, canal, false);
+        } catch (Exception e) {
+            System.out.println("Error al conectar: " + e.getMessage());
+        }
+    }
+
+    /** Todo lo que ofrece un servidor de mesas */
+    static void negociarMesa(CanalJuego canal) throws IOException {
+        canal.identificarse();
+        int aceptadas = canal.negociar(Mensaje.OPCION_BINARIO | Mensaje.OPCION_MESA
+            | Mensaje.OPCION_LOTE | Mensaje.OPCION_RETOMA | Mensaje.OPCION_APUESTAS | Mensaje.OPCION_MANOS
+            | Mensaje.OPCION_JUSTA);
+        if ((aceptadas & Mensaje.OPCION_BINARIO) != 0) System.out.println("Usando protocolo binario.");
+    }
+
+    /**
+     * Emparejamiento: elige el servidor de mesas con más lugares, pide una mesa
+     * con esa apuesta y esos asientos y espera en la sala hasta que se
+     * complete (o hasta que se presione Enter).
+     */
+    static void partidaRapida(Consola in) {
+        Partida servidor = null;
+        try {
+            Lobby lobby = Lobby.global();
+            System.out.println("\nBuscando un servidor de mesas...");
+            Salida.vaciar();
+            lobby.consultar();
+            for (Partida p : lobby.esperar(TIMEOUT_BUSQUEDA)) {
+                if (p.binario() && p.libres != 0 && (servidor == null || p.libres > servidor.libres)) servidor = p;
+            }
+        } catch (SocketException e) {
+            System.out.println("Error buscando jugadores: " + e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (servidor == null) {
+            System.out.println("No se encontró un servidor de mesas con lugar.");
+            return;
+        }
+        int lugares = 2;
+        System.out.print("Jugadores por mesa (1-" + Mesa.MAX_ASIENTOS + ", Enter = " + lugares + "): ");
+        String linea = in.leerLinea().trim();
+        try {
+            if (!linea.isEmpty()) lugares = Integer.parseInt(linea);
+        } catch (NumberFormatException e) {
+            lugares = 0;
+        }
+        if (lugares < 1 || lugares > Mesa.MAX_ASIENTOS) {
+            lugares = 2;
+            System.out.println("Cantidad inválida, se usa " + lugares + ".");
+        }
+        long apuesta = Libro.APUESTA_INICIAL;
+        System.out.print("Apuesta por ronda (Enter = " + apuesta + "): ");
+        linea = in.leerLinea().trim();
+        try {
+            if (!linea.isEmpty()) apuesta = Long.parseLong(linea);
+        } catch (NumberFormatException e) {
+            apuesta = 0;
+        }
+        if (apuesta <= 0) {
+            apuesta = Libro.APUESTA_INICIAL;
+            System.out.println("Apuesta inválida, se usa " + apuesta + ".");
+        }
+        System.out.println("Conectando a " + servidor.ip + "...");
+        Salida.vaciar();
+        CanalJuego canal;
+        try {
+            canal = new CanalJuego(new Socket(servidor.ip, PUERTO_JUEGO));
+            negociarMesa(canal);
+        } catch (IOException e) {
+            System.out.println("Error al conectar: " + e.getMessage());
+            return;
+        }
+        final int total = lugares;
+        final long monto = apuesta;
+        AtomicBoolean sentado = new AtomicBoolean();
+        Thread buscador = new Thread(() -> {
+            try {
+                if (canal.buscar(monto, total, n -> {
+                    System.out.println("Esperando jugadores: " + n + "/" + total + ". Presiona Enter para cancelar.");
+                    Salida.vaciar();
+                })) {
+                    sentado.set(true);
+                    System.out.println("¡Mesa completa! Presiona Enter para jugar.");
+                } else {
+                    System.out.println("El servidor no pudo buscarte una mesa. Presiona Enter para volver al menú.");
+                }
+            } catch (IOException e) {
+                if (!canal.isCerrado()) {
+                    System.out.println("Se perdió la conexión con el servidor. Presiona Enter para volver al menú.");
+                }
+            }
+            Salida.vaciar(); // El hilo principal está esperando el Enter
+        }, "emparejamiento");
+        buscador.setDaemon(true);
+        buscador.start();
+        in.leerLinea();
+        if (!sentado.get()) {
+            canal.enviar(Mensaje.QUIT);
+            try { canal.close(); } catch (IOException e) { /* ya cerrado */ }
+            return;
+        }
+        try {
+            buscador.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (canal.getAsiento() >= 0) System.out.println("Sentado en el asiento " + (canal.getAsiento() + 1) + ".");
+        jugarMultiplayer(null, canal, false);
+    }
+    
+    /** Espectador: muestra la mesa en vivo hasta que se presione Enter */
+    static void mirarMesa(Consola in, String ip, boolean binario) {
+        System.out.println("Conectando a " + ip + "...");
+        Salida.vaciar();
+        try (CanalJuego canal = new CanalJuego(new Socket(ip, PUERTO_JUEGO))) {
+            if (binario) canal.negociar(Mensaje.OPCION_BINARIO);
+            int mesa = canal.mirar(0);
+            if (mesa == 0) {
+                System.out.println("No hay mesas con jugadores para mirar.");
+                return;
+            }
+            System.out.println("Mirando la mesa " + mesa + ". Presiona Enter para volver al menú.");
+            Thread lector = new Thread(() -> mostrarMesa(canal), "espectador");
+            lector.setDaemon(true);
+            lector.start();
+            in.leerLinea();
+        } catch (IOException e) {
+            System.out.println("Error al mirar la mesa: " + e.getMessage());
+        }
+    }
+
+    /** Hilo del espectador: cada VISTA reemplaza esa mano; RESULTADOS cierra la ronda */
+    private static void mostrarMesa(CanalJuego canal) {
+        try {
+            Mensaje m;
+            while ((m = canal.recibir()) != null) {
+                if (m.tipo == Mensaje.VISTA) {
+                    System.out.println("Asiento " + (m.asiento + 1)
+                        + (m.indiceMano > 0 ? ", mano " + (m.indiceMano + 1) : "") + ": " + m.mano());
+                } else if (m.tipo == Mensaje.RESULTADOS) {
+                    mostrarResultados(m, -1);
+                }
+                Salida.vaciar(); // El hilo principal está esperando el Enter
+            }
+        } catch (IOException e) {
+            // Cerrado al volver al menú, o el servidor se fue
+        }
+        if (!canal.isCerrado()) {
+            System.out.println("\nLa mesa se cerró. Presiona Enter para volver al menú.");
+            Salida.vaciar();
+        }
+    }
+
+    static void mostrarSaldo(long neto, long saldo) {
+        String balance = neto > 0 ? "Ganas " + neto + " fichas." : neto < 0 ? "Pierdes " + -neto + " fichas." : "Recuperas tu apuesta.";
+        System.out.println(balance + " Saldo: " + saldo);
+    }
+
+    /** La apuesta vale para todas las rondas; la mesa la descuenta al repartir */
+    static void elegirApuesta(CanalJuego canal) {
+        System.out.print("Saldo: " + canal.getSaldo() + " fichas. Apuesta por ronda (Enter = "
+            + Libro.APUESTA_INICIAL + "): ");
+        String linea = Consola.global().leerLinea();
+        long apuesta = Libro.APUESTA_INICIAL;
+        try {
+            if (linea != null && !linea.trim().isEmpty()) apuesta = Long.parseLong(linea.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Apuesta inválida, se usa " + apuesta + ".");
+        }
+        if (apuesta <= 0) apuesta = Libro.APUESTA_INICIAL;
+        canal.enviar(new Mensaje().deTipo(Mensaje.APUESTA).conMonto(apuesta));
+    }
+
+    static void jugarMultiplayer(ServerSocket servidor, CanalJuego canal, boolean esServidor) {
+        Conteo conteo = null;
+        // La sesión cierra el canal al salir, también si el oponente abandona a mitad de ronda
+        try (Sesion sesion = new Sesion(canal)) {
+            // Solo el servidor registra: es quien conoce todas las cartas
+            RegistroMesa registro = esServidor ? Historial.global().nuevaMesa() : null;
+            Shoe deck = esServidor ? new Shoe().sembrar(registro) : null; // El servidor maneja el shoe
+            if (esServidor) deck.contar(conteo = Conteo.registrar(registro.getMesa()));
+            Mensaje jugada = new Mensaje();
+            Manos manosCliente = new Manos();
+            final int asientoServidor = 0;
+            final int asientoCliente = 1;
+            
+            boolean continuarJugando = true;
+            
+            while (continuarJugando) {
+                if (esServidor) {
+                    Semilla anterior = deck.semilla();
+                    int repartidas = deck.repartidas();
+                    if (deck.prepararRonda() && canal.isJusta()) {
+                        canal.enviar(new Mensaje().deTipo(Mensaje.SEMILLA).conSemilla(anterior, repartidas));
+                    }
+                    registro.nuevaRonda();
+                    
+                    // Crear manos
+                    Hand manoServidor = new Hand();
+                    Hand manoCliente = new Hand();
+                    
+                    // Repartir cartas
+                    manoServidor.add(registro.carta(asientoServidor, deck.deal()));
+                    manoCliente.add(registro.carta(asientoCliente, deck.deal()));
+                    manoServidor.add(registro.carta(asientoServidor, deck.deal()));
+                    manoCliente.add(registro.carta(asientoCliente, deck.deal()));
+                    
+                    // Enviar cartas al cliente; con JUSTA, antes el compromiso del shoe
+                    if (canal.isJusta()) {
+                        canal.enviar(new Mensaje().deTipo(Mensaje.COMPROMISO).conHuella(deck.semilla().huella(), deck.inicioRonda()));
+                    }
+                    canal.enviarCartas(manoCliente);
+                    
+                    System.out.println("\n=== Nueva Partida ===");
+                    System.out.println("Tu mano: " + manoServidor);
+                    System.out.println("Esperando al oponente...");
+                    
+                    // Turno del cliente - manejar HIT/STAND
+                    boolean clienteBust = false;
+                    int totalCliente = 0;
+                    
+                    while (true) {
+                        Mensaje mensajeCliente = sesion.recibir();
+                        if (mensajeCliente == null || mensajeCliente.tipo == Mensaje.QUIT) {
+                            System.out.println("\nEl oponente abandonó la partida.");
+                            return;
+                        }
+                        
+                        if (mensajeCliente.tipo == Mensaje.HIT) {
+                            // Cliente pide carta
+                            registro.hit(asientoCliente);
+                            Card nuevaCarta = registro.carta(asientoCliente, deck.deal());
+                            manoCliente.add(nuevaCarta);
+                            canal.enviarCarta(nuevaCarta);
+                            
+                            // Verificar si se pasó
+                            if (manoCliente.isBust()) {
+                                clienteBust = true;
+                                totalCliente = manoCliente.bestBlackjackTotal();
+                                break;
+                            }
+                        } else if (mensajeCliente.tipo == Mensaje.STAND) {
+                            // Cliente se planta
+                            registro.stand(asientoCliente);
+                            totalCliente = manoCliente.bestBlackjackTotal();
+                            break;
+                        }
+                    }
+                    
+                    // Turno del servidor
+                    System.out.println("\nTu turno:");
+                    System.out.println("Tu mano: " + manoServidor);
+                    
+                    boolean servidorBust = false;
+                    while (true) {
+                        if (manoServidor.isBust()) {
+                            System.out.println("Te pasaste de " + BLACKJACK_TARGET + ".");
+                            servidorBust = true;
+                            break;
+                        }
+                        System.out.print("¿HIT (h) o STAND (s) o QUIT (q)? ");
+                        String ans = sesion.leerLinea();
+                        if (ans == null) {
+                            // El oponente se fue mientras era tu turno: se avisa sin esperar tu respuesta
+                            System.out.println("\nEl oponente abandonó la partida.");
+                            return;
+                        }
+                        ans = ans.trim().toLowerCase();
+                        
+                        if (ans.equals("q")) {
+                            canal.enviar(Mensaje.QUIT);
+                            System.out.println("Abandonaste la partida.");
+                            return;
+                        } else if (ans.startsWith("h")) {
+                            registro.hit(asientoServidor);
+                            manoServidor.add(registro.carta(asientoServidor, deck.deal()));
+                            System.out.println("Tu mano: " + manoServidor);
+                        } else if (ans.startsWith("s")) {
+                            registro.stand(asientoServidor);
+                            break;
+                        }
+                    }
+                    
+                    // Esperar y leer el resultado del cliente
+                    Mensaje mensajeTotalCliente = sesion.recibir();
+                    if (mensajeTotalCliente == null || mensajeTotalCliente.tipo == Mensaje.QUIT) {
+                        System.out.println("\nEl oponente abandonó.");
+                        return;
+                    }
+                    
+                    // Enviar resultado
+                    int totalServidor = manoServidor.bestBlackjackTotal();
+                    canal.enviarTotal(totalServidor, servidorBust);
+
+                    // Determinar ganador
+                    System.out.println("\n=== Resultado ===");
+                    System.out.println("Tu total: " + totalServidor);
+                    System.out.println("Oponente: " + totalCliente);
+                    
+                    int resultadoServidor = TotalesLote.resultado(totalServidor, servidorBust, totalCliente, clienteBust);
+                    mostrarDuelo(resultadoServidor, servidorBust, clienteBust);
+                    registro.resultado(asientoServidor, resultadoServidor, totalServidor);
+                    registro.resultado(asientoCliente, -resultadoServidor, totalCliente);
+                    
+                } else {
+                    // Cliente
+                    System.out.println("\n=== Nueva Partida ===");
+                    
+                    // Recibir cartas
+                    Mensaje cartasMsg = sesion.recibir();
+                    if (cartasMsg == null || cartasMsg.tipo == Mensaje.QUIT) {
+                        System.out.println("\nEl oponente abandonó la partida.");
+                        break;
+                    }
+                    
+                    manosCliente.reiniciar();
+                    for (int i = 0; i < cartasMsg.numCartas; i++) manosCliente.agregar(0, cartasMsg.carta(i));
+                    
+                    System.out.println("Tu mano: " + manosCliente.texto(0));
+                    // La mesa no espera jugada de un blackjack
+                    if (canal.isMesa() && Pagos.esNatural(manosCliente.estado(0))) {
+                        System.out.println("¡Blackjack!");
+                        manosCliente.plantarse();
+                    }
+                    
+                    // Turno del cliente: mano por mano hasta terminarlas todas
+                    while (!manosCliente.terminada()) {
+                        int mano = manosCliente.activa();
+                        int permitidas = canal.isManos() ? manosCliente.permitidas() : 0;
+                        if (manosCliente.cantidad() > 1) System.out.println("Juegas la mano " + (mano + 1) + ": " + manosCliente.texto(mano));
+                        if (canal.isLote()) {
+                            System.out.print("¿" + opciones(permitidas) + "pedir hasta N (número) o QUIT (q)? ");
+                        } else {
+                            System.out.print("¿" + opciones(permitidas) + "o QUIT (q)? ");
+                        }
+                        String ans = sesion.leerLinea(canal.isMesa());
+                        if (ans == null) {
+                            System.out.println("\nEl oponente abandonó la partida.");
+                            return;
+                        }
+                        if (sesion.hayMensaje()) {
+                            System.out.println(); // La mesa liquidó la ronda al repartir
+                            break;
+                        }
+                        ans = ans.trim().toLowerCase();
+                        
+                        if (ans.equals("q")) {
+                            canal.enviar(Mensaje.QUIT);
+                            System.out.println("Abandonaste la partida.");
+                            return;
+                        } else if (ans.startsWith("d") || ans.startsWith("p") || ans.startsWith("r")) {
+                            if (!canal.isManos()) continue;
+                            // La mesa responde con la mano afectada, o NO si no se puede
+                            byte tipo = ans.startsWith("d") ? Mensaje.DOBLAR : ans.startsWith("p") ? Mensaje.DIVIDIR : Mensaje.RENDIRSE;
+                            canal.enviar(tipo);
+                            Mensaje respuesta = sesion.recibir();
+                            if (respuesta == null || respuesta.tipo != tipo) {
+                                System.out.println("\nEl oponente abandonó.");
+                                return;
+                            }
+                            if (respuesta.indiceMano < 0) {
+                                System.out.println("La mesa no lo permite (mano o saldo).");
+                                continue;
+                            }
+                            if (tipo == Mensaje.DOBLAR) {
+                                // Una sola carta más y la mano queda cerrada
+                                manosCliente.doblar();
+                                Mensaje carta = sesion.recibir();
+                                if (carta == null || carta.tipo != Mensaje.CARTA) {
+                                    System.out.println("\nEl oponente abandonó.");
+                                    return;
+                                }
+                                manosCliente.agregar(carta.indiceMano, carta.carta(0));
+                                mostrarMano(manosCliente, carta.indiceMano);
+                            } else if (tipo == Mensaje.DIVIDIR) {
+                                manosCliente.dividir();
+                                System.out.println("Tus manos: " + manosCliente);
+                            } else {
+                                manosCliente.rendirse();
+                                System.out.println("Te rindes: recuperas la mitad de la apuesta.");
+                            }
+                        } else if (canal.isLote()) {
+                            // Todas las acciones en una JUGADA y todas las cartas en un LOTE
+                            if (!Mensaje.leerJugada(ans, jugada)) continue;
+                            Mensaje lote = sesion.jugar(jugada);
+                            if (lote == null) {
+                                System.out.println("\nEl oponente abandonó.");
+                                return;
+                            }
+                            for (int i = 0; i < lote.numCartas; i++) manosCliente.agregar(lote.indiceMano, lote.carta(i));
+                            if (lote.numCartas > 0) mostrarMano(manosCliente, lote.indiceMano);
+                            // Un STAND o el umbral alcanzado cierran la mano aunque no se haya pasado
+                            if ((lote.fin || lote.finMano) && manosCliente.activa() == lote.indiceMano
+                                && !manosCliente.terminada()) {
+                                manosCliente.plantarse();
+                            }
+                        } else if (ans.startsWith("h")) {
+                            // Solicitar carta al servidor
+                            canal.enviar(Mensaje.HIT);
+                            Mensaje respuesta = sesion.recibir();
+                            if (respuesta == null || respuesta.tipo == Mensaje.QUIT) {
+                                System.out.println("\nEl oponente abandonó.");
+                                return;
+                            }
+                            if (respuesta.tipo == Mensaje.CARTA) {
+                                manosCliente.agregar(respuesta.indiceMano, respuesta.carta(0));
+                                mostrarMano(manosCliente, respuesta.indiceMano);
+                            }
+                        } else if (ans.startsWith("s")) {
+                            canal.enviar(Mensaje.STAND);
+                            manosCliente.plantarse();
+                        } else {
+                            continue;
+                        }
+                        // Cartas que la mesa reparte sola: la de doblar y la segunda de cada mano dividida
+                        while (canal.isManos() && manosCliente.necesitaCarta()) {
+                            Mensaje carta = sesion.recibir();
+                            if (carta == null || carta.tipo != Mensaje.CARTA) {
+                                System.out.println("\nEl oponente abandonó.");
+                                return;
+                            }
+                            manosCliente.agregar(carta.indiceMano, carta.carta(0));
+                            mostrarMano(manosCliente, carta.indiceMano);
+                        }
+                    }
+                    
+                    // Enviar resultado mano por mano (con LOTE el servidor ya sabe que terminó el turno)
+                    int totalCliente = manosCliente.total(0);
+                    boolean clienteBust = manosCliente.sePaso(0);
+                    if (!canal.isLote()) {
+                        for (int i = 0; i < manosCliente.cantidad(); i++) {
+                            canal.enviarTotal(manosCliente.total(i), manosCliente.sePaso(i), i);
+                        }
+                    }
+
+                    System.out.println("\nEsperando al oponente...");
+                    
+                    // Recibir resultado del servidor
+                    Mensaje resultadoServidor = sesion.recibir();
+                    if (resultadoServidor == null || resultadoServidor.tipo == Mensaje.QUIT) {
+                        System.out.println("\nEl oponente abandonó.");
+                        break;
+                    }
+                    
+                    if (resultadoServidor.tipo == Mensaje.RESULTADOS) {
+                        mostrarResultados(resultadoServidor, canal.getAsiento());
+                        if (canal.isApuestas()) {
+                            Mensaje saldo = sesion.recibir();
+                            if (saldo == null || saldo.tipo != Mensaje.SALDO) {
+                                System.out.println("\nEl servidor cerró la mesa.");
+                                break;
+                            }
+                            canal.actualizarSaldo(saldo);
+                            mostrarSaldo(saldo.monto, saldo.saldo);
+                        }
+                    } else {
+                        boolean servidorBust = resultadoServidor.bust;
+                        int totalServidor = resultadoServidor.total;
+
+                        // Determinar ganador
+                        System.out.println("\n=== Resultado ===");
+                        System.out.println("Tu total: " + totalCliente);
+                        System.out.println("Oponente: " + totalServidor);
+
+                        mostrarDuelo(TotalesLote.resultado(totalCliente, clienteBust, totalServidor, servidorBust),
+                            clienteBust, servidorBust);
+                    }
+                }
+                
+                // Ambos preguntan independientemente
+                System.out.print("\n¿Jugar otra vez? (s/n): ");
+                String respuesta = sesion.leerLinea();
+                if (respuesta == null) {
+                    System.out.println("\nEl oponente abandonó la partida.");
+                    break;
+                }
+                boolean yoQuiero = respuesta.trim().toLowerCase().startsWith("s");
+                
+                if (yoQuiero) {
+                    // Yo quiero jugar - envío mi decisión y espero al oponente
+                    canal.enviar(Mensaje.QUIERO_JUGAR);
+                    System.out.println("Esperando al oponente...");
+                    
+                    Mensaje respuestaOponente = sesion.recibir();
+                    
+                    if (respuestaOponente == null) {
+                        System.out.println("Error: Conexión perdida.");
+                        continuarJugando = false;
+                    } else if (respuestaOponente.tipo == Mensaje.NO_QUIERO_JUGAR) {
+                        System.out.println("El oponente no quiere jugar otra vez.");
+                        continuarJugando = false;
+                    } else if (respuestaOponente.tipo == Mensaje.QUIERO_JUGAR) {
+                        System.out.println("¡Ambos quieren jugar! Nueva partida...");
+                        continuarJugando = true;
+                    } else {
+                        System.out.println("Error: Mensaje inesperado del oponente: " + respuestaOponente);
+                        continuarJugando = false;
+                    }
+                } else {
+                    // Yo NO quiero jugar - envío mi decisión y salgo inmediatamente
+                    if (esServidor && canal.isJusta()) {
+                        // El shoe ya no se usa: el cliente puede comprobar sus cartas
+                        canal.enviar(new Mensaje().deTipo(Mensaje.SEMILLA).conSemilla(deck.semilla(), deck.repartidas()));
+                    }
+                    canal.enviar(Mensaje.NO_QUIERO_JUGAR);
+                    System.out.println("Has decidido no jugar más.");
+                    continuarJugando = false;
+                    // NO esperar respuesta del oponente - salir inmediatamente
+                }
+            }
+            
         } catch (Exception e) {
-            System.out.println("Error al crear partida: " + e.getMessage());
+            System.out.println("Error durante el juego: " + e.getMessage());
         } finally {
-            if (discovery != null) discovery.detener();
+            if (conteo != null) conteo.quitar();
+            if (servidor != null) {
+                try { servidor.close(); } catch (IOException e) { /* ya cerrado */ }
+            }
+        }
+    }
+    
+    /** Resultado del duelo desde el lado propio (TotalesLote.resultado) */
+    static void mostrarDuelo(int resultado, boolean pasado, boolean rivalPasado) {
+        if (pasado && rivalPasado) {
+            System.out.println("Ambos se pasaron. Empate.");
+        } else if (pasado) {
+            System.out.println("Pierdes (te pasaste).");
+        } else if (rivalPasado) {
+            System.out.println("¡Ganas! (oponente se pasó)");
+        } else if (resultado > 0) {
+            System.out.println("¡Ganas!");
+        } else if (resultado < 0) {
+            System.out.println("Pierdes.");
+        } else {
+            System.out.println("Empate.");
+        }
+    }
+
+    /** Resumen de la ronda en una mesa del servidor: el dealer y todos los asientos */
+    static void mostrarResultados(Mensaje m, int miAsiento) {
+        StringBuilder sb = new StringBuilder("\n=== Resultado de la mesa ===\n");
+        sb.append("Dealer: ").append(m.mano()).append(m.bust ? " (se pasó)" : "").append('\n');
+        for (int i = 0; i < m.numResultados; i++) {
+            sb.append("Asiento ").append(m.resAsiento[i] + 1)
+              .append(m.resAsiento[i] == miAsiento ? " (tú)" : "")
+              .append(": ").append(m.resTotal[i]).append(" - ")
+              .append(m.resultado[i] > 0 ? "Gana" : m.resultado[i] < 0 ? "Pierde" : "Empate")
+              .append('\n');
+        }
+        System.out.print(sb);
+    }
+
+    /** ----- Mensajes del protocolo de juego ----- */
+    /**
+     * Un mensaje ya decodificado, independiente del formato en el cable.
+     * Cada conexión reutiliza sus propias instancias, así que leer o escribir
+     * un mensaje no asigna memoria.
+     */
+    static final class Mensaje {
+        static final byte DESCONOCIDO = 0;
+        static final byte CARTAS = 1;          // CARTAS:r,s;r,s; (o CARTAS:r,s;...:m para la mano m > 0)
+        static final byte CARTA = 2;           // CARTA:r,s (o CARTA:r,s:m)
+        static final byte HIT = 3;
+        static final byte STAND = 4;
+        static final byte TOTAL = 5;           // TOTAL:n o TOTAL:BUST:n (y :m para la mano m > 0)
+        static final byte QUIERO_JUGAR = 6;
+        static final byte NO_QUIERO_JUGAR = 7;
+        static final byte QUIT = 8;
+        static final byte PROTO = 9;           // PROTO:BIN,MESA (negociación)
+        static final byte ASIENTO = 10;        // ASIENTO:n
+        static final byte RESULTADOS = 11;     // RESULTADOS:total:r,s;...:a,t,res;...
+        static final byte JUGADA = 12;         // JUGADA:seq:HHS:umbral
+        static final byte LOTE = 13;           // LOTE:seq:FIN|SIGUE:total:r,s;...
+        static final byte FICHA = 14;          // FICHA:hex (para retomar la partida)
+        static final byte RETOMAR = 15;        // RETOMAR:hex:recibidos
+        static final byte APUESTA = 16;        // APUESTA:n (fichas por ronda, desde la próxima)
+        static final byte SALDO = 17;          // SALDO:saldo:neto (neto de la última ronda, con signo)
+        // Del cliente sin argumento; la mesa responde con la mano afectada o NO si no se pudo
+        static final byte DOBLAR = 18;         // DOUBLE, DOUBLE:m o DOUBLE:NO
+        static final byte DIVIDIR = 19;        // SPLIT, SPLIT:m o SPLIT:NO
+        static final byte RENDIRSE = 20;       // SURRENDER, SURRENDER:m o SURRENDER:NO
+        static final byte COMPROMISO = 21;     // COMPROMISO:huella:inicio (SHA-256 de la semilla del shoe, en hex)
+        static final byte SEMILLA = 22;        // SEMILLA:hex:fin (la del shoe anterior y cuántas cartas dio, al rebarajar)
+        // Espectadores: el cliente pide MIRAR y desde entonces recibe VISTA y RESULTADOS de la mesa
+        static final byte VISTA = 23;          // VISTA:a:r,s;r,s; (y :m para la mano m > 0): la mano completa del asiento a
+        static final byte MIRAR = 24;          // MIRAR:n (0 = la mesa con más jugadores); la respuesta trae la mesa, 0 = ninguna
+        // Emparejamiento: el cliente pide BUSCAR:apuesta:asientos y espera en la sala; la respuesta suma
+        // cuántos esperan (asientos = mesa completa, ya sentado; 0 = pedido rechazado)
+        static final byte BUSCAR = 25;         // BUSCAR:apuesta:asientos(:esperando)
+        static final byte ULTIMO = BUSCAR;
+
+        /** Opciones negociables con PROTO, una por bit */
+        static final int OPCION_BINARIO = 1;
+        static final int OPCION_MESA = 2;      // ASIENTO y RESULTADOS en vez de TOTAL
+        static final int OPCION_LOTE = 4;      // JUGADA/LOTE en vez de HIT/STAND/CARTA/TOTAL
+        static final int OPCION_RETOMA = 8;    // FICHA al sentarse; RETOMAR al reconectar
+        static final int OPCION_APUESTAS = 16; // APUESTA del cliente; SALDO al sentarse y tras cada ronda
+        static final int OPCION_MANOS = 32;    // DOUBLE, SPLIT y SURRENDER; cartas y totales por mano
+        static final int OPCION_JUSTA = 64;    // COMPROMISO antes de repartir y SEMILLA al rebarajar
+
+        static final int MAX_CARTAS = 64;
+        static final int MAX_ACCIONES = 32;
+        static final int MAX_RESULTADOS = Mesa.MAX_ASIENTOS * Manos.MAX_MANOS;
+
+        byte tipo;
+        final byte[] cartas = new byte[MAX_CARTAS];
+        int numCartas;
+        int total;
+        boolean bust;
+        int opciones;
+        int asiento;
+        int indiceMano;        // CARTAS/CARTA/TOTAL/LOTE: mano del asiento; respuesta a DOUBLE/SPLIT/SURRENDER: -1 = NO
+        // RESULTADOS: una entrada por mano de cada asiento que jugó la ronda
+        final byte[] resAsiento = new byte[MAX_RESULTADOS];
+        final byte[] resTotal = new byte[MAX_RESULTADOS];
+        final byte[] resultado = new byte[MAX_RESULTADOS];
+        int numResultados;
+        // JUGADA: acciones en cola (HIT/STAND) y luego pedir hasta llegar a umbral (0 = sin política)
+        final byte[] acciones = new byte[MAX_ACCIONES];
+        int numAcciones;
+        int umbral;
+        int secuencia;
+        boolean fin;           // LOTE: el turno del asiento terminó
+        boolean finMano;       // LOTE: la mano terminó, pero quedan otras del asiento
+        long ficha;            // FICHA/RETOMAR (0 en la respuesta = no se pudo retomar)
+        long jugador;          // PROTO: identidad del jugador, su cuenta en el servidor (0 = anónimo)
+        int recibidos;         // RETOMAR: mensajes de juego recibidos desde la FICHA
+        long monto;            // APUESTA: fichas; SALDO: ganancia neta de la ronda
+        long saldo;            // SALDO
+        final byte[] datos = new byte[Semilla.BYTES_HUELLA]; // COMPROMISO: huella; SEMILLA: semilla
+        int numDatos;
+        int posicion;          // COMPROMISO: carta del shoe con la que empieza la ronda; SEMILLA: cartas repartidas
+        int mesa;              // MIRAR: número de mesa del historial
+        int lugares;           // BUSCAR: asientos de la mesa pedida (la apuesta va en monto)
+        int esperando;         // BUSCAR: los que ya esperan esa mesa, contando al que recibe
+
+        Mensaje deTipo(byte tipo) {
+            this.tipo = tipo;
+            numCartas = 0;
+            total = 0;
+            bust = false;
+            opciones = 0;
+            asiento = 0;
+            indiceMano = 0;
+            numResultados = 0;
+            numAcciones = 0;
+            umbral = 0;
+            secuencia = 0;
+            fin = false;
+            finMano = false;
+            ficha = 0;
+            jugador = 0;
+            recibidos = 0;
+            monto = 0;
+            saldo = 0;
+            numDatos = 0;
+            posicion = 0;
+            mesa = 0;
+            lugares = 0;
+            esperando = 0;
+            return this;
+        }
+
+        /** Los que cuentan para retomar: todo salvo la negociación y la propia reanudación */
+        static boolean esDeJuego(byte tipo) {
+            return tipo != PROTO && tipo != ASIENTO && tipo != FICHA && tipo != RETOMAR && tipo != BUSCAR
+                && tipo != DESCONOCIDO;
+        }
+
+        Mensaje conCarta(int code) {
+            if (numCartas == MAX_CARTAS) throw new IllegalStateException("Demasiadas cartas en un mensaje");
+            cartas[numCartas++] = (byte) code;
+            return this;
+        }
+
+        Mensaje conMano(Hand mano) {
+            for (Card c : mano.getCards()) conCarta(c.getCode());
+            return this;
+        }
+
+        /** Las cartas de una de las manos de un asiento */
+        Mensaje conMano(Manos manos, int mano) {
+            for (int i = 0; i < manos.numCartas(mano); i++) conCarta(manos.carta(mano, i));
+            return enMano(mano);
+        }
+
+        Mensaje enMano(int mano) {
+            this.indiceMano = mano;
+            return this;
+        }
+
+        Mensaje conTotal(int total, boolean bust) {
+            this.total = total;
+            this.bust = bust;
+            return this;
+        }
+
+        Mensaje conOpciones(int opciones) {
+            this.opciones = opciones;
+            return this;
+        }
+
+        Mensaje conJugador(long jugador) {
+            this.jugador = jugador;
+            return this;
+        }
+
+        Mensaje enAsiento(int asiento) {
+            this.asiento = asiento;
+            return this;
+        }
+
+        Mensaje enMesa(int mesa) {
+            this.mesa = mesa;
+            return this;
+        }
+
+        /** resultado: 1 gana, 0 empate, -1 pierde */
+        Mensaje conResultado(int asiento, int total, int resultado) {
+            if (numResultados == MAX_RESULTADOS) throw new IllegalStateException("Demasiadas manos en un mensaje");
+            resAsiento[numResultados] = (byte) asiento;
+            resTotal[numResultados] = (byte) total;
+            this.resultado[numResultados] = (byte) resultado;
+            numResultados++;
+            return this;
+        }
+
+        Mensaje conAccion(byte accion) {
+            if (numAcciones == MAX_ACCIONES) throw new IllegalStateException("Demasiadas acciones en una jugada");
+            acciones[numAcciones++] = accion;
+            return this;
+        }
+
+        Mensaje hasta(int umbral) {
+            this.umbral = umbral;
+            return this;
+        }
+
+        Mensaje enSecuencia(int secuencia) {
+            this.secuencia = secuencia;
+            return this;
+        }
+
+        Mensaje terminado(boolean fin) {
+            this.fin = fin;
+            return this;
+        }
+
+        Mensaje conFicha(long ficha, int recibidos) {
+            this.ficha = ficha;
+            this.recibidos = recibidos;
+            return this;
+        }
+
+        Mensaje conMonto(long monto) {
+            this.monto = monto;
+            return this;
+        }
+
+        /** Pedido o aviso del emparejamiento */
+        Mensaje conBusqueda(long apuesta, int lugares, int esperando) {
+            this.monto = apuesta;
+            this.lugares = lugares;
+            this.esperando = esperando;
+            return this;
+        }
+
+        Mensaje conSaldo(long saldo, long monto) {
+            this.saldo = saldo;
+            this.monto = monto;
+            return this;
+        }
+
+        /** Huella del shoe en juego y dónde empieza la ronda en él */
+        Mensaje conHuella(byte[] huella, int posicion) {
+            System.arraycopy(huella, 0, datos, 0, Semilla.BYTES_HUELLA);
+            numDatos = Semilla.BYTES_HUELLA;
+            this.posicion = posicion;
+            return this;
+        }
+
+        Mensaje conSemilla(Semilla semilla, int repartidas) {
+            semilla.copiar(datos, 0);
+            numDatos = Semilla.BYTES;
+            posicion = repartidas;
+            return this;
+        }
+
+        /** Copia completa, para guardar un mensaje más allá de la próxima lectura */
+        Mensaje copiar(Mensaje otro) {
+            deTipo(otro.tipo).conTotal(otro.total, otro.bust).conOpciones(otro.opciones).enAsiento(otro.asiento)
+                .enSecuencia(otro.secuencia).hasta(otro.umbral).terminado(otro.fin).conFicha(otro.ficha, otro.recibidos)
+                .conSaldo(otro.saldo, otro.monto).enMano(otro.indiceMano);
+            finMano = otro.finMano;
+            System.arraycopy(otro.cartas, 0, cartas, 0, otro.numCartas);
+            numCartas = otro.numCartas;
+            System.arraycopy(otro.resAsiento, 0, resAsiento, 0, otro.numResultados);
+            System.arraycopy(otro.resTotal, 0, resTotal, 0, otro.numResultados);
+            System.arraycopy(otro.resultado, 0, resultado, 0, otro.numResultados);
+            numResultados = otro.numResultados;
+            System.arraycopy(otro.acciones, 0, acciones, 0, otro.numAcciones);
+            numAcciones = otro.numAcciones;
+            System.arraycopy(otro.datos, 0, datos, 0, otro.numDatos);
+            numDatos = otro.numDatos;
+            posicion = otro.posicion;
+            mesa = otro.mesa;
+            lugares = otro.lugares;
+            esperando = otro.esperando;
+            return this;
+        }
+
+        /** Copia una JUGADA para aplicarla más tarde */
+        Mensaje copiarJugada(Mensaje otro) {
+            deTipo(otro.tipo).enSecuencia(otro.secuencia).hasta(otro.umbral);
+            for (int i = 0; i < otro.numAcciones; i++) conAccion(otro.acciones[i]);
+            return this;
+        }
+
+        /**
+         * Lee una jugada escrita por el jugador: letras h/s en cola y, opcionalmente,
+         * un número para seguir pidiendo hasta llegar a él ("hh", "s", "17", "h16").
+         */
+        static boolean leerJugada(String texto, Mensaje m) {
+            m.deTipo(JUGADA);
+            int i = 0;
+            while (i < texto.length() && !Character.isDigit(texto.charAt(i))) {
+                char c = texto.charAt(i++);
+                if (c == 'h') m.conAccion(HIT);
+                else if (c == 's') m.conAccion(STAND);
+                else if (c != ' ') return false;
+                if (m.numAcciones == MAX_ACCIONES) return false;
+            }
+            if (i < texto.length()) {
+                try {
+                    m.umbral = Integer.parseInt(texto.substring(i).trim());
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                if (m.umbral < 1 || m.umbral > BLACKJACK_TARGET) return false;
+            }
+            return m.numAcciones > 0 || m.umbral > 0;
+        }
+
+        int carta(int i) { return cartas[i]; }
+
+        Hand mano() {
+            Hand mano = new Hand();
+            for (int i = 0; i < numCartas; i++) mano.add(Card.of(cartas[i]));
+            return mano;
+        }
+
+        /** Forma de texto, solo para mostrar errores */
+        @Override
+        public String toString() {
+            if (tipo == DESCONOCIDO) return "(mensaje desconocido)";
+            ByteBuffer b = ByteBuffer.allocate(MAX_LINEA);
+            ProtocoloTexto.INSTANCIA.escribir(this, b);
+            return new String(b.array(), 0, Math.max(0, b.position() - 1), StandardCharsets.US_ASCII);
+        }
+    }
+    
+    /** ----- Formato en el cable: texto (original) o binario ----- */
+    interface Protocolo {
+        /**
+         * Decodifica el siguiente mensaje desde la posición de entrada.
+         * Devuelve false (sin consumir nada) si todavía no llegó completo.
+         */
+        boolean leer(ByteBuffer entrada, Mensaje m) throws IOException;
+
+        /** Codifica el mensaje al final de salida */
+        void escribir(Mensaje m, ByteBuffer salida);
+    }
+
+    /** Una línea ASCII por mensaje: el protocolo de siempre, compatible con versiones anteriores */
+    static final class ProtocoloTexto implements Protocolo {
+        static final ProtocoloTexto INSTANCIA = new ProtocoloTexto();
+
+        private static final byte[][] NOMBRES = new byte[Mensaje.ULTIMO + 1][];
+        private static final byte[] BUST = ascii("BUST");
+        private static final byte[] BIN = ascii("BIN");
+        private static final byte[] MESA = ascii("MESA");
+        private static final byte[] LOTE = ascii("LOTE");
+        private static final byte[] FIN = ascii("FIN");
+        private static final byte[] SIGUE = ascii("SIGUE");
+        private static final byte[] MANO = ascii("MANO");
+        private static final byte[] NO = ascii("NO");
+        private static final byte[][] OPCIONES = { BIN, MESA, LOTE, ascii("RETOMA"), ascii("APUESTAS"), ascii("MANOS"), ascii("JUSTA") }; // bit i = opción 1 << i
+        static {
+            NOMBRES[Mensaje.CARTAS] = ascii("CARTAS");
+            NOMBRES[Mensaje.CARTA] = ascii("CARTA");
+            NOMBRES[Mensaje.HIT] = ascii("HIT");
+            NOMBRES[Mensaje.STAND] = ascii("STAND");
+            NOMBRES[Mensaje.TOTAL] = ascii("TOTAL");
+            NOMBRES[Mensaje.QUIERO_JUGAR] = ascii("QUIERO_JUGAR");
+            NOMBRES[Mensaje.NO_QUIERO_JUGAR] = ascii("NO_QUIERO_JUGAR");
+            NOMBRES[Mensaje.QUIT] = ascii("QUIT");
+            NOMBRES[Mensaje.PROTO] = ascii("PROTO");
+            NOMBRES[Mensaje.ASIENTO] = ascii("ASIENTO");
+            NOMBRES[Mensaje.RESULTADOS] = ascii("RESULTADOS");
+            NOMBRES[Mensaje.JUGADA] = ascii("JUGADA");
+            NOMBRES[Mensaje.LOTE] = LOTE;
+            NOMBRES[Mensaje.FICHA] = ascii("FICHA");
+            NOMBRES[Mensaje.RETOMAR] = ascii("RETOMAR");
+            NOMBRES[Mensaje.APUESTA] = ascii("APUESTA");
+            NOMBRES[Mensaje.SALDO] = ascii("SALDO");
+            NOMBRES[Mensaje.DOBLAR] = ascii("DOUBLE");
+            NOMBRES[Mensaje.DIVIDIR] = ascii("SPLIT");
+            NOMBRES[Mensaje.RENDIRSE] = ascii("SURRENDER");
+            NOMBRES[Mensaje.COMPROMISO] = ascii("COMPROMISO");
+            NOMBRES[Mensaje.SEMILLA] = ascii("SEMILLA");
+            NOMBRES[Mensaje.VISTA] = ascii("VISTA");
+            NOMBRES[Mensaje.MIRAR] = ascii("MIRAR");
+            NOMBRES[Mensaje.BUSCAR] = ascii("BUSCAR");
+        }
+
+        private static byte[] ascii(String s) { return s.getBytes(StandardCharsets.US_ASCII); }
+
+        @Override
+        public boolean leer(ByteBuffer entrada, Mensaje m) throws IOException {
+            int inicio = entrada.position();
+            int fin = -1;
+            for (int i = inicio; i < entrada.limit(); i++) {
+                if (entrada.get(i) == '\n') {
+                    fin = i;
+                    break;
+                }
+            }
+            if (fin < 0) {
+                // Una línea que no cabe en el buffer no es del protocolo
+                if (entrada.remaining() >= MAX_LINEA) throw new IOException("Línea demasiado larga");
+                return false;
+            }
+            entrada.position(fin + 1);
+            if (fin > inicio && entrada.get(fin - 1) == '\r') fin--; // println de Windows
+            decodificar(entrada, inicio, fin, m);
+            return true;
+        }
+
+        private void decodificar(ByteBuffer b, int inicio, int fin, Mensaje m) throws IOException {
+            m.deTipo(Mensaje.DESCONOCIDO);
+            int i = inicio;
+            for (byte tipo = 1; tipo < NOMBRES.length; tipo++) {
+                int despues = coincide(b, inicio, fin, NOMBRES[tipo]);
+                if (despues >= 0) {
+                    m.tipo = tipo;
+                    i = despues < fin ? despues + 1 : fin; // saltar ':'
+                    break;
+                }
+            }
+            switch (m.tipo) {
+                case Mensaje.CARTAS:
+                case Mensaje.CARTA:
+                    leerMano(b, i, fin, m);
+                    break;
+                case Mensaje.VISTA:
+                    while (i < fin && b.get(i) != ':') m.asiento = m.asiento * 10 + digito(b.get(i++));
+                    if (m.asiento >= Mesa.MAX_ASIENTOS) throw new IOException("Asiento inválido");
+                    leerMano(b, i + 1, fin, m);
+                    break;
+                case Mensaje.MIRAR: {
+                    long mesa = leerLargo(b, i, fin);
+                    if (mesa < 0 || mesa > Integer.MAX_VALUE) throw new IOException("Mesa inválida");
+                    m.mesa = (int) mesa;
+                    break;
+                }
+                case Mensaje.BUSCAR: {
+                    int separador = i;
+                    while (separador < fin && b.get(separador) != ':') separador++;
+                    m.monto = leerLargo(b, i, separador);
+                    for (i = separador + 1; i < fin && b.get(i) != ':'; i++) m.lugares = m.lugares * 10 + digito(b.get(i));
+                    for (i++; i < fin; i++) m.esperando = m.esperando * 10 + digito(b.get(i));
+                    if (m.lugares > Mesa.MAX_ASIENTOS || m.esperando > Mesa.MAX_ASIENTOS) throw new IOException("Asientos inválidos");
+                    break;
+                }
+                case Mensaje.TOTAL:
+                    int despuesBust = coincide(b, i, fin, BUST);
+                    if (despuesBust >= 0) {
+                        m.bust = true;
+                        i = despuesBust + 1;
+                    }
+                    while (i < fin && b.get(i) != ':') m.total = m.total * 10 + digito(b.get(i++));
+                    for (i++; i < fin; i++) m.indiceMano = m.indiceMano * 10 + digito(b.get(i));
+                    break;
+                case Mensaje.DOBLAR:
+                case Mensaje.DIVIDIR:
+                case Mensaje.RENDIRSE:
+                    if (coincide(b, i, fin, NO) >= 0) m.indiceMano = -1;
+                    else while (i < fin) m.indiceMano = m.indiceMano * 10 + digito(b.get(i++));
+                    break;
+                case Mensaje.PROTO:
+                    while (i < fin && b.get(i) != ':') {
+                        for (int k = 0; k < OPCIONES.length; k++) {
+                            if (coincide(b, i, fin, OPCIONES[k]) >= 0) m.opciones |= 1 << k;
+                        }
+                        while (i < fin && b.get(i) != ',' && b.get(i) != ':') i++; // opciones desconocidas se ignoran
+                        if (i < fin && b.get(i) == ',') i++;
+                    }
+                    i++; // Tras las opciones, la identidad del jugador en hex
+                    for (int digitos = 0; i < fin; digitos++) {
+                        if (digitos == 16) throw new IOException("Jugador inválido");
+                        int h = Character.digit(b.get(i++), 16);
+                        if (h < 0) throw new IOException("Jugador inválido");
+                        m.jugador = (m.jugador << 4) | h;
+                    }
+                    break;
+                case Mensaje.ASIENTO:
+                    while (i < fin) m.asiento = m.asiento * 10 + digito(b.get(i++));
+                    break;
+                case Mensaje.RESULTADOS:
+                    while (i < fin && b.get(i) != ':') m.total = m.total * 10 + digito(b.get(i++));
+                    m.bust = m.total > BLACKJACK_TARGET;
+                    int finCartas = ++i;
+                    while (finCartas < fin && b.get(finCartas) != ':') finCartas++;
+                    leerCartas(b, i, finCartas, m);
+                    i = finCartas + 1;
+                    while (i < fin) {
+                        int asiento = 0, total = 0, res = 0;
+                        while (i < fin && b.get(i) != ',') asiento = asiento * 10 + digito(b.get(i++));
+                        i++;
+                        while (i < fin && b.get(i) != ',') total = total * 10 + digito(b.get(i++));
+                        i++;
+                        while (i < fin && b.get(i) != ';') res = res * 10 + digito(b.get(i++));
+                        i++;
+                        if (res > 2) throw new IOException("Resultado inválido");
+                        if (m.numResultados == Mensaje.MAX_RESULTADOS) throw new IOException("Demasiados resultados");
+                        m.conResultado(asiento, total, res - 1);
+                    }
+                    break;
+                case Mensaje.JUGADA:
+                    while (i < fin && b.get(i) != ':') m.secuencia = m.secuencia * 10 + digito(b.get(i++));
+                    i++;
+                    for (; i < fin && b.get(i) != ':'; i++) {
+                        if (m.numAcciones == Mensaje.MAX_ACCIONES) throw new IOException("Demasiadas acciones");
+                        byte accion = b.get(i);
+                        if (accion == 'H') m.conAccion(Mensaje.HIT);
+                        else if (accion == 'S') m.conAccion(Mensaje.STAND);
+                        else throw new IOException("Acción inválida");
+                    }
+                    i++;
+                    while (i < fin && m.umbral <= BLACKJACK_TARGET) m.umbral = m.umbral * 10 + digito(b.get(i++));
+                    if (m.umbral > BLACKJACK_TARGET) throw new IOException("Umbral inválido");
+                    break;
+                case Mensaje.LOTE:
+                    while (i < fin && b.get(i) != ':') m.secuencia = m.secuencia * 10 + digito(b.get(i++));
+                    i++;
+                    int despuesFin = coincide(b, i, fin, FIN);
+                    int despuesMano = coincide(b, i, fin, MANO);
+                    if (despuesFin >= 0) {
+                        m.fin = true;
+                        i = despuesFin + 1;
+                    } else if (despuesMano >= 0) {
+                        m.finMano = true;
+                        i = despuesMano + 1;
+                    } else {
+                        int despuesSigue = coincide(b, i, fin, SIGUE);
+                        if (despuesSigue < 0) throw new IOException("Lote inválido");
+                        i = despuesSigue + 1;
+                    }
+                    while (i < fin && b.get(i) != ':') m.total = m.total * 10 + digito(b.get(i++));
+                    m.bust = m.total > BLACKJACK_TARGET;
+                    int finLote = ++i;
+                    while (finLote < fin && b.get(finLote) != ':') finLote++;
+                    leerCartas(b, i, finLote, m);
+                    for (i = finLote + 1; i < fin; i++) m.indiceMano = m.indiceMano * 10 + digito(b.get(i));
+                    break;
+                case Mensaje.FICHA:
+                case Mensaje.RETOMAR:
+                    for (int digitos = 0; i < fin && b.get(i) != ':'; digitos++) {
+                        if (digitos == 16) throw new IOException("Ficha inválida");
+                        int h = Character.digit(b.get(i++), 16);
+                        if (h < 0) throw new IOException("Ficha inválida");
+                        m.ficha = (m.ficha << 4) | h;
+                    }
+                    i++;
+                    while (i < fin) m.recibidos = m.recibidos * 10 + digito(b.get(i++));
+                    break;
+                case Mensaje.APUESTA:
+                    m.monto = leerLargo(b, i, fin);
+                    break;
+                case Mensaje.SALDO: {
+                    int separador = i;
+                    while (separador < fin && b.get(separador) != ':') separador++;
+                    m.saldo = leerLargo(b, i, separador);
+                    m.monto = leerLargo(b, separador + 1, fin);
+                    break;
+                }
+                case Mensaje.COMPROMISO:
+                case Mensaje.SEMILLA: {
+                    int largo = m.tipo == Mensaje.COMPROMISO ? Semilla.BYTES_HUELLA : Semilla.BYTES;
+                    if (fin - i < 2 * largo) throw new IOException("Huella inválida");
+                    for (int k = 0; k < largo; k++, i += 2) {
+                        int alto = Character.digit(b.get(i), 16);
+                        int bajo = Character.digit(b.get(i + 1), 16);
+                        if (alto < 0 || bajo < 0) throw new IOException("Huella inválida");
+                        m.datos[k] = (byte) (alto << 4 | bajo);
+                    }
+                    m.numDatos = largo;
+                    for (i++; i < fin; i++) m.posicion = m.posicion * 10 + digito(b.get(i));
+                    break;
+                }
+                default:
+                    break;
+            }
+            if (m.indiceMano >= Manos.MAX_MANOS) throw new IOException("Mano inválida");
+        }
+
+        /** Entero con signo opcional entre i y fin */
+        private static long leerLargo(ByteBuffer b, int i, int fin) throws IOException {
+            boolean negativo = i < fin && b.get(i) == '-';
+            if (negativo) i++;
+            if (fin - i > 18) throw new IOException("Número demasiado largo");
+            long n = 0;
+            while (i < fin) n = n * 10 + digito(b.get(i++));
+            return negativo ? -n : n;
+        }
+
+        /** Cartas "r,s;r,s;" y, si hay, ":m" con la mano */
+        private static void leerMano(ByteBuffer b, int i, int fin, Mensaje m) throws IOException {
+            int finCartas = i;
+            while (finCartas < fin && b.get(finCartas) != ':') finCartas++;
+            leerCartas(b, i, finCartas, m);
+            for (i = finCartas + 1; i < fin; i++) m.indiceMano = m.indiceMano * 10 + digito(b.get(i));
+        }
+
+        /** Cartas "r,s;r,s;" entre i y fin */
+        private static void leerCartas(ByteBuffer b, int i, int fin, Mensaje m) throws IOException {
+            while (i < fin) {
+                int rank = 0;
+                while (i < fin && b.get(i) != ',') rank = rank * 10 + digito(b.get(i++));
+                i++;
+                int suit = 0;
+                while (i < fin && b.get(i) != ';') suit = suit * 10 + digito(b.get(i++));
+                i++;
+                if (rank < 1 || rank > 13 || suit > 3) throw new IOException("Carta inválida");
+                if (m.numCartas == Mensaje.MAX_CARTAS) throw new IOException("Demasiadas cartas");
+                m.conCarta(suit * 13 + rank - 1);
+            }
+        }
+
+        /** Posición después de la palabra si empieza en desde y termina en ':', ',' o fin; si no -1 */
+        private static int coincide(ByteBuffer b, int desde, int fin, byte[] palabra) {
+            if (fin - desde < palabra.length) return -1;
+            for (int k = 0; k < palabra.length; k++) {
+                if (b.get(desde + k) != palabra[k]) return -1;
+            }
+            int despues = desde + palabra.length;
+            if (despues < fin && b.get(despues) != ':' && b.get(despues) != ',') return -1;
+            return despues;
+        }
+
+        private static int digito(byte c) throws IOException {
+            if (c < '0' || c > '9') throw new IOException("Número inválido en el mensaje");
+            return c - '0';
+        }
+
+        @Override
+        public void escribir(Mensaje m, ByteBuffer salida) {
+            salida.put(NOMBRES[m.tipo]);
+            switch (m.tipo) {
+                case Mensaje.CARTAS:
+                    salida.put((byte) ':');
+                    for (int i = 0; i < m.numCartas; i++) {
+                        escribirCarta(m.cartas[i], salida);
+                        salida.put((byte) ';');
+                    }
+                    escribirMano(m, salida);
+                    break;
+                case Mensaje.CARTA:
+                    salida.put((byte) ':');
+                    escribirCarta(m.cartas[0], salida);
+                    escribirMano(m, salida);
+                    break;
+                case Mensaje.VISTA:
+                    salida.put((byte) ':');
+                    escribirNumero(m.asiento, salida);
+                    salida.put((byte) ':');
+                    for (int i = 0; i < m.numCartas; i++) {
+                        escribirCarta(m.cartas[i], salida);
+                        salida.put((byte) ';');
+                    }
+                    escribirMano(m, salida);
+                    break;
+                case Mensaje.MIRAR:
+                    salida.put((byte) ':');
+                    escribirNumero(m.mesa, salida);
+                    break;
+                case Mensaje.BUSCAR:
+                    salida.put((byte) ':');
+                    escribirLargo(m.monto, salida);
+                    salida.put((byte) ':');
+                    escribirNumero(m.lugares, salida);
+                    if (m.esperando > 0) {
+                        salida.put((byte) ':');
+                        escribirNumero(m.esperando, salida);
+                    }
+                    break;
+                case Mensaje.TOTAL:
+                    salida.put((byte) ':');
+                    if (m.bust) salida.put(BUST).put((byte) ':');
+                    escribirNumero(m.total, salida);
+                    escribirMano(m, salida);
+                    break;
+                case Mensaje.DOBLAR:
+                case Mensaje.DIVIDIR:
+                case Mensaje.RENDIRSE:
+                    salida.put((byte) ':');
+                    if (m.indiceMano < 0) salida.put(NO);
+                    else escribirNumero(m.indiceMano, salida);
+                    break;
+                case Mensaje.PROTO:
+                    salida.put((byte) ':');
+                    boolean primera = true;
+                    for (int k = 0; k < OPCIONES.length; k++) {
+                        if ((m.opciones & (1 << k)) == 0) continue;
+                        if (!primera) salida.put((byte) ',');
+                        salida.put(OPCIONES[k]);
+                        primera = false;
+                    }
+                    if (m.jugador != 0) {
+                        salida.put((byte) ':');
+                        escribirHex(m.jugador, salida);
+                    }
+                    break;
+                case Mensaje.ASIENTO:
+                    salida.put((byte) ':');
+                    escribirNumero(m.asiento, salida);
+                    break;
+                case Mensaje.RESULTADOS:
+                    salida.put((byte) ':');
+                    escribirNumero(m.total, salida);
+                    salida.put((byte) ':');
+                    for (int i = 0; i < m.numCartas; i++) {
+                        escribirCarta(m.cartas[i], salida);
+                        salida.put((byte) ';');
+                    }
+                    salida.put((byte) ':');
+                    for (int i = 0; i < m.numResultados; i++) {
+                        escribirNumero(m.resAsiento[i], salida);
+                        salida.put((byte) ',');
+                        escribirNumero(m.resTotal[i], salida);
+                        salida.put((byte) ',');
+                        escribirNumero(m.resultado[i] + 1, salida);
+                        salida.put((byte) ';');
+                    }
+                    break;
+                case Mensaje.JUGADA:
+                    salida.put((byte) ':');
+                    escribirNumero(m.secuencia, salida);
+                    salida.put((byte) ':');
+                    for (int i = 0; i < m.numAcciones; i++) {
+                        salida.put((byte) (m.acciones[i] == Mensaje.HIT ? 'H' : 'S'));
+                    }
+                    salida.put((byte) ':');
+                    escribirNumero(m.umbral, salida);
+                    break;
+                case Mensaje.LOTE:
+                    salida.put((byte) ':');
+                    escribirNumero(m.secuencia, salida);
+                    salida.put((byte) ':');
+                    salida.put(m.fin ? FIN : m.finMano ? MANO : SIGUE);
+                    salida.put((byte) ':');
+                    escribirNumero(m.total, salida);
+                    salida.put((byte) ':');
+                    for (int i = 0; i < m.numCartas; i++) {
+                        escribirCarta(m.cartas[i], salida);
+                        salida.put((byte) ';');
+                    }
+                    escribirMano(m, salida);
+                    break;
+                case Mensaje.FICHA:
+                case Mensaje.RETOMAR:
+                    salida.put((byte) ':');
+                    escribirHex(m.ficha, salida);
+                    if (m.tipo == Mensaje.RETOMAR) {
+                        salida.put((byte) ':');
+                        escribirNumero(m.recibidos, salida);
+                    }
+                    break;
+                case Mensaje.APUESTA:
+                    salida.put((byte) ':');
+                    escribirLargo(m.monto, salida);
+                    break;
+                case Mensaje.SALDO:
+                    salida.put((byte) ':');
+                    escribirLargo(m.saldo, salida);
+                    salida.put((byte) ':');
+                    escribirLargo(m.monto, salida);
+                    break;
+                case Mensaje.COMPROMISO:
+                case Mensaje.SEMILLA:
+                    salida.put((byte) ':');
+                    for (int k = 0; k < m.numDatos; k++) {
+                        salida.put((byte) Character.forDigit((m.datos[k] >>> 4) & 0xF, 16));
+                        salida.put((byte) Character.forDigit(m.datos[k] & 0xF, 16));
+                    }
+                    salida.put((byte) ':');
+                    escribirNumero(m.posicion, salida);
+                    break;
+                default:
+                    break;
+            }
+            salida.put((byte) '\n');
+        }
+
+        /** La mano 0 no se escribe: es lo que entiende un cliente sin MANOS */
+        private static void escribirMano(Mensaje m, ByteBuffer salida) {
+            if (m.indiceMano == 0) return;
+            salida.put((byte) ':');
+            escribirNumero(m.indiceMano, salida);
+        }
+
+        private static void escribirLargo(long n, ByteBuffer salida) {
+            if (n < 0) {
+                salida.put((byte) '-');
+                n = -n;
+            }
+            if (n >= 10) escribirLargo(n / 10, salida);
+            salida.put((byte) ('0' + n % 10));
+        }
+
+        /** Los 16 dígitos hex de una ficha o de un jugador */
+        private static void escribirHex(long n, ByteBuffer salida) {
+            for (int corrimiento = 60; corrimiento >= 0; corrimiento -= 4) {
+                salida.put((byte) Character.forDigit((int) (n >>> corrimiento) & 0xF, 16));
+            }
+        }
+
+        private static void escribirCarta(int code, ByteBuffer salida) {
+            escribirNumero(Card.rankOf(code), salida);
+            salida.put((byte) ',');
+            escribirNumero(code / 13, salida);
+        }
+
+        private static void escribirNumero(int n, ByteBuffer salida) {
+            if (n >= 10) escribirNumero(n / 10, salida);
+            salida.put((byte) ('0' + n % 10));
+        }
+    }
+
+    /**
+     * Tramas binarias: [longitud u16][opcode u8][datos], con la longitud contando
+     * opcode y datos. Las cartas viajan como su código 0..51 en un byte.
+     */
+    static final class ProtocoloBinario implements Protocolo {
+        static final ProtocoloBinario INSTANCIA = new ProtocoloBinario();
+        // RESULTADOS es la trama más larga: total, cartas del dealer y tres bytes por mano
+        private static final int MAX_TRAMA = 1 + 2 + Mensaje.MAX_CARTAS + 1 + 3 * Mensaje.MAX_RESULTADOS;
+        private static final int FLAG_BUST = 1;
+        private static final int FLAG_FIN = 2;
+        private static final int FLAG_FIN_MANO = 4;
+        private static final int NO = 0xFF;
+        // CARTAS y CARTA: el código va en los 6 bits bajos y la mano en los 2 altos (0 para un cliente sin MANOS)
+        private static final int BITS_CODIGO = 6;
+
+        @Override
+        public boolean leer(ByteBuffer entrada, Mensaje m) throws IOException {
+            if (entrada.remaining() < 2) return false;
+            int inicio = entrada.position();
+            int largo = entrada.getShort(inicio) & 0xFFFF;
+            if (largo < 1 || largo > MAX_TRAMA) throw new IOException("Trama inválida");
+            if (entrada.remaining() < 2 + largo) return false;
+            entrada.position(inicio + 2);
+            m.deTipo(entrada.get());
+            int datos = largo - 1;
+            switch (m.tipo) {
+                case Mensaje.CARTAS:
+                case Mensaje.CARTA:
+                    leerCartasConMano(entrada, datos, m);
+                    break;
+                case Mensaje.VISTA:
+                    if (datos < 2) throw new IOException("Trama inválida");
+                    m.asiento = entrada.get() & 0xFF;
+                    if (m.asiento >= Mesa.MAX_ASIENTOS) throw new IOException("Asiento inválido");
+                    leerCartasConMano(entrada, datos - 1, m);
+                    break;
+                case Mensaje.MIRAR:
+                    if (datos != 4) throw new IOException("Trama inválida");
+                    m.mesa = entrada.getInt();
+                    if (m.mesa < 0) throw new IOException("Mesa inválida");
+                    break;
+                case Mensaje.BUSCAR:
+                    if (datos != 10) throw new IOException("Trama inválida");
+                    m.monto = entrada.getLong();
+                    m.lugares = entrada.get() & 0xFF;
+                    m.esperando = entrada.get() & 0xFF;
+                    if (m.lugares > Mesa.MAX_ASIENTOS || m.esperando > Mesa.MAX_ASIENTOS) throw new IOException("Asientos inválidos");
+                    break;
+                case Mensaje.TOTAL:
+                    if (datos != 2 && datos != 3) throw new IOException("Trama inválida");
+                    m.bust = (entrada.get() & FLAG_BUST) != 0;
+                    m.total = entrada.get() & 0xFF;
+                    if (datos == 3) m.indiceMano = entrada.get() & 0xFF;
+                    break;
+                case Mensaje.DOBLAR:
+                case Mensaje.DIVIDIR:
+                case Mensaje.RENDIRSE: {
+                    if (datos != 1) throw new IOException("Trama inválida");
+                    int mano = entrada.get() & 0xFF;
+                    m.indiceMano = mano == NO ? -1 : mano;
+                    break;
+                }
+                case Mensaje.PROTO:
+                    if (datos != 1 && datos != 9) throw new IOException("Trama inválida");
+                    m.opciones = entrada.get() & 0xFF;
+                    if (datos == 9) m.jugador = entrada.getLong();
+                    break;
+                case Mensaje.ASIENTO:
+                    if (datos != 1) throw new IOException("Trama inválida");
+                    m.asiento = entrada.get() & 0xFF;
+                    break;
+                case Mensaje.RESULTADOS: {
+                    if (datos < 3) throw new IOException("Trama inválida");
+                    m.total = entrada.get() & 0xFF;
+                    m.bust = m.total > BLACKJACK_TARGET;
+                    int numCartas = entrada.get() & 0xFF;
+                    if (datos < 3 + numCartas || numCartas > Mensaje.MAX_CARTAS) throw new IOException("Trama inválida");
+                    for (int k = 0; k < numCartas; k++) {
+                        int code = entrada.get();
+                        if (code < 0 || code >= 52) throw new IOException("Carta inválida");
+                        m.conCarta(code);
+                    }
+                    int numResultados = entrada.get() & 0xFF;
+                    if (datos != 3 + numCartas + 3 * numResultados || numResultados > Mensaje.MAX_RESULTADOS) {
+                        throw new IOException("Trama inválida");
+                    }
+                    for (int k = 0; k < numResultados; k++) {
+                        m.conResultado(entrada.get(), entrada.get() & 0xFF, entrada.get());
+                    }
+                    break;
+                }
+                case Mensaje.JUGADA:
+                    if (datos < 5 || datos > 5 + Mensaje.MAX_ACCIONES) throw new IOException("Trama inválida");
+                    m.secuencia = entrada.getInt();
+                    m.umbral = entrada.get() & 0xFF;
+                    if (m.umbral > BLACKJACK_TARGET) throw new IOException("Trama inválida");
+                    for (int k = 5; k < datos; k++) {
+                        byte accion = entrada.get();
+                        if (accion != Mensaje.HIT && accion != Mensaje.STAND) throw new IOException("Acción inválida");
+                        m.conAccion(accion);
+                    }
+                    break;
+                case Mensaje.LOTE:
+                    if (datos < 6 || datos - 6 > Mensaje.MAX_CARTAS) throw new IOException("Trama inválida");
+                    m.secuencia = entrada.getInt();
+                    int flags = entrada.get();
+                    m.bust = (flags & FLAG_BUST) != 0;
+                    m.fin = (flags & FLAG_FIN) != 0;
+                    m.finMano = (flags & FLAG_FIN_MANO) != 0;
+                    m.indiceMano = flags >>> 4;
+                    m.total = entrada.get() & 0xFF;
+                    for (int k = 6; k < datos; k++) {
+                        int code = entrada.get();
+                        if (code < 0 || code >= 52) throw new IOException("Carta inválida");
+                        m.conCarta(code);
+                    }
+                    break;
+                case Mensaje.FICHA:
+                    if (datos != 8) throw new IOException("Trama inválida");
+                    m.ficha = entrada.getLong();
+                    break;
+                case Mensaje.RETOMAR:
+                    if (datos != 12) throw new IOException("Trama inválida");
+                    m.ficha = entrada.getLong();
+                    m.recibidos = entrada.getInt();
+                    break;
+                case Mensaje.APUESTA:
+                    if (datos != 8) throw new IOException("Trama inválida");
+                    m.monto = entrada.getLong();
+                    break;
+                case Mensaje.SALDO:
+                    if (datos != 16) throw new IOException("Trama inválida");
+                    m.saldo = entrada.getLong();
+                    m.monto = entrada.getLong();
+                    break;
+                case Mensaje.COMPROMISO:
+                case Mensaje.SEMILLA: {
+                    int bytes = m.tipo == Mensaje.COMPROMISO ? Semilla.BYTES_HUELLA : Semilla.BYTES;
+                    if (datos != bytes + 2) throw new IOException("Trama inválida");
+                    entrada.get(m.datos, 0, bytes);
+                    m.numDatos = bytes;
+                    m.posicion = entrada.getShort() & 0xFFFF;
+                    break;
+                }
+                default:
+                    if (m.tipo < 0 || m.tipo > Mensaje.ULTIMO) m.tipo = Mensaje.DESCONOCIDO;
+                    entrada.position(entrada.position() + datos);
+                    break;
+            }
+            if (m.indiceMano >= Manos.MAX_MANOS) throw new IOException("Mano inválida");
+            return true;
+        }
+
+        private static void leerCartasConMano(ByteBuffer entrada, int datos, Mensaje m) throws IOException {
+            if (datos > Mensaje.MAX_CARTAS) throw new IOException("Trama inválida");
+            for (int k = 0; k < datos; k++) {
+                int b = entrada.get() & 0xFF;
+                int code = b & ((1 << BITS_CODIGO) - 1);
+                if (code >= 52) throw new IOException("Carta inválida");
+                m.indiceMano = b >>> BITS_CODIGO;
+                m.conCarta(code);
+            }
+        }
+
+        @Override
+        public void escribir(Mensaje m, ByteBuffer salida) {
+            int inicio = salida.position();
+            salida.putShort((short) 0); // longitud, se completa al final
+            salida.put(m.tipo);
+            switch (m.tipo) {
+                case Mensaje.CARTAS:
+                case Mensaje.CARTA:
+                    for (int k = 0; k < m.numCartas; k++) salida.put((byte) (m.indiceMano << BITS_CODIGO | m.cartas[k]));
+                    break;
+                case Mensaje.VISTA:
+                    salida.put((byte) m.asiento);
+                    for (int k = 0; k < m.numCartas; k++) salida.put((byte) (m.indiceMano << BITS_CODIGO | m.cartas[k]));
+                    break;
+                case Mensaje.MIRAR:
+                    salida.putInt(m.mesa);
+                    break;
+                case Mensaje.BUSCAR:
+                    salida.putLong(m.monto);
+                    salida.put((byte) m.lugares);
+                    salida.put((byte) m.esperando);
+                    break;
+                case Mensaje.TOTAL:
+                    salida.put((byte) (m.bust ? FLAG_BUST : 0));
+                    salida.put((byte) m.total);
+                    if (m.indiceMano != 0) salida.put((byte) m.indiceMano);
+                    break;
+                case Mensaje.DOBLAR:
+                case Mensaje.DIVIDIR:
+                case Mensaje.RENDIRSE:
+                    salida.put((byte) (m.indiceMano < 0 ? NO : m.indiceMano));
+                    break;
+                case Mensaje.PROTO:
+                    salida.put((byte) m.opciones);
+                    if (m.jugador != 0) salida.putLong(m.jugador);
+                    break;
+                case Mensaje.ASIENTO:
+                    salida.put((byte) m.asiento);
+                    break;
+                case Mensaje.RESULTADOS:
+                    salida.put((byte) m.total);
+                    salida.put((byte) m.numCartas);
+                    salida.put(m.cartas, 0, m.numCartas);
+                    salida.put((byte) m.numResultados);
+                    for (int k = 0; k < m.numResultados; k++) {
+                        salida.put(m.resAsiento[k]).put(m.resTotal[k]).put(m.resultado[k]);
+                    }
+                    break;
+                case Mensaje.JUGADA:
+                    salida.putInt(m.secuencia);
+                    salida.put((byte) m.umbral);
+                    salida.put(m.acciones, 0, m.numAcciones);
+                    break;
+                case Mensaje.LOTE:
+                    salida.putInt(m.secuencia);
+                    salida.put((byte) ((m.bust ? FLAG_BUST : 0) | (m.fin ? FLAG_FIN : 0)
+                        | (m.finMano ? FLAG_FIN_MANO : 0) | m.indiceMano << 4));
+                    salida.put((byte) m.total);
+                    salida.put(m.cartas, 0, m.numCartas);
+                    break;
+                case Mensaje.FICHA:
+                    salida.putLong(m.ficha);
+                    break;
+                case Mensaje.RETOMAR:
+                    salida.putLong(m.ficha);
+                    salida.putInt(m.recibidos);
+                    break;
+                case Mensaje.APUESTA:
+                    salida.putLong(m.monto);
+                    break;
+                case Mensaje.SALDO:
+                    salida.putLong(m.saldo);
+                    salida.putLong(m.monto);
+                    break;
+                case Mensaje.COMPROMISO:
+                case Mensaje.SEMILLA:
+                    salida.put(m.datos, 0, m.numDatos);
+                    salida.putShort((short) m.posicion);
+                    break;
+                default:
+                    break;
+            }
+            salida.putShort(inicio, (short) (salida.position() - inicio - 2));
+        }
+    }
+
+    /** ----- Extremo que envía mensajes, por socket bloqueante o por NIO ----- */
+    abstract static class Enlace {
+        private final Mensaje saliente = new Mensaje();
+
+        /** Como PrintWriter: un error de escritura aparece en la siguiente lectura */
+        abstract void enviar(Mensaje m);
+
+        void enviar(byte tipo) { enviar(saliente.deTipo(tipo)); }
+        void enviarCartas(Hand mano) { enviar(saliente.deTipo(Mensaje.CARTAS).conMano(mano)); }
+        void enviarCarta(Card c) { enviar(saliente.deTipo(Mensaje.CARTA).conCarta(c.getCode())); }
+        void enviarTotal(int total, boolean bust) { enviarTotal(total, bust, 0); }
+        void enviarTotal(int total, boolean bust, int mano) { enviar(saliente.deTipo(Mensaje.TOTAL).conTotal(total, bust).enMano(mano)); }
+        void enviarAsiento(int asiento) { enviar(saliente.deTipo(Mensaje.ASIENTO).enAsiento(asiento)); }
+    }
+
+    /** ----- Canal bloqueante para jugarMultiplayer (host y cliente) ----- */
+    static final class CanalJuego extends Enlace implements Closeable {
+        /** Identidad de este programa ante los servidores de mesas: el saldo sigue entre conexiones */
+        private static final long JUGADOR_LOCAL = identidadAlAzar();
+
+        private final SocketAddress direccion;
+        private volatile Socket socket;
+        private InputStream entrada;
+        private OutputStream salida;
+        private final ByteBuffer bufEntrada = ByteBuffer.allocate(MAX_LINEA);
+        private final ByteBuffer bufSalida = ByteBuffer.allocate(MAX_LINEA);
+        private final Mensaje recibido = new Mensaje();
+        private Protocolo protocolo = ProtocoloTexto.INSTANCIA;
+        private int asiento = -1;
+        private int pedidas;
+        private long jugador; // 0 = anónimo: la mesa abre una cuenta nueva en cada asiento
+        private int opciones;
+        private int secuencia; // última JUGADA enviada
+        private long saldo;    // último SALDO recibido, si se negoció APUESTAS
+        private volatile Retoma retoma; // null si no se negoció RETOMA o ya no hay partida que retomar
+        private VerificadorShoe verificador; // null si no se negoció JUSTA
+        private volatile boolean cerrado;
+
+        CanalJuego(Socket socket) throws IOException {
+            this.direccion = socket.getRemoteSocketAddress();
+            usar(socket);
+            Metricas.CONEXIONES.sumar();
+        }
+
+        private void usar(Socket socket) throws IOException {
+            this.socket = socket;
+            this.entrada = socket.getInputStream();
+            this.salida = socket.getOutputStream();
+            bufEntrada.clear().flip(); // vacío y en modo lectura
+            protocolo = ProtocoloTexto.INSTANCIA;
+        }
+
+        /**
+         * Pide opciones (tramas binarias, resumen de mesa, retomar, apuestas) a un
+         * servidor de mesas que las anunció. El servidor responde PROTO en texto,
+         * luego el asiento si aceptó MESA, la ficha si aceptó RETOMA y el saldo si
+         * aceptó APUESTAS, y vuelve a enviar la mano en el formato acordado, así
+         * que lo recibido antes de la respuesta se descarta.
+         */
+        int negociar(int pedidas) throws IOException {
+            this.pedidas = pedidas;
+            Mensaje pedido = new Mensaje().deTipo(Mensaje.PROTO).conOpciones(pedidas).conJugador(jugador);
+            escribir(pedido);
+            Mensaje m;
+            do {
+                m = recibir();
+                if (m == null) throw new EOFException("Conexión cerrada durante la negociación");
+            } while (m.tipo != Mensaje.PROTO);
+            int aceptadas = m.opciones & pedidas;
+            opciones = aceptadas;
+            if ((aceptadas & Mensaje.OPCION_BINARIO) != 0) protocolo = ProtocoloBinario.INSTANCIA;
+            leerAsiento();
+            if ((aceptadas & Mensaje.OPCION_JUSTA) != 0 && verificador == null) {
+                verificador = new VerificadorShoe((aceptadas & Mensaje.OPCION_MESA) == 0);
+            }
+            return aceptadas;
+        }
+
+        /**
+         * Lado del host de una partida de dos: espera hasta 'espera' ms el PROTO
+         * del cliente y responde con lo que pidió de 'ofrecidas'. Un cliente que
+         * no negocia no manda nada antes de sus cartas; entonces devuelve 0.
+         */
+        int atenderNegociacion(int ofrecidas, int espera) throws IOException {
+            Mensaje m;
+            socket.setSoTimeout(espera);
+            try {
+                m = recibir();
+            } catch (SocketTimeoutException e) {
+                bufEntrada.flip(); // recibir() quedó a mitad de compact()
+                return 0;
+            } finally {
+                socket.setSoTimeout(0);
+            }
+            if (m == null || m.tipo != Mensaje.PROTO) return 0;
+            opciones = m.opciones & ofrecidas;
+            escribir(new Mensaje().deTipo(Mensaje.PROTO).conOpciones(opciones));
+            return opciones;
+        }
+
+        /** Negociar como el jugador de este programa, con la misma cuenta en cada conexión */
+        void identificarse() { jugador = JUGADOR_LOCAL; }
+
+        private static long identidadAlAzar() {
+            long id;
+            do {
+                id = new SecureRandom().nextLong();
+            } while (id == 0);
+            return id;
+        }
+
+        /** Lo que manda la mesa al sentarnos según lo negociado: asiento, ficha y saldo */
+        private void leerAsiento() throws IOException {
+            Mensaje m;
+            if ((opciones & Mensaje.OPCION_MESA) != 0) {
+                m = recibir();
+                if (m == null || m.tipo != Mensaje.ASIENTO) throw new IOException("Se esperaba el asiento");
+                asiento = m.asiento;
+            }
+            if ((opciones & Mensaje.OPCION_RETOMA) != 0) {
+                m = recibir();
+                if (m == null || m.tipo != Mensaje.FICHA) throw new IOException("Se esperaba la ficha");
+                retoma = new Retoma(m.ficha);
+            }
+            if ((opciones & Mensaje.OPCION_APUESTAS) != 0) {
+                m = recibir();
+                if (m == null || m.tipo != Mensaje.SALDO) throw new IOException("Se esperaba el saldo");
+                saldo = m.saldo;
+            }
+        }
+
+        /**
+         * Pide al servidor de mesas una mesa con esa apuesta y esos asientos y
+         * espera en la sala; enEspera recibe cuántos esperan cada vez que cambia.
+         * Lo que llegue antes de la primera respuesta es del asiento que se deja
+         * y se descarta. Con la mesa completa lee el asiento nuevo y devuelve
+         * true; false si el servidor rechazó el pedido.
+         */
+        boolean buscar(long apuesta, int lugares, IntConsumer enEspera) throws IOException {
+            // La ficha y el shoe eran de la mesa que se deja
+            retoma = null;
+            verificador = null;
+            escribir(new Mensaje().deTipo(Mensaje.BUSCAR).conBusqueda(apuesta, lugares, 0));
+            while (true) {
+                Mensaje m = recibir();
+                if (m == null) throw new EOFException("Conexión cerrada en la sala de espera");
+                if (m.tipo != Mensaje.BUSCAR) continue;
+                if (m.esperando == 0) return false;
+                if (m.esperando == m.lugares) break;
+                enEspera.accept(m.esperando);
+            }
+            leerAsiento();
+            if ((opciones & Mensaje.OPCION_JUSTA) != 0) verificador = new VerificadorShoe(false);
+            return true;
+        }
+
+        /**
+         * Tras un corte vuelve a conectarse durante GRACIA_RETOMA, negocia lo
+         * mismo que antes y presenta la ficha. El servidor responde RETOMAR con
+         * cuántos mensajes nuestros recibió y reenvía los suyos que nos faltan;
+         * aquí se reenvían los nuestros. Devuelve false si no hay ficha, se acabó
+         * el tiempo o el servidor ya liberó el asiento.
+         */
+        synchronized boolean retomar() {
+            Retoma anterior = retoma;
+            if (anterior == null) return false;
+            retoma = null; // Lo que llegue hasta RETOMAR es del asiento provisorio y no cuenta para el nuestro
+            int miAsiento = asiento;
+            // Lo que reciba el asiento provisorio no es de nuestro shoe
+            VerificadorShoe miVerificador = verificador;
+            verificador = null;
+            try {
+                return retomar(anterior, miAsiento);
+            } finally {
+                verificador = miVerificador;
+            }
+        }
+
+        private boolean retomar(Retoma anterior, int miAsiento) {
+            long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GRACIA_RETOMA);
+            while (!cerrado && System.nanoTime() - limite < 0) {
+                try {
+                    Socket nuevo = new Socket();
+                    nuevo.connect(direccion, TIMEOUT_BUSQUEDA);
+                    try { socket.close(); } catch (IOException e) { /* ya cerrado */ }
+                    usar(nuevo);
+                    if (cerrado) break;
+                    negociar(pedidas);
+                    retoma = null; // La ficha del asiento provisorio no sirve
+                    escribir(new Mensaje().deTipo(Mensaje.RETOMAR).conFicha(anterior.ficha, anterior.recibidos));
+                    Mensaje m;
+                    do {
+                        m = recibir();
+                        if (m == null) throw new EOFException("Conexión cerrada al retomar");
+                    } while (m.tipo != Mensaje.RETOMAR);
+                    if (m.ficha == 0 || !anterior.puedeReenviar(m.recibidos)) return false;
+                    retoma = anterior;
+                    asiento = miAsiento;
+                    for (int n = m.recibidos; n < anterior.enviados; n++) escribir(anterior.enviado(n));
+                    return true;
+                } catch (IOException e) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Pide mirar una mesa (0 = la que tenga más jugadores). Lo que llegue
+         * antes de la respuesta es del asiento provisorio y se descarta.
+         * Devuelve el número de la mesa, o 0 si no hay ninguna que mirar.
+         */
+        int mirar(int mesa) throws IOException {
+            escribir(new Mensaje().deTipo(Mensaje.MIRAR).enMesa(mesa));
+            Mensaje m;
+            do {
+                m = recibir();
+                if (m == null) throw new EOFException("Conexión cerrada al pedir la mesa");
+            } while (m.tipo != Mensaje.MIRAR);
+            return m.mesa;
+        }
+
+        boolean isCerrado() { return cerrado; }
+
+        /** Asiento en la mesa del servidor, o -1 si no se negoció MESA */
+        int getAsiento() { return asiento; }
+
+        boolean isLote() { return (opciones & Mensaje.OPCION_LOTE) != 0; }
+        /** Un servidor de mesas: cierra el turno de un blackjack al repartir */
+        boolean isMesa() { return (opciones & Mensaje.OPCION_MESA) != 0; }
+
+        /** La mesa cobra apuestas y manda SALDO tras cada ronda */
+        boolean isApuestas() { return (opciones & Mensaje.OPCION_APUESTAS) != 0; }
+
+        /** La mesa acepta DOUBLE, SPLIT y SURRENDER */
+        boolean isManos() { return (opciones & Mensaje.OPCION_MANOS) != 0; }
+
+        /** Se negoció JUSTA: COMPROMISO antes de repartir y SEMILLA al terminar el shoe */
+        boolean isJusta() { return (opciones & Mensaje.OPCION_JUSTA) != 0; }
+
+        /** Saldo de la cuenta en la mesa al negociar o tras el último SALDO visto */
+        long getSaldo() { return saldo; }
+
+        void actualizarSaldo(Mensaje m) { saldo = m.saldo; }
+
+        /** Hay una ficha vigente para volver al asiento si se corta */
+        boolean puedeRetomar() { return retoma != null && !cerrado; }
+
+        /** Envía la jugada con la siguiente secuencia y la devuelve, para esperar su LOTE */
+        int enviarJugada(Mensaje jugada) {
+            enviar(jugada.enSecuencia(++secuencia));
+            return secuencia;
+        }
+
+        /**
+         * Bloquea hasta el siguiente mensaje; null si el otro lado cerró.
+         * COMPROMISO y SEMILLA se los queda el verificador.
+         */
+        Mensaje recibir() throws IOException {
+            while (true) {
+                long inicio = System.nanoTime();
+                while (!protocolo.leer(bufEntrada, recibido)) {
+                    bufEntrada.compact();
+                    int leidos = entrada.read(bufEntrada.array(), bufEntrada.position(), bufEntrada.remaining());
+                    if (leidos > 0) bufEntrada.position(bufEntrada.position() + leidos);
+                    bufEntrada.flip();
+                    if (leidos < 0) return null;
+                }
+                Retoma r = retoma;
+                if (r != null && Mensaje.esDeJuego(recibido.tipo)) r.recibidos++;
+                Metricas.ESPERA[recibido.tipo].desde(inicio);
+                Metricas.MENSAJES.sumar();
+                VerificadorShoe v = verificador;
+                if (v == null || !v.ver(recibido)) return recibido;
+            }
+        }
+
+        /** Guarda los mensajes de juego para reenviarlos si hay que retomar */
+        @Override
+        synchronized void enviar(Mensaje m) {
+            Retoma r = retoma;
+            if (r != null) {
+                if (m.tipo == Mensaje.QUIT || m.tipo == Mensaje.NO_QUIERO_JUGAR) retoma = null; // Ya no hay a qué volver
+                else if (Mensaje.esDeJuego(m.tipo)) r.guardar(m);
+            }
+            escribir(m);
+        }
+
+        private void escribir(Mensaje m) {
+            bufSalida.clear();
+            protocolo.escribir(m, bufSalida);
+            try {
+                salida.write(bufSalida.array(), 0, bufSalida.position());
+                salida.flush();
+            } catch (IOException e) {
+                // Se detecta al leer, igual que con PrintWriter
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            cerrado = true;
+            Socket s = socket;
+            if (!s.isClosed()) Metricas.CONEXIONES.restar();
+            s.close();
+        }
+    }
+
+    /** ----- Barajado comprobable, del lado del cliente ----- */
+    /**
+     * Anota la huella del shoe, dónde empezó cada ronda y las cartas propias y
+     * del dealer. Con la SEMILLA rehace el shoe: la huella tiene que coincidir y
+     * cada ronda tiene que haber salido del shoe en el orden en que reparte la
+     * mesa (propia, dealer, propia, dealer, las pedidas y al final las del
+     * dealer). Solo en la mesa la ronda tiene que ser exactamente ese tramo; con
+     * más asientos las cartas ajenas van intercaladas y se comprueba el orden.
+     * En un duelo reparte el host: host, propia, host, propia, las pedidas
+     * propias y después las del host, que tienen que sumar el TOTAL que anunció.
+     */
+    static final class VerificadorShoe {
+        private static final class Tramo {
+            final int inicio;
+            final ByteArrayOutputStream propias = new ByteArrayOutputStream();
+            final ByteArrayOutputStream dealer = new ByteArrayOutputStream();
+            boolean solo; // RESULTADOS trajo un único asiento
+            int totalRival = -1; // duelo: el TOTAL del host, o -1 si no llegó
+
+            /** Las cartas de la ronda en el orden en que salieron del shoe */
+            byte[] repartidas() {
+                byte[] p = propias.toByteArray();
+                byte[] d = dealer.toByteArray();
+                byte[] r = new byte[p.length + d.length];
+                int n = 0;
+                for (int k = 0; k < 2; k++) {
+                    if (k < p.length) r[n++] = p[k];
+                    if (k < d.length) r[n++] = d[k];
+                }
+                for (int k = 2; k < p.length; k++) r[n++] = p[k];
+                for (int k = 2; k < d.length; k++) r[n++] = d[k];
+                return r;
+            }
+
+            Tramo(int inicio) {
+                this.inicio = inicio;
+            }
+        }
+
+        private final boolean duelo; // partida de dos contra el host, sin dealer
+        private byte[] huella; // la del shoe en juego; null hasta el primer COMPROMISO
+        private final List<Tramo> tramos = new ArrayList<>();
+
+        VerificadorShoe(boolean duelo) {
+            this.duelo = duelo;
+        }
+
+        /** Mira un mensaje recibido; true si era COMPROMISO o SEMILLA y no hay que entregarlo */
+        boolean ver(Mensaje m) {
+            Tramo actual = tramos.isEmpty() ? null : tramos.get(tramos.size() - 1);
+            switch (m.tipo) {
+                case Mensaje.COMPROMISO: {
+                    byte[] nueva = Arrays.copyOf(m.datos, m.numDatos);
+                    if (!Arrays.equals(huella, nueva)) {
+                        huella = nueva;
+                        tramos.clear();
+                    } else if (actual != null && actual.inicio == m.posicion) {
+                        tramos.remove(tramos.size() - 1); // La mesa reenvía la ronda en curso
+                    }
+                    tramos.add(new Tramo(m.posicion));
+                    return true;
+                }
+                case Mensaje.SEMILLA:
+                    System.out.println(comprobar(Semilla.de(m.datos, 0), m.posicion));
+                    huella = null;
+                    tramos.clear();
+                    return true;
+                case Mensaje.CARTAS:
+                case Mensaje.CARTA:
+                case Mensaje.LOTE:
+                    if (actual != null) actual.propias.write(m.cartas, 0, m.numCartas);
+                    return false;
+                case Mensaje.RESULTADOS:
+                    if (actual != null) {
+                        actual.dealer.reset();
+                        actual.dealer.write(m.cartas, 0, m.numCartas);
+                        actual.solo = true;
+                        for (int i = 1; i < m.numResultados; i++) actual.solo &= m.resAsiento[i] == m.resAsiento[0];
+                    }
+                    return false;
+                case Mensaje.TOTAL:
+                    if (duelo && actual != null) actual.totalRival = m.total;
+                    return false;
+                default:
+                    return false;
+            }
+        }
+
+        /** repartidas: cartas que dio el shoe, según la mesa */
+        String comprobar(Semilla semilla, int repartidas) {
+            if (huella == null) return "Se reveló la semilla del shoe " + semilla + ", pero no se vio su compromiso.";
+            if (!Arrays.equals(semilla.huella(), huella)) {
+                return "¡ATENCIÓN! La semilla revelada no corresponde al compromiso del shoe.";
+            }
+            byte[] orden = Shoe.conSemilla(semilla).orden();
+            int cartas = 0;
+            for (int i = 0; i < tramos.size(); i++) {
+                Tramo t = tramos.get(i);
+                int fin = Math.min(orden.length, i + 1 < tramos.size() ? tramos.get(i + 1).inicio : repartidas);
+                byte[] ronda = t.repartidas();
+                boolean bien = duelo ? delDuelo(t, orden, fin)
+                    : t.solo ? t.inicio + ronda.length <= fin && enOrden(ronda, orden, t.inicio, t.inicio + ronda.length)
+                    : enOrden(ronda, orden, t.inicio, fin);
+                if (!bien) {
+                    return "¡ATENCIÓN! Las cartas de la ronda que empezó en la carta " + t.inicio
+                        + " del shoe no salieron del shoe comprometido.";
+                }
+                cartas += ronda.length;
+            }
+            return "Shoe verificado (semilla " + semilla + "): tus " + cartas + " cartas en "
+                + tramos.size() + " rondas salieron del shoe comprometido.";
+        }
+
+        /**
+         * Cada carta propia en su lugar exacto del tramo, y las del host (sus dos
+         * primeras y todo lo que sigue a las propias hasta 'fin') suman su TOTAL
+         */
+        private static boolean delDuelo(Tramo t, byte[] orden, int fin) {
+            byte[] propias = t.propias.toByteArray();
+            if (propias.length < 2 || t.inicio + 2 + propias.length > fin) return false;
+            for (int k = 0; k < propias.length; k++) {
+                int pos = k < 2 ? t.inicio + 1 + 2 * k : t.inicio + 2 + k;
+                if (orden[pos] != propias[k]) return false;
+            }
+            if (t.totalRival < 0) return true; // El host abandonó antes de anunciar su total
+            Hand host = new Hand();
+            host.add(Card.of(orden[t.inicio]));
+            host.add(Card.of(orden[t.inicio + 2]));
+            for (int i = t.inicio + 2 + propias.length; i < fin; i++) host.add(Card.of(orden[i]));
+            return host.bestBlackjackTotal() == t.totalRival;
+        }
+
+        /** Las cartas aparecen en ese orden entre orden[desde] y orden[hasta - 1] */
+        private static boolean enOrden(byte[] cartas, byte[] orden, int desde, int hasta) {
+            if (desde > hasta || hasta > orden.length) return false;
+            int k = 0;
+            for (int i = desde; i < hasta && k < cartas.length; i++) {
+                if (orden[i] == cartas[k]) k++;
+            }
+            return k == cartas.length;
+        }
+    }
+
+    /** ----- Retomar una partida tras un corte de red ----- */
+    /**
+     * Cada extremo cuenta los mensajes de juego que envió y recibió desde la
+     * FICHA y guarda los últimos ANILLO enviados. Al reconectar, cada lado manda
+     * solo lo que el otro no llegó a recibir.
+     */
+    static final class Retoma {
+        static final int ANILLO = 32;
+
+        final long ficha;
+        private final Mensaje[] anillo = new Mensaje[ANILLO];
+        int enviados;
+        int recibidos;
+        long vence; // System.nanoTime() límite para volver; 0 mientras está conectado
+
+        Retoma(long ficha) {
+            this.ficha = ficha;
+        }
+
+        void guardar(Mensaje m) {
+            int i = enviados % ANILLO;
+            if (anillo[i] == null) anillo[i] = new Mensaje();
+            anillo[i].copiar(m);
+            enviados++;
+        }
+
+        /** ¿El anillo todavía tiene todo lo enviado después de los primeros 'recibidosOtro'? */
+        boolean puedeReenviar(int recibidosOtro) {
+            return recibidosOtro <= enviados && enviados - recibidosOtro <= ANILLO;
+        }
+
+        /** El n-ésimo mensaje enviado (desde 0) */
+        Mensaje enviado(int n) { return anillo[n % ANILLO]; }
+    }
+
+    /** ----- Sesión de juego por red: consola y socket en una sola cola de eventos ----- */
+    /**
+     * Un hilo lee el socket y la Consola entrega sus líneas a la misma cola, así
+     * que un QUIT o una desconexión del oponente se atienden apenas llegan, aunque
+     * el jugador local esté escribiendo su jugada. Esperar al oponente tiene un
+     * límite (TIMEOUT_TURNO) para que nadie quede bloqueado para siempre.
+     */
+    static final class Sesion implements Closeable {
+        private static final Object DESCONEXION = new Object();
+        private static final Object FIN_CONSOLA = new Object();
+
+        private final CanalJuego canal;
+        // String (consola), Mensaje (red), DESCONEXION o FIN_CONSOLA
+        private final BlockingQueue<Object> eventos = new LinkedBlockingQueue<>();
+        private final ArrayDeque<Mensaje> mensajes = new ArrayDeque<>(); // llegaron mientras se esperaba una línea
+        private final ArrayDeque<String> lineas = new ArrayDeque<>();    // escritas mientras se esperaba al oponente
+        private boolean desconectado;
+        private volatile boolean cerrando;
+
+        Sesion(CanalJuego canal) {
+            this.canal = canal;
+            Thread lector = new Thread(this::leerSocket, "sesion-red");
+            lector.setDaemon(true);
+            lector.start();
+            Consola.global().redirigir(linea -> eventos.add(linea == null ? FIN_CONSOLA : linea));
+        }
+
+        /** Si la conexión se corta y hay ficha, intenta retomar antes de avisar la desconexión */
+        private void leerSocket() {
+            while (true) {
+                try {
+                    Mensaje m;
+                    while ((m = canal.recibir()) != null) eventos.add(new Mensaje().copiar(m));
+                } catch (IOException e) {
+                    // Conexión cortada o cerrada por close()
+                }
+                if (cerrando || !canal.puedeRetomar()) break;
+                System.out.println("\nConexión perdida. Reconectando...");
+                Salida.vaciar();
+                if (!canal.retomar()) break;
+                System.out.println("Partida retomada.");
+                Salida.vaciar();
+            }
+            eventos.add(DESCONEXION);
+        }
+
+        /** Siguiente mensaje del oponente; null si se desconectó o no respondió a tiempo */
+        Mensaje recibir() throws InterruptedException {
+            if (!mensajes.isEmpty()) return mensajes.poll();
+            if (desconectado) return null;
+            Salida.vaciar();
+            long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_TURNO);
+            while (true) {
+                long resta = limite - System.nanoTime();
+                Object evento = resta > 0 ? eventos.poll(resta, TimeUnit.NANOSECONDS) : null;
+                if (evento == null) {
+                    System.out.println("\nEl oponente no respondió a tiempo.");
+                    desconectado = true;
+                    return null;
+                }
+                if (evento instanceof Mensaje) return (Mensaje) evento;
+                if (evento == DESCONEXION) {
+                    desconectado = true;
+                    return null;
+                }
+                // Escrito antes de tiempo: se usa en el próximo turno propio
+                lineas.add(evento == FIN_CONSOLA ? "q" : (String) evento);
+            }
+        }
+
+        /** Siguiente línea del jugador local; null si el oponente se fue mientras tanto */
+        String leerLinea() throws InterruptedException {
+            return leerLinea(false);
+        }
+
+        /**
+         * Con hastaMensaje, un mensaje que llega antes que la línea corta la
+         * espera y se devuelve "": en una mesa es el resultado de una ronda que
+         * se liquidó sin esperar la jugada (blackjack del dealer).
+         */
+        String leerLinea(boolean hastaMensaje) throws InterruptedException {
+            if (!lineas.isEmpty()) return lineas.poll();
+            Salida.vaciar();
+            while (!desconectado) {
+                Object evento = eventos.take();
+                if (evento instanceof String) return (String) evento;
+                if (evento == FIN_CONSOLA) return "q";
+                if (evento == DESCONEXION) {
+                    desconectado = true;
+                } else {
+                    Mensaje m = (Mensaje) evento;
+                    if (m.tipo == Mensaje.QUIT) {
+                        desconectado = true;
+                    } else {
+                        mensajes.add(m); // Lo lee el próximo recibir()
+                        if (hastaMensaje) return "";
+                    }
+                }
+            }
+            return null;
+        }
+
+        /** Llegó un mensaje mientras se esperaba una línea */
+        boolean hayMensaje() { return !mensajes.isEmpty(); }
+
+        /** Envía la jugada y espera su LOTE; null si el otro lado cerró */
+        Mensaje jugar(Mensaje jugada) throws InterruptedException {
+            int secuencia = canal.enviarJugada(jugada);
+            Mensaje m;
+            do {
+                m = recibir();
+                if (m == null || m.tipo == Mensaje.QUIT) return null;
+            } while (m.tipo != Mensaje.LOTE || m.secuencia != secuencia);
+            return m;
+        }
+
+        @Override
+        public void close() throws IOException {
+            cerrando = true;
+            Consola.global().restaurar();
+            canal.close(); // El hilo lector termina al cerrarse el socket
         }
     }
-    
-    static void buscarYConectar(Scanner in) {
-        while (true) {
-            System.out.println("\nBuscando partidas...");
-            Set<String> jugadores = buscarJugadores();
-            
-            if (jugadores.isEmpty()) {
-                System.out.println("No se encontraron partidas.");
+
+    /** ----- Emparejamiento: qué mesa pidió quien espera en la sala ----- */
+    /**
+     * Apuesta fija por ronda, reglas (las opciones negociadas que cambian el
+     * juego en la mesa) y cantidad de asientos. Solo se juntan en una mesa las
+     * conexiones que pidieron exactamente lo mismo.
+     */
+    static final class Busqueda {
+        /** Opciones que cambian lo que se puede hacer en la mesa; el resto es de cada conexión */
+        static final int REGLAS = Mensaje.OPCION_MANOS;
+
+        final long apuesta;
+        final int reglas;
+        final int lugares;
+
+        Busqueda(long apuesta, int reglas, int lugares) {
+            this.apuesta = apuesta;
+            this.reglas = reglas & REGLAS;
+            this.lugares = lugares;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Busqueda)) return false;
+            Busqueda b = (Busqueda) o;
+            return apuesta == b.apuesta && reglas == b.reglas && lugares == b.lugares;
+        }
+
+        @Override
+        public int hashCode() { return (Long.hashCode(apuesta) * 31 + reglas) * 31 + lugares; }
+    }
+
+    /** ----- Servidor de mesas: un Selector atiende todas las conexiones ----- */
+    /**
+     * Cada cliente conectado se sienta en una mesa de hasta Mesa.MAX_ASIENTOS
+     * jugadores contra la casa. El servidor habla el mismo protocolo de texto que
+     * jugarMultiplayer (CARTAS:, HIT, STAND, CARTA:, TOTAL:, QUIERO_JUGAR), así que
+     * un cliente normal no nota la diferencia. Un cliente puede pedir tramas
+     * binarias con PROTO:BIN y el resumen de toda la mesa con PROTO:MESA.
+     *
+     * Con BUSCAR el cliente deja su asiento y pasa a la sala de espera: una cola
+     * por Busqueda. Todo corre en el hilo del Selector, así que la cola que se
+     * completa se sienta en una mesa nueva en el mismo select en que llegó el
+     * último pedido, sin hilos ni bloqueos de por medio.
+     */
+    static class ServidorMesas extends Thread {
+        static final int MAX_MESAS = 1000;
+
+        private final Selector selector;
+        private final ServerSocketChannel servidor;
+        private final List<Mesa> mesas = new ArrayList<>();
+        private final Map<Long, Mesa> fichas = new HashMap<>(); // asientos que se pueden retomar
+        private final SecureRandom azar = new SecureRandom();
+        // Conexiones con salida pendiente: una mesa escribe a todos sus asientos
+        private final ArrayDeque<Conexion> pendientes = new ArrayDeque<>();
+        // Aceptadas que todavía no negociaron, por orden de llegada
+        private final ArrayDeque<Conexion> sinNegociar = new ArrayDeque<>();
+        // Sala de espera: quienes pidieron la misma mesa, por orden de llegada
+        private final Map<Busqueda, ArrayDeque<Conexion>> sala = new HashMap<>();
+        private final Mensaje aviso = new Mensaje();
+        private volatile boolean running = true;
+        private volatile int mesasActivas;
+        private volatile int jugadores;
+
+        public ServidorMesas(int puerto) throws IOException {
+            setDaemon(true);
+            selector = Selector.open();
+            servidor = ServerSocketChannel.open();
+            servidor.bind(new InetSocketAddress(puerto));
+            servidor.configureBlocking(false);
+            servidor.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        public int getMesasActivas() { return mesasActivas; }
+        public int getJugadores() { return jugadores; }
+        public int getLugaresLibres() { return MAX_MESAS * Mesa.MAX_ASIENTOS - jugadores; }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(espera()); // También despierta para liberar asientos vencidos
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey clave = it.next();
+                        it.remove();
+                        if (!clave.isValid()) continue;
+                        if (clave.isAcceptable()) {
+                            aceptar();
+                        } else {
+                            atender((Conexion) clave.attachment(), clave);
+                        }
+                    }
+                    vencerReservas();
+                    sentarSinNegociar();
+                    vaciarPendientes();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Error en el servidor de mesas: " + e.getMessage());
+                    Salida.vaciar(); // El hilo principal está esperando el Enter
+                }
+            } finally {
+                cerrarTodo();
+            }
+        }
+
+        /**
+         * La conexión nueva no se sienta todavía: un cliente que negocia recibe
+         * su asiento y sus cartas ya en el formato acordado. Se sienta al
+         * negociar, con su primer mensaje o, si no envía nada (un cliente de
+         * texto simple espera sus cartas), pasado ESPERA_PROTO. Si lo primero
+         * es MIRAR, BUSCAR o RETOMAR va directo adonde pidió, sin asiento
+         * provisorio.
+         */
+        private void aceptar() throws IOException {
+            SocketChannel canal = servidor.accept();
+            if (canal == null) return;
+            if (getLugaresLibres() <= 0) {
+                canal.close(); // Servidor lleno: el lobby ya anuncia 0 lugares
+                return;
+            }
+            canal.configureBlocking(false);
+            canal.socket().setTcpNoDelay(true);
+            SelectionKey clave = canal.register(selector, SelectionKey.OP_READ);
+            Conexion conexion = new Conexion(canal, clave, this);
+            clave.attach(conexion);
+            jugadores++;
+            sinNegociar.add(conexion);
+        }
+
+        /** Sienta a la conexión que negoció (o no lo va a hacer) en la primera mesa con lugar */
+        void sentar(Conexion conexion) {
+            presentar(conexion);
+            Mesa mesa = mesaConLugar();
+            if (mesa == null) {
+                conexion.cerrar(); // Se llenó mientras negociaba
+                return;
+            }
+            mesa.sentar(conexion);
+        }
+
+        /** Ya eligió qué hacer: deja de esperar su PROTO */
+        private void presentar(Conexion conexion) {
+            if (conexion.isNegociada()) return;
+            sinNegociar.remove(conexion);
+            conexion.negociada();
+        }
+
+        private void sentarSinNegociar() {
+            long ahora = System.nanoTime();
+            Conexion conexion;
+            while ((conexion = sinNegociar.peek()) != null && ahora - conexion.getAceptada() >= TimeUnit.MILLISECONDS.toNanos(ESPERA_PROTO)) {
+                sentar(conexion);
+            }
+        }
+
+        /** Hasta el próximo vencimiento de ESPERA_PROTO; si no hay, un segundo */
+        private long espera() {
+            Conexion primera = sinNegociar.peek();
+            if (primera == null) return 1000;
+            long resta = TimeUnit.MILLISECONDS.toNanos(ESPERA_PROTO) - (System.nanoTime() - primera.getAceptada());
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(resta) + 1);
+        }
+
+        /** La primera mesa con un asiento libre, o una nueva si queda lugar; las emparejadas no cuentan */
+        private Mesa mesaConLugar() {
+            for (Mesa mesa : mesas) {
+                if (mesa.getBusqueda() == null && mesa.tieneLugar()) return mesa;
+            }
+            if (mesas.size() >= MAX_MESAS) return null;
+            Mesa mesa = new Mesa(this);
+            mesas.add(mesa);
+            mesasActivas = mesas.size();
+            return mesa;
+        }
+
+        /** Un error con una conexión la cierra solo a ella: las demás mesas siguen */
+        private void atender(Conexion conexion, SelectionKey clave) {
+            try {
+                if (clave.isReadable()) conexion.leer();
+                if (!conexion.isCerrada() && clave.isValid() && clave.isWritable()) conexion.vaciar();
+            } catch (IOException e) {
+                conexion.cerrar();
+            } catch (RuntimeException e) {
+                Metricas.error(Metricas.ERRORES_CONEXION, e);
+                conexion.cerrar();
+            }
+        }
+
+        void pendiente(Conexion conexion) { pendientes.add(conexion); }
+
+        /** Escribe lo que cada mesa dejó en sus conexiones durante este select */
+        private void vaciarPendientes() {
+            Conexion conexion;
+            while ((conexion = pendientes.poll()) != null) {
+                try {
+                    conexion.vaciar();
+                } catch (IOException e) {
+                    conexion.cerrar(); // Puede avisar a la mesa y encolar a los demás asientos
+                } catch (RuntimeException e) {
+                    Metricas.error(Metricas.ERRORES_CONEXION, e);
+                    conexion.cerrar();
+                }
+            }
+        }
+
+        void conexionCerrada(Conexion conexion) {
+            if (!conexion.isNegociada()) sinNegociar.remove(conexion);
+            if (conexion.isEspectador()) return; // Dejó de contar como jugador al empezar a mirar
+            jugadores--;
+            if (conexion.isEsperando()) dejarDeEsperar(conexion);
+            else quitarSiVacia(conexion.getMesa());
+        }
+
+        /**
+         * La conexión pide una mesa con esa apuesta y esa cantidad de asientos,
+         * con sus mismas reglas. Deja su asiento y, si hay una mesa emparejada
+         * igual a la que le falta gente, se sienta ahí; si no, espera en la sala
+         * y cada uno de la cola recibe BUSCAR con cuántos esperan. Cuando la cola
+         * junta los asientos pedidos se abre una mesa con todos a la vez. Se
+         * rechaza (BUSCAR con 0 esperando) sin dejar el asiento si los valores
+         * no sirven o haría falta otra mesa y el servidor ya no tiene lugar.
+         */
+        void buscar(Conexion conexion, long apuesta, int lugares) {
+            Busqueda busqueda = new Busqueda(apuesta, conexion.getOpciones(), lugares);
+            Mesa anterior = conexion.getMesa();
+            Mesa incompleta = null;
+            for (Mesa mesa : mesas) {
+                if (mesa != anterior && busqueda.equals(mesa.getBusqueda()) && mesa.tieneLugar()) {
+                    incompleta = mesa;
+                    break;
+                }
+            }
+            ArrayDeque<Conexion> cola = sala.get(busqueda);
+            boolean completa = (cola == null ? 0 : cola.size()) + 1 == lugares;
+            if (apuesta <= 0 || lugares < 1 || lugares > Mesa.MAX_ASIENTOS
+                    || (incompleta == null && completa && mesas.size() >= MAX_MESAS)) {
+                conexion.enviar(aviso.deTipo(Mensaje.BUSCAR).conBusqueda(apuesta, lugares, 0));
+                if (!conexion.isNegociada()) sentar(conexion); // Como si hubiera tenido su asiento
+                return;
+            }
+            presentar(conexion);
+            if (anterior != null) {
+                anterior.soltar(conexion); // Sigue contando como jugador mientras espera
+                quitarSiVacia(anterior);
+                // Su asiento pudo ser para el primero de esta misma cola
+                cola = sala.get(busqueda);
+                completa = (cola == null ? 0 : cola.size()) + 1 == lugares;
+            }
+            if (incompleta != null) {
+                Metricas.EMPAREJAMIENTO.registrar(0);
+                incompleta.sentar(Collections.singletonList(conexion));
+                return;
+            }
+            if (cola == null) {
+                cola = new ArrayDeque<>();
+                sala.put(busqueda, cola);
+            }
+            cola.add(conexion);
+            conexion.esperar(busqueda);
+            Metricas.EN_SALA.sumar();
+            if (!completa) {
+                avisarSala(busqueda, cola);
+                return;
+            }
+            sala.remove(busqueda);
+            Mesa mesa = new Mesa(this, busqueda);
+            mesas.add(mesa);
+            mesasActivas = mesas.size();
+            for (Conexion esperando : cola) {
+                Metricas.EN_SALA.restar();
+                Metricas.EMPAREJAMIENTO.desde(esperando.getEsperaDesde());
+            }
+            mesa.sentar(cola);
+        }
+
+        private void avisarSala(Busqueda busqueda, ArrayDeque<Conexion> cola) {
+            aviso.deTipo(Mensaje.BUSCAR).conBusqueda(busqueda.apuesta, busqueda.lugares, cola.size());
+            for (Conexion esperando : cola) esperando.enviar(aviso);
+        }
+
+        /**
+         * Se liberó un asiento de una mesa emparejada: lo ocupa el primero de la
+         * sala que espera una mesa igual, como si la hubiera encontrado al pedirla.
+         */
+        void rellenar(Mesa mesa) {
+            Busqueda busqueda = mesa.getBusqueda();
+            ArrayDeque<Conexion> cola = sala.get(busqueda);
+            if (cola == null) return;
+            Conexion primero = cola.poll();
+            Metricas.EN_SALA.restar();
+            Metricas.EMPAREJAMIENTO.desde(primero.getEsperaDesde());
+            if (cola.isEmpty()) sala.remove(busqueda);
+            else avisarSala(busqueda, cola);
+            mesa.sentar(Collections.singletonList(primero));
+        }
+
+        /** Sale de la sala sin sentarse: se cerró o pidió mirar una mesa */
+        private void dejarDeEsperar(Conexion conexion) {
+            Busqueda busqueda = conexion.getBuscando();
+            ArrayDeque<Conexion> cola = sala.get(busqueda);
+            cola.remove(conexion);
+            conexion.esperar(null);
+            Metricas.EN_SALA.restar();
+            if (cola.isEmpty()) sala.remove(busqueda);
+            else avisarSala(busqueda, cola);
+        }
+
+        /**
+         * La conexión pide mirar una mesa: la del número pedido o, con 0, la que
+         * tiene más jugadores. Deja el asiento provisorio que le dio sentar()
+         * (o la mesa que miraba) y recibe MIRAR con el número, o 0 si no hay una
+         * mesa con jugadores que mirar.
+         */
+        void mirar(Conexion conexion, int numero) {
+            Mesa provisoria = conexion.getMesa();
+            Mesa elegida = null;
+            int masJugadores = 0;
+            for (Mesa mesa : mesas) {
+                int jugando = mesa.ocupados() - (mesa == provisoria ? 1 : 0);
+                if (jugando == 0 || (numero != 0 && mesa.numero() != numero)) continue;
+                if (jugando > masJugadores) {
+                    elegida = mesa;
+                    masJugadores = jugando;
+                }
+            }
+            if (elegida == null) {
+                conexion.enviar(new Mensaje().deTipo(Mensaje.MIRAR));
+                if (!conexion.isNegociada()) sentar(conexion); // Como si hubiera tenido su asiento
+                return;
+            }
+            if (!conexion.isNegociada()) {
+                presentar(conexion);
+                jugadores--;
+            } else if (provisoria != null) {
+                provisoria.soltar(conexion);
+                jugadores--;
+            } else if (conexion.isEsperando()) {
+                dejarDeEsperar(conexion);
+                jugadores--;
             } else {
-                System.out.println("\nPartidas disponibles:");
-                List<String> listaJugadores = new ArrayList<>(jugadores);
-                for (int i = 0; i < listaJugadores.size(); i++) {
-                    System.out.println((i + 1) + ". " + listaJugadores.get(i));
+                conexion.getMirada().dejarDeMirar(conexion);
+            }
+            conexion.mirar(elegida);
+            conexion.enviar(new Mensaje().deTipo(Mensaje.MIRAR).enMesa(elegida.numero()));
+            elegida.mirar(conexion);
+            quitarSiVacia(provisoria);
+        }
+
+        private void quitarSiVacia(Mesa mesa) {
+            if (mesa != null && mesa.vacia()) {
+                mesa.cerrar();
+                mesas.remove(mesa);
+                mesasActivas = mesas.size();
+            }
+        }
+
+        /** Ficha nueva para un asiento; nunca 0, que significa "sin ficha" */
+        long nuevaFicha(Mesa mesa) {
+            long ficha;
+            do {
+                ficha = azar.nextLong();
+            } while (ficha == 0 || fichas.containsKey(ficha));
+            fichas.put(ficha, mesa);
+            return ficha;
+        }
+
+        void olvidarFicha(long ficha) { fichas.remove(ficha); }
+
+        /** Un cliente reconectado presenta su ficha para volver a su asiento */
+        void retomar(Conexion conexion, long ficha, int recibidos) {
+            Mesa anterior = conexion.getMesa();
+            Mesa mesa = fichas.get(ficha);
+            if (mesa != null && mesa.retomar(conexion, ficha, recibidos)) {
+                presentar(conexion);
+                quitarSiVacia(anterior);
+            } else {
+                conexion.enviar(new Mensaje().deTipo(Mensaje.RETOMAR)); // ficha 0: no se pudo
+                if (!conexion.isNegociada()) sentar(conexion);
+            }
+        }
+
+        private void vencerReservas() {
+            long ahora = System.nanoTime();
+            for (int i = mesas.size() - 1; i >= 0; i--) {
+                Mesa mesa = mesas.get(i);
+                mesa.vencerReservas(ahora);
+                mesa.vencerRevanchas(ahora);
+                quitarSiVacia(mesa);
+            }
+        }
+
+        private void cerrarTodo() {
+            for (SelectionKey clave : selector.keys()) {
+                if (clave.attachment() instanceof Conexion) ((Conexion) clave.attachment()).cerrar();
+            }
+            for (Mesa mesa : mesas) mesa.cerrar(); // También las que guardaban asientos para retomar
+            mesas.clear();
+            sala.clear();
+            mesasActivas = 0;
+            try { servidor.close(); } catch (IOException e) { /* ya cerrado */ }
+            try { selector.close(); } catch (IOException e) { /* ya cerrado */ }
+        }
+
+        public void detener() {
+            running = false;
+            selector.wakeup();
+        }
+    }
+
+    /** ----- Conexión no bloqueante: decodifica mensajes y acumula la salida ----- */
+    static class Conexion extends Enlace {
+        private static final int TAM_SALIDA = 4096;
+        /** Salida sin escribir que se tolera a un cliente que no lee; más que esto y se lo desconecta */
+        static final int MAX_SALIDA = 1 << 18;
+        /** Eventos de la mesa que un espectador puede tener sin escribir antes de resincronizarlo */
+        static final int MAX_DIFUNDIDOS = 256;
+
+        private final SocketChannel canal;
+        private final SelectionKey clave;
+        private final ServidorMesas servidor;
+        private final ByteBuffer entrada = ByteBuffer.allocate(MAX_LINEA);
+        private ByteBuffer salida = ByteBuffer.allocate(TAM_SALIDA);
+        private final Mensaje recibido = new Mensaje();
+        private Protocolo protocolo = ProtocoloTexto.INSTANCIA;
+        private int opciones;
+        private long jugador; // El que mandó en su PROTO; 0 = anónimo
+        private Mesa mesa;
+        private int asiento;
+        private Mesa mirada; // Espectador: la mesa que mira (ya no tiene asiento)
+        private Busqueda buscando; // En la sala: la mesa que espera (ya no tiene asiento)
+        private long esperaDesde;
+        private final long aceptada = System.nanoTime();
+        private boolean negociada; // Negoció, o ya se sabe que no lo hará: tuvo su primera mesa
+        // Espectador: porciones compartidas de la Difusion, cada una con su propia posición
+        private ByteBuffer[] difundidos;
+        private int primero;
+        private int ultimo;
+        private boolean pendiente;
+        private boolean desbordada; // Pasó MAX_SALIDA: se cierra al vaciar, fuera del código de la mesa
+        private boolean cerrada;
+
+        Conexion(SocketChannel canal, SelectionKey clave, ServidorMesas servidor) {
+            this.canal = canal;
+            this.clave = clave;
+            this.servidor = servidor;
+            Metricas.CONEXIONES.sumar();
+        }
+
+        public Mesa getMesa() { return mesa; }
+        public int getAsiento() { return asiento; }
+        public Mesa getMirada() { return mirada; }
+        public boolean isEspectador() { return mirada != null; }
+        public Busqueda getBuscando() { return buscando; }
+        public boolean isEsperando() { return buscando != null; }
+        long getEsperaDesde() { return esperaDesde; }
+        long getAceptada() { return aceptada; }
+        boolean isNegociada() { return negociada; }
+        void negociada() { negociada = true; }
+        int getOpciones() { return opciones; }
+        long getJugador() { return jugador; }
+        public boolean isCerrada() { return cerrada; }
+        Protocolo getProtocolo() { return protocolo; }
+        /** El cliente pidió el resumen de mesa (RESULTADOS) en vez de TOTAL */
+        public boolean isMesa() { return (opciones & Mensaje.OPCION_MESA) != 0; }
+        /** El cliente manda JUGADA y recibe LOTE; no envía TOTAL al terminar su turno */
+        public boolean isLote() { return (opciones & Mensaje.OPCION_LOTE) != 0; }
+        /** El cliente recibe una FICHA y puede volver a su asiento si se corta */
+        public boolean isRetoma() { return (opciones & Mensaje.OPCION_RETOMA) != 0; }
+        /** El cliente elige su APUESTA y recibe su SALDO tras cada ronda */
+        public boolean isApuestas() { return (opciones & Mensaje.OPCION_APUESTAS) != 0; }
+        /** El cliente sabe doblar, dividir y rendirse, y lleva la cuenta de sus manos */
+        public boolean isManos() { return (opciones & Mensaje.OPCION_MANOS) != 0; }
+        /** El cliente recibe el COMPROMISO de cada ronda y la SEMILLA de cada shoe terminado */
+        public boolean isJusta() { return (opciones & Mensaje.OPCION_JUSTA) != 0; }
+
+        void sentar(Mesa mesa, int asiento) {
+            this.mesa = mesa;
+            this.asiento = asiento;
+            this.buscando = null;
+        }
+
+        /** Deja el asiento y espera en la sala esa mesa; null al salir de la sala sin sentarse */
+        void esperar(Busqueda busqueda) {
+            this.mesa = null;
+            this.buscando = busqueda;
+            this.esperaDesde = System.nanoTime();
+        }
+
+        /** Deja el asiento (si tenía) y pasa a recibir lo que la mesa difunde */
+        void mirar(Mesa mesa) {
+            this.mesa = null;
+            this.mirada = mesa;
+            if (difundidos == null) difundidos = new ByteBuffer[MAX_DIFUNDIDOS];
+        }
+
+        /** Lee lo disponible y entrega cada mensaje completo a la mesa */
+        void leer() throws IOException {
+            int leidos = canal.read(entrada);
+            if (leidos < 0) {
+                cerrar();
+                return;
+            }
+            entrada.flip();
+            while (!cerrada && protocolo.leer(entrada, recibido)) {
+                long inicio = System.nanoTime();
+                byte tipo = recibido.tipo;
+                if (!negociada && tipo != Mensaje.PROTO && tipo != Mensaje.MIRAR
+                        && tipo != Mensaje.BUSCAR && tipo != Mensaje.RETOMAR) {
+                    if (tipo == Mensaje.QUIT) {
+                        cerrar();
+                        break;
+                    }
+                    servidor.sentar(this); // No negocia: se sienta con su primer mensaje
+                    if (cerrada) break;
+                }
+                if (tipo == Mensaje.MIRAR) {
+                    servidor.mirar(this, recibido.mesa);
+                } else if (isEspectador() || isEsperando()) {
+                    if (tipo == Mensaje.QUIT) cerrar(); // Lo demás sin asiento se ignora
+                } else if (tipo == Mensaje.BUSCAR) {
+                    servidor.buscar(this, recibido.monto, recibido.lugares);
+                } else if (tipo == Mensaje.PROTO) {
+                    negociar(recibido.opciones, recibido.jugador);
+                } else if (tipo == Mensaje.RETOMAR) {
+                    servidor.retomar(this, recibido.ficha, recibido.recibidos);
+                } else {
+                    mesa.procesar(this, recibido);
+                }
+                Metricas.PROCESO[tipo].desde(inicio);
+                Metricas.MENSAJES.sumar();
+            }
+            if (!cerrada) entrada.compact();
+        }
+
+        /**
+         * El cliente pide opciones de protocolo. La respuesta va en el formato
+         * actual y todo lo que sigue en el nuevo: el asiento si pidió MESA, la
+         * ficha si pidió RETOMA, el saldo si pidió APUESTAS y después la mano en
+         * juego.
+         */
+        private void negociar(int pedidas, long jugador) {
+            if (!negociada) this.jugador = jugador; // Ya sentado, su cuenta es la del asiento
+            opciones = pedidas & (Mensaje.OPCION_BINARIO | Mensaje.OPCION_MESA
+                | Mensaje.OPCION_LOTE | Mensaje.OPCION_RETOMA | Mensaje.OPCION_APUESTAS | Mensaje.OPCION_MANOS
+                | Mensaje.OPCION_JUSTA);
+            enviar(recibido.deTipo(Mensaje.PROTO).conOpciones(opciones));
+            if ((opciones & Mensaje.OPCION_BINARIO) != 0) protocolo = ProtocoloBinario.INSTANCIA;
+            if (!negociada) {
+                servidor.sentar(this); // Asiento, ficha, saldo y cartas ya en el nuevo formato
+                return;
+            }
+            saludar();
+            mesa.reenviarMano(this);
+        }
+
+        /** Lo que recibe quien se sienta según lo negociado: asiento, ficha y saldo */
+        void saludar() {
+            if (isMesa()) enviarAsiento(asiento);
+            if (isRetoma()) mesa.emitirFicha(this);
+            if (isApuestas()) mesa.enviarSaldo(this, 0);
+        }
+
+        /**
+         * Codifica el mensaje en el buffer de salida; se escribe al terminar el
+         * select. Si el cliente deja de leer y la salida llegaría a MAX_SALIDA,
+         * lo que sigue se descarta y la conexión se cierra al vaciar.
+         */
+        @Override
+        void enviar(Mensaje m) {
+            if (cerrada || desbordada) return;
+            if (salida.remaining() < MAX_LINEA) {
+                if (salida.capacity() >= MAX_SALIDA) {
+                    desbordada = true;
+                    marcarPendiente();
+                    return;
+                }
+                ByteBuffer mayor = ByteBuffer.allocate(salida.capacity() * 2);
+                salida.flip();
+                mayor.put(salida);
+                salida = mayor;
+            }
+            protocolo.escribir(m, salida);
+            marcarPendiente();
+        }
+
+        private void marcarPendiente() {
+            if (!pendiente) {
+                pendiente = true;
+                servidor.pendiente(this);
+            }
+        }
+
+        /**
+         * Encola un evento ya codificado sin copiarlo: un duplicate() comparte los
+         * bytes con los demás espectadores. false si la cola está llena.
+         */
+        boolean difundir(ByteBuffer evento) {
+            if (cerrada) return true;
+            if (ultimo == difundidos.length) {
+                if (primero == 0) return false;
+                System.arraycopy(difundidos, primero, difundidos, 0, ultimo - primero);
+                Arrays.fill(difundidos, ultimo - primero, ultimo, null);
+                ultimo -= primero;
+                primero = 0;
+            }
+            difundidos[ultimo++] = evento.duplicate();
+            marcarPendiente();
+            return true;
+        }
+
+        /**
+         * El espectador no da abasto: se descarta lo que no empezó a escribirse
+         * (un evento a medias se termina, para no cortar la trama) y la foto de
+         * la mesa toma su lugar.
+         */
+        void resincronizar(ByteBuffer foto) {
+            int conservar = primero < ultimo && difundidos[primero].position() > 0 ? 1 : 0;
+            Arrays.fill(difundidos, primero + conservar, ultimo, null);
+            ultimo = primero + conservar;
+            if (foto.hasRemaining()) difundir(foto);
+        }
+
+        /**
+         * Escribe lo pendiente sin bloquear; si el socket está lleno espera OP_WRITE.
+         * Los eventos difundidos van detrás de la salida propia, en una sola
+         * escritura con todos los buffers.
+         */
+        void vaciar() throws IOException {
+            pendiente = false;
+            if (cerrada) return;
+            if (desbordada) throw new IOException("El cliente no lee lo que se le envía");
+            salida.flip();
+            try {
+                canal.write(salida);
+            } finally {
+                salida.compact();
+            }
+            if (salida.position() == 0 && primero < ultimo) {
+                canal.write(difundidos, primero, ultimo - primero);
+                while (primero < ultimo && !difundidos[primero].hasRemaining()) difundidos[primero++] = null;
+                if (primero == ultimo) primero = ultimo = 0;
+            }
+            if (clave.isValid()) {
+                clave.interestOps(salida.position() == 0 && primero == ultimo
+                    ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void cerrar() {
+            if (cerrada) return;
+            try {
+                vaciar(); // Último mensaje (por ejemplo el TOTAL) antes de cerrar
+            } catch (IOException e) {
+                // El cliente ya se fue
+            }
+            cerrada = true;
+            Metricas.CONEXIONES.restar();
+            clave.cancel();
+            try { canal.close(); } catch (IOException e) { /* ya cerrado */ }
+            if (mesa != null) mesa.levantar(this);
+            if (mirada != null) mirada.dejarDeMirar(this);
+            servidor.conexionCerrada(this);
+        }
+    }
+
+    /** ----- Difusión: los eventos de una mesa para todos sus espectadores ----- */
+    /**
+     * Cada evento se codifica una sola vez por protocolo, en una porción de solo
+     * lectura de un bloque directo grande que se llena de corrido, y cada
+     * espectador encola un duplicate(): los mismos bytes con su propia posición,
+     * que el socket escribe sin pasar por un buffer intermedio. Un bloque lleno
+     * se reemplaza; el viejo se libera cuando nadie tiene porciones suyas.
+     *
+     * Un espectador lento no frena la mesa: si su cola llega a
+     * Conexion.MAX_DIFUNDIDOS se descarta y recibe una foto de la mesa (cada
+     * mano en juego), que ya incluye el evento que no entró.
+     */
+    static final class Difusion {
+        private static final int BLOQUE = 1 << 17;
+        private static final int MAX_FOTO = (Mesa.MAX_ASIENTOS * Manos.MAX_MANOS) * MAX_LINEA;
+
+        private final Mesa mesa;
+        private final List<Conexion> espectadores = new ArrayList<>();
+        private ByteBuffer bloque = ByteBuffer.allocateDirect(BLOQUE);
+
+        Difusion(Mesa mesa) {
+            this.mesa = mesa;
+        }
+
+        boolean vacia() { return espectadores.isEmpty(); }
+
+        /** El espectador nuevo empieza con la foto de la mesa */
+        void agregar(Conexion espectador) {
+            espectadores.add(espectador);
+            Metricas.ESPECTADORES.sumar();
+            ByteBuffer foto = foto(espectador.getProtocolo());
+            if (foto.hasRemaining()) espectador.difundir(foto);
+        }
+
+        void quitar(Conexion espectador) {
+            if (espectadores.remove(espectador)) Metricas.ESPECTADORES.restar();
+        }
+
+        /** Cierra a todos los espectadores: la mesa se quita del servidor */
+        void cerrar() {
+            for (int i = espectadores.size() - 1; i >= 0; i--) espectadores.get(i).cerrar(); // Cada uno se quita solo
+        }
+
+        /** El mismo evento para todos: una codificación por protocolo, sin copias por espectador */
+        void publicar(Mensaje m) {
+            ByteBuffer texto = null, binario = null, fotoTexto = null, fotoBinario = null;
+            for (int i = 0; i < espectadores.size(); i++) {
+                Conexion espectador = espectadores.get(i);
+                boolean esBinario = espectador.getProtocolo() == ProtocoloBinario.INSTANCIA;
+                ByteBuffer evento;
+                if (esBinario) evento = binario != null ? binario : (binario = codificar(ProtocoloBinario.INSTANCIA, m));
+                else evento = texto != null ? texto : (texto = codificar(ProtocoloTexto.INSTANCIA, m));
+                if (espectador.difundir(evento)) continue;
+                ByteBuffer foto;
+                if (esBinario) foto = fotoBinario != null ? fotoBinario : (fotoBinario = foto(ProtocoloBinario.INSTANCIA));
+                else foto = fotoTexto != null ? fotoTexto : (fotoTexto = foto(ProtocoloTexto.INSTANCIA));
+                espectador.resincronizar(foto);
+                Metricas.RESINCRONIZACIONES.sumar();
+            }
+        }
+
+        private ByteBuffer codificar(Protocolo protocolo, Mensaje m) {
+            int inicio = reservar(MAX_LINEA);
+            protocolo.escribir(m, bloque);
+            return porcion(inicio);
+        }
+
+        private ByteBuffer foto(Protocolo protocolo) {
+            int inicio = reservar(MAX_FOTO);
+            mesa.escribirFoto(protocolo, bloque);
+            return porcion(inicio);
+        }
+
+        private int reservar(int bytes) {
+            if (bloque.remaining() < bytes) bloque = ByteBuffer.allocateDirect(BLOQUE);
+            return bloque.position();
+        }
+
+        /** Lo escrito desde inicio, de solo lectura y con posición propia */
+        private ByteBuffer porcion(int inicio) {
+            ByteBuffer porcion = bloque.duplicate();
+            porcion.limit(bloque.position());
+            porcion.position(inicio);
+            return porcion.slice().asReadOnlyBuffer();
+        }
+    }
+
+    /** ----- Mesa: hasta MAX_ASIENTOS jugadores contra un dealer de la casa ----- */
+    /**
+     * Un solo shoe reparte a todos los asientos y a la mano del dealer. Los
+     * jugadores deciden HIT/STAND a la vez, cada uno sobre su propia mano; cuando
+     * todos terminaron el dealer roba hasta DEALER_STAND_VALUE y cada asiento
+     * recibe un único mensaje con el resultado de la ronda.
+     *
+     * Con LOTE el cliente manda varias acciones o una política ("pedir hasta N")
+     * en una JUGADA numerada y recibe todas las cartas en un solo LOTE. Una JUGADA
+     * que llega antes de repartir se guarda y se aplica apenas se reparte, así
+     * la mano entera puede jugarse sin esperar ida y vuelta.
+     *
+     * Con RETOMA el asiento recibe una FICHA y todo lo que la mesa le envía pasa
+     * por enviar(asiento, m), que guarda los últimos mensajes. Si la conexión se
+     * corta el asiento queda reservado GRACIA_RETOMA: la ronda lo espera y quien
+     * vuelva con la ficha recibe solo lo que no le llegó.
+     *
+     * Tras cada ronda la mesa espera la revancha de todos hasta ESPERA_REVANCHA;
+     * después empieza sin quien no contestó, que sigue sentado y entra en la
+     * ronda siguiente a la que pida.
+     *
+     * Cada asiento tiene un Manos que se reutiliza ronda tras ronda. DOUBLE,
+     * SPLIT y SURRENDER se responden con la mano afectada (o NO) y las cartas
+     * de cada mano llevan su número, así el cliente sigue sus manos sin tener
+     * que adivinar.
+     *
+     * Los espectadores (MIRAR) no tienen asiento: reciben por la Difusion una
+     * VISTA con la mano completa cada vez que cambia y el RESULTADOS de cada
+     * ronda. La carta del dealer solo aparece en RESULTADOS, como para los
+     * asientos.
+     *
+     * Una mesa emparejada (abierta por BUSCAR) tiene los asientos y la apuesta
+     * de su Busqueda: no recibe a quien se conecta sin pedirla y sus asientos
+     * no pueden cambiar la apuesta. El asiento que se libera es para el
+     * primero que espera en la sala una mesa igual.
+     */
+    static class Mesa {
+        static final int MAX_ASIENTOS = 7;
+
+        enum Estado { ESPERANDO_RONDA, TURNO_JUGADOR, ESPERANDO_TOTAL, LISTO, ESPERANDO_REVANCHA }
+
+        private final Conexion[] conexiones = new Conexion[MAX_ASIENTOS];
+        private final Manos[] manos = new Manos[MAX_ASIENTOS];
+        private final Estado[] estados = new Estado[MAX_ASIENTOS];
+        private final RegistroMesa registro = Historial.global().nuevaMesa();
+        private final Shoe deck = new Shoe().sembrar(registro);
+        private final Conteo conteo = Conteo.registrar(registro.getMesa());
+        private final Mensaje resultados = new Mensaje();
+        private final Mensaje lote = new Mensaje();
+        private final Mensaje[] jugadasPendientes = new Mensaje[MAX_ASIENTOS];
+        private final int[] secuencias = new int[MAX_ASIENTOS]; // última JUGADA aplicada
+        private final Retoma[] retomas = new Retoma[MAX_ASIENTOS];
+        private final Cuenta[] cuentas = new Cuenta[MAX_ASIENTOS];
+        private final long[] apuestas = new long[MAX_ASIENTOS];  // pedida para cada ronda
+        private final long[] apostado = new long[MAX_ASIENTOS];  // descontada en la ronda en curso, dobles incluidos
+        private final long[] base = new long[MAX_ASIENTOS];      // apuesta de cada mano en la ronda en curso
+        private final boolean[] jugaron = new boolean[MAX_ASIENTOS]; // mandó alguna jugada en la ronda en curso
+        private final long[] revanchas = new long[MAX_ASIENTOS]; // hasta cuándo se espera su QUIERO_JUGAR
+        private final Liquidacion liquidacion = new Liquidacion();
+        private final Mensaje saliente = new Mensaje();
+        private final Mensaje vista = new Mensaje();
+        private final Mensaje foto = new Mensaje(); // Aparte: la foto se arma mientras se difunde otro mensaje
+        private final Difusion difusion = new Difusion(this);
+        private final ServidorMesas servidor;
+        private final Busqueda busqueda; // null: mesa abierta a quien llegue
+        private Hand dealer;
+        private boolean enRonda;
+        private int ocupados;
+
+        Mesa(ServidorMesas servidor) {
+            this(servidor, null);
+        }
+
+        Mesa(ServidorMesas servidor, Busqueda busqueda) {
+            this.servidor = servidor;
+            this.busqueda = busqueda;
+            deck.contar(conteo);
+        }
+
+        /** La mesa se quita del servidor: deja de publicar su conteo y despide a los espectadores */
+        void cerrar() {
+            conteo.quitar();
+            for (int i = 0; i < MAX_ASIENTOS; i++) olvidar(i);
+            difusion.cerrar();
+        }
+
+        boolean tieneLugar() { return ocupados < (busqueda != null ? busqueda.lugares : MAX_ASIENTOS); }
+        boolean vacia() { return ocupados == 0; }
+        int ocupados() { return ocupados; }
+        /** El número de la mesa en el historial */
+        int numero() { return registro.getMesa(); }
+        Busqueda getBusqueda() { return busqueda; }
+
+        void mirar(Conexion espectador) { difusion.agregar(espectador); }
+        void dejarDeMirar(Conexion espectador) { difusion.quitar(espectador); }
+
+        /** Cada cambio de una mano va completo a los espectadores: sirve igual tras dividir */
+        private void mostrar(int asiento, int mano) {
+            if (difusion.vacia()) return;
+            difusion.publicar(vista.deTipo(Mensaje.VISTA).enAsiento(asiento).conMano(manos[asiento], mano));
+        }
+
+        /** Lo que ve quien llega o se atrasó: cada mano en juego; entre rondas, el RESULTADOS de la última */
+        void escribirFoto(Protocolo protocolo, ByteBuffer destino) {
+            if (!enRonda) {
+                if (resultados.tipo == Mensaje.RESULTADOS) protocolo.escribir(resultados, destino);
+                return;
+            }
+            for (int i = 0; i < MAX_ASIENTOS; i++) {
+                if (estados[i] != Estado.TURNO_JUGADOR && estados[i] != Estado.ESPERANDO_TOTAL && estados[i] != Estado.LISTO) {
+                    continue;
+                }
+                for (int mano = 0; mano < manos[i].cantidad(); mano++) {
+                    protocolo.escribir(foto.deTipo(Mensaje.VISTA).enAsiento(i).conMano(manos[i], mano), destino);
+                }
+            }
+        }
+
+        /** Sienta la conexión en el primer asiento libre; juega desde la próxima ronda */
+        void sentar(Conexion conexion) {
+            ocupar(conexion);
+            conexion.saludar();
+            intentarIniciar();
+        }
+
+        /**
+         * Sienta a los que juntó el emparejamiento: cada uno recibe BUSCAR con la
+         * mesa completa y luego lo mismo que tras negociar, y la ronda empieza
+         * con todos sentados.
+         */
+        void sentar(Collection<Conexion> grupo) {
+            for (Conexion conexion : grupo) {
+                ocupar(conexion);
+                apuestas[conexion.getAsiento()] = busqueda.apuesta;
+                conexion.enviar(saliente.deTipo(Mensaje.BUSCAR).conBusqueda(busqueda.apuesta, busqueda.lugares, busqueda.lugares));
+                conexion.saludar();
+            }
+            intentarIniciar();
+        }
+
+        private void ocupar(Conexion conexion) {
+            int asiento = 0;
+            while (estados[asiento] != null) asiento++; // Un asiento reservado sigue ocupado
+            conexiones[asiento] = conexion;
+            estados[asiento] = Estado.ESPERANDO_RONDA;
+            secuencias[asiento] = 0;
+            long jugador = conexion.getJugador();
+            cuentas[asiento] = jugador != 0 ? Libro.global().abrir(jugador) : Libro.global().abrir();
+            apuestas[asiento] = Libro.APUESTA_INICIAL;
+            if (jugadasPendientes[asiento] != null) jugadasPendientes[asiento].deTipo(Mensaje.DESCONOCIDO);
+            ocupados++;
+            conexion.sentar(this, asiento);
+        }
+
+        /**
+         * La conexión se fue. Con ficha el asiento queda reservado (la conexión
+         * cerrada sigue en su lugar y no recibe nada); sin ficha su mano queda
+         * fuera de la ronda.
+         */
+        void levantar(Conexion conexion) {
+            int asiento = conexion.getAsiento();
+            if (conexiones[asiento] != conexion) return;
+            Retoma retoma = retomas[asiento];
+            if (retoma != null) {
+                retoma.vence = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GRACIA_RETOMA);
+                return;
+            }
+            liberar(asiento);
+        }
+
+        private void liberar(int asiento) {
+            olvidar(asiento);
+            if (apostado[asiento] > 0) {
+                // Se fue a mitad de ronda: la apuesta queda para la casa
+                liquidacion.pagar(cuentas[asiento], apostado[asiento], -apostado[asiento]);
+                Libro.global().liquidar(liquidacion);
+                apostado[asiento] = 0;
+            }
+            // La cuenta de un jugador identificado lo espera para cuando vuelva
+            if (conexiones[asiento].getJugador() == 0) Libro.global().cerrar(cuentas[asiento]);
+            cuentas[asiento] = null;
+            conexiones[asiento] = null;
+            estados[asiento] = null;
+            ocupados--;
+            if (enRonda) intentarTerminar();
+            else intentarIniciar();
+            if (busqueda != null) servidor.rellenar(this);
+        }
+
+        /** Sin ficha el asiento ya no se puede retomar */
+        private void olvidar(int asiento) {
+            if (retomas[asiento] == null) return;
+            servidor.olvidarFicha(retomas[asiento].ficha);
+            retomas[asiento] = null;
+        }
+
+        /** Libera los asientos reservados que no volvieron a tiempo */
+        void vencerReservas(long ahora) {
+            for (int i = 0; i < MAX_ASIENTOS; i++) {
+                Retoma retoma = retomas[i];
+                if (retoma != null && retoma.vence != 0 && ahora - retoma.vence > 0) liberar(i);
+            }
+        }
+
+        /** Pasado el plazo de la revancha la ronda empieza sin quien no contestó */
+        void vencerRevanchas(long ahora) {
+            for (int i = 0; i < MAX_ASIENTOS; i++) {
+                if (estados[i] == Estado.ESPERANDO_REVANCHA && ahora - revanchas[i] > 0) {
+                    intentarIniciar();
+                    return;
+                }
+            }
+        }
+
+        /** Da al asiento de la conexión una ficha para volver si se corta */
+        void emitirFicha(Conexion conexion) {
+            int asiento = conexion.getAsiento();
+            if (retomas[asiento] == null) retomas[asiento] = new Retoma(servidor.nuevaFicha(this));
+            conexion.enviar(saliente.deTipo(Mensaje.FICHA).conFicha(retomas[asiento].ficha, 0));
+        }
+
+        /**
+         * La conexión vuelve al asiento de la ficha: deja el asiento provisorio
+         * que le dio el servidor al aceptarla, confirma con RETOMAR y cuántos
+         * mensajes de juego le llegaron a la mesa, y recibe lo que se perdió.
+         */
+        boolean retomar(Conexion conexion, long ficha, int recibidos) {
+            int asiento = 0;
+            while (asiento < MAX_ASIENTOS && (retomas[asiento] == null || retomas[asiento].ficha != ficha)) asiento++;
+            if (asiento == MAX_ASIENTOS) return false;
+            Retoma retoma = retomas[asiento];
+            if (!retoma.puedeReenviar(recibidos)) return false;
+            Conexion anterior = conexiones[asiento];
+            if (!anterior.isCerrada()) anterior.cerrar(); // Todavía no se notó el corte
+            Mesa provisoria = conexion.getMesa();
+            if (provisoria != null) provisoria.soltar(conexion);
+            conexiones[asiento] = conexion;
+            conexion.sentar(this, asiento);
+            retoma.vence = 0;
+            conexion.enviar(saliente.deTipo(Mensaje.RETOMAR).conFicha(ficha, retoma.recibidos));
+            for (int n = recibidos; n < retoma.enviados; n++) conexion.enviar(retoma.enviado(n));
+            return true;
+        }
+
+        /**
+         * Quita una conexión viva de su asiento sin reservarlo: se va a otro
+         * asiento, a la sala o a mirar. Si todavía no jugó la ronda (un asiento
+         * provisorio, como el de quien reconecta antes de RETOMAR) la apuesta se
+         * devuelve; si ya jugó, la pierde como quien se desconecta.
+         */
+        void soltar(Conexion conexion) {
+            int asiento = conexion.getAsiento();
+            if (conexiones[asiento] != conexion) return;
+            if (apostado[asiento] > 0 && !jugaron[asiento]) {
+                liquidacion.pagar(cuentas[asiento], apostado[asiento], 0);
+                Libro.global().liquidar(liquidacion);
+                apostado[asiento] = 0;
+            }
+            liberar(asiento);
+        }
+
+        /** Saldo del asiento para quien negoció APUESTAS (al sentarse o tras cada ronda) */
+        void enviarSaldo(Conexion conexion, long neto) {
+            int asiento = conexion.getAsiento();
+            enviar(asiento, saliente.deTipo(Mensaje.SALDO).conSaldo(cuentas[asiento].saldo(), neto));
+        }
+
+        /** Todo lo que la mesa manda a un asiento pasa por aquí para poder retomarlo */
+        private void enviar(int asiento, Mensaje m) {
+            Retoma retoma = retomas[asiento];
+            if (retoma != null && Mensaje.esDeJuego(m.tipo)) retoma.guardar(m);
+            conexiones[asiento].enviar(m); // Cerrada (asiento reservado): no hace nada
+        }
+
+        /** Empieza cuando hay alguien esperando y nadie está, dentro del plazo, decidiendo la revancha */
+        private void intentarIniciar() {
+            if (enRonda) return;
+            boolean alguien = false;
+            long ahora = System.nanoTime();
+            for (int i = 0; i < MAX_ASIENTOS; i++) {
+                if (estados[i] == Estado.ESPERANDO_REVANCHA && ahora - revanchas[i] <= 0) return;
+                if (estados[i] == Estado.ESPERANDO_RONDA) alguien = true;
+            }
+            if (alguien) iniciarRonda();
+        }
+
+        /** Reparte una ronda nueva y envía a cada asiento sus dos cartas */
+        private void iniciarRonda() {
+            long inicio = System.nanoTime();
+            Semilla anterior = deck.semilla();
+            int repartidas = deck.repartidas();
+            if (deck.prepararRonda()) revelar(anterior, repartidas);
+            registro.nuevaRonda();
+            enRonda = true;
+            dealer = new Hand();
+            for (int i = 0; i < MAX_ASIENTOS; i++) {
+                if (estados[i] != Estado.ESPERANDO_RONDA) continue;
+                if (manos[i] == null) manos[i] = new Manos();
+                manos[i].reiniciar();
+                estados[i] = Estado.TURNO_JUGADOR;
+                jugaron[i] = false;
+                // Sin saldo suficiente apuesta lo que le queda (o nada)
+                long monto = Math.min(apuestas[i], cuentas[i].saldo());
+                apostado[i] = base[i] = cuentas[i].apostar(monto) ? monto : 0;
+            }
+            // Dos vueltas, como en la mesa: una carta a cada asiento y luego al dealer
+            for (int vuelta = 0; vuelta < 2; vuelta++) {
+                for (int i = 0; i < MAX_ASIENTOS; i++) {
+                    if (estados[i] == Estado.TURNO_JUGADOR) manos[i].agregar(registro.carta(i, deck.deal()).getCode());
                 }
-                System.out.println("\n0. Refrescar");
-                System.out.println("q. Volver al menú");
-                System.out.print("Selecciona una opción: ");
-                String seleccion = in.nextLine().trim();
-                
-                if (seleccion.equals("q")) {
-                    return;
-                } else if (seleccion.equals("0")) {
-                    continue;
-                } else {
-                    try {
-                        int index = Integer.parseInt(seleccion) - 1;
-                        if (index >= 0 && index < listaJugadores.size()) {
-                            String ip = listaJugadores.get(index);
-                            conectarAPartida(ip);
-                            return;
-                        }
-                    } catch (NumberFormatException e) {
-                        System.out.println("Opción no válida.");
-                    }
+                dealer.add(registro.carta(Historial.DEALER, deck.deal()));
+            }
+            byte[] huella = deck.semilla().huella();
+            // Con blackjack del dealer nadie juega; con uno propio, ese asiento no juega. Solo
+            // quien negoció MESA: un cliente de texto simple juega su turno como siempre
+            boolean dealerNatural = Pagos.esNatural(dealer.getEstado());
+            boolean alguienTermino = false;
+            for (int i = 0; i < MAX_ASIENTOS; i++) {
+                if (estados[i] != Estado.TURNO_JUGADOR) continue;
+                // Lo que se compromete es el orden de todo el shoe, fijado antes de esta ronda
+                if (conexiones[i].isJusta()) enviar(i, saliente.deTipo(Mensaje.COMPROMISO).conHuella(huella, deck.inicioRonda()));
+                enviar(i, saliente.deTipo(Mensaje.CARTAS).conMano(manos[i], 0));
+                mostrar(i, 0);
+                if (conexiones[i].isMesa() && (dealerNatural || Pagos.esNatural(manos[i].estado(0)))) {
+                    terminarAlRepartir(i, dealerNatural);
+                    alguienTermino = true;
                 }
             }
-            
-            System.out.print("\nPresiona Enter para refrescar (o 'q' para salir): ");
-            String cmd = in.nextLine().trim();
-            if (cmd.equals("q")) return;
+            Metricas.REPARTO.desde(inicio);
+            for (int i = 0; i < MAX_ASIENTOS; i++) {
+                Mensaje pendiente = jugadasPendientes[i];
+                if (pendiente != null && pendiente.tipo == Mensaje.JUGADA && estados[i] == Estado.TURNO_JUGADOR) {
+                    jugaron[i] = true;
+                    jugar(i, pendiente);
+                    pendiente.deTipo(Mensaje.DESCONOCIDO);
+                }
+            }
+            if (alguienTermino) intentarTerminar(); // Con blackjack del dealer se liquida ya
         }
-    }
-    
-    static void conectarAPartida(String ip) {
-        try {
-            System.out.println("Conectando a " + ip + "...");
-            Socket socket = new Socket(ip, PUERTO_JUEGO);
-            System.out.println("¡Conectado!");
-            
-            jugarMultiplayer(null, socket, false);
-        } catch (Exception e) {
-            System.out.println("Error al conectar: " + e.getMessage());
+
+        /**
+         * El reparto cierra el turno del asiento: tiene blackjack, o lo tiene el
+         * dealer. No espera jugada; una JUGADA ya enviada recibe su LOTE sin
+         * cartas. Sin LOTE se espera el TOTAL del cliente, salvo que el dealer
+         * tenga blackjack: entonces la ronda se liquida sin esperar a nadie.
+         */
+        private void terminarAlRepartir(int asiento, boolean dealerNatural) {
+            Manos m = manos[asiento];
+            m.plantarse();
+            Mensaje pendiente = jugadasPendientes[asiento];
+            if (pendiente != null && pendiente.tipo == Mensaje.JUGADA) {
+                secuencias[asiento] = pendiente.secuencia;
+                lote.deTipo(Mensaje.LOTE).enSecuencia(pendiente.secuencia).enMano(0);
+                enviar(asiento, lote.conTotal(m.total(0), false).terminado(true));
+                pendiente.deTipo(Mensaje.DESCONOCIDO);
+            }
+            estados[asiento] = dealerNatural || conexiones[asiento].isLote() ? Estado.LISTO : Estado.ESPERANDO_TOTAL;
         }
-    }
-    
-    static void jugarMultiplayer(ServerSocket servidor, Socket socket, boolean esServidor) {
-        try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            Scanner scanner = new Scanner(System.in);
-            
-            boolean continuarJugando = true;
-            
-            while (continuarJugando) {
-                if (esServidor) {
-                    // El servidor maneja la baraja
-                    Deck deck = new Deck();
-                    deck.shuffle();
-                    
-                    // Crear manos
-                    Hand manoServidor = new Hand();
-                    Hand manoCliente = new Hand();
-                    
-                    // Repartir cartas
-                    manoServidor.add(deck.deal());
-                    manoCliente.add(deck.deal());
-                    manoServidor.add(deck.deal());
-                    manoCliente.add(deck.deal());
-                    
-                    // Enviar cartas al cliente
-                    out.println("CARTAS:" + serializarMano(manoCliente));
-                    
-                    System.out.println("\n=== Nueva Partida ===");
-                    System.out.println("Tu mano: " + manoServidor);
-                    System.out.println("Esperando al oponente...");
-                    
-                    // Turno del cliente - manejar HIT/STAND
-                    boolean clienteBust = false;
-                    int totalCliente = 0;
-                    
-                    while (true) {
-                        String mensajeCliente = in.readLine();
-                        if (mensajeCliente == null || mensajeCliente.equals("QUIT")) {
-                            System.out.println("\nEl oponente abandonó la partida.");
-                            return;
-                        }
-                        
-                        if (mensajeCliente.equals("HIT")) {
-                            // Cliente pide carta
-                            Card nuevaCarta = deck.deal();
-                            manoCliente.add(nuevaCarta);
-                            out.println("CARTA:" + nuevaCarta.serialize());
-                            
-                            // Verificar si se pasó
-                            if (manoCliente.isBust()) {
-                                clienteBust = true;
-                                totalCliente = manoCliente.bestBlackjackTotal();
-                                break;
-                            }
-                        } else if (mensajeCliente.equals("STAND")) {
-                            // Cliente se planta
-                            totalCliente = manoCliente.bestBlackjackTotal();
-                            break;
-                        }
-                    }
-                    
-                    // Turno del servidor
-                    System.out.println("\nTu turno:");
-                    System.out.println("Tu mano: " + manoServidor);
-                    
-                    boolean servidorBust = false;
-                    while (true) {
-                        if (manoServidor.isBust()) {
-                            System.out.println("Te pasaste de " + BLACKJACK_TARGET + ".");
-                            servidorBust = true;
-                            break;
-                        }
-                        System.out.print("¿HIT (h) o STAND (s) o QUIT (q)? ");
-                        String ans = scanner.nextLine().trim().toLowerCase();
-                        
-                        if (ans.equals("q")) {
-                            out.println("QUIT");
-                            System.out.println("Abandonaste la partida.");
-                            return;
-                        } else if (ans.startsWith("h")) {
-                            manoServidor.add(deck.deal());
-                            System.out.println("Tu mano: " + manoServidor);
-                        } else if (ans.startsWith("s")) {
-                            break;
-                        }
+
+        /**
+         * Salió la carta de corte y ya no se reparte de ese shoe: se revela su
+         * semilla a los asientos que la pidieron, para que comprueben sus cartas.
+         */
+        private void revelar(Semilla semilla, int repartidas) {
+            for (int i = 0; i < MAX_ASIENTOS; i++) {
+                if (conexiones[i] != null && conexiones[i].isJusta()) {
+                    enviar(i, saliente.deTipo(Mensaje.SEMILLA).conSemilla(semilla, repartidas));
+                }
+            }
+        }
+
+        /** Tras cambiar de protocolo el cliente necesita otra vez su mano */
+        void reenviarMano(Conexion conexion) {
+            int asiento = conexion.getAsiento();
+            if (estados[asiento] != Estado.TURNO_JUGADOR) return;
+            if (conexion.isJusta()) {
+                enviar(asiento, saliente.deTipo(Mensaje.COMPROMISO).conHuella(deck.semilla().huella(), deck.inicioRonda()));
+            }
+            for (int i = 0; i < manos[asiento].cantidad(); i++) {
+                enviar(asiento, saliente.deTipo(Mensaje.CARTAS).conMano(manos[asiento], i));
+            }
+        }
+
+        /** Avanza el asiento de la conexión según el mensaje recibido */
+        void procesar(Conexion conexion, Mensaje mensaje) {
+            int asiento = conexion.getAsiento();
+            if (mensaje.tipo == Mensaje.QUIT) {
+                olvidar(asiento);
+                conexion.cerrar();
+                return;
+            }
+            if (retomas[asiento] != null && Mensaje.esDeJuego(mensaje.tipo)) retomas[asiento].recibidos++;
+            if (mensaje.tipo == Mensaje.APUESTA) {
+                // Vale desde la próxima ronda; en una mesa emparejada queda la acordada
+                if (mensaje.monto > 0 && busqueda == null) apuestas[asiento] = mensaje.monto;
+                return;
+            }
+            switch (estados[asiento]) {
+                case TURNO_JUGADOR:
+                    jugaron[asiento] = true; // Ya contestó a sus cartas
+                    if (mensaje.tipo == Mensaje.HIT) {
+                        int mano = manos[asiento].activa();
+                        Card nuevaCarta = pedir(asiento);
+                        enviar(asiento, saliente.deTipo(Mensaje.CARTA).conCarta(nuevaCarta.getCode()).enMano(mano));
+                        seguirTurno(asiento);
+                    } else if (mensaje.tipo == Mensaje.STAND) {
+                        registro.stand(asiento);
+                        manos[asiento].plantarse();
+                        seguirTurno(asiento);
+                    } else if (mensaje.tipo == Mensaje.JUGADA) {
+                        jugar(asiento, mensaje);
+                    } else if (mensaje.tipo == Mensaje.DOBLAR || mensaje.tipo == Mensaje.DIVIDIR
+                            || mensaje.tipo == Mensaje.RENDIRSE) {
+                        decidir(asiento, mensaje.tipo);
                     }
-                    
-                    // Esperar y leer el resultado del cliente
-                    String mensajeTotalCliente = in.readLine();
-                    if (mensajeTotalCliente == null || mensajeTotalCliente.equals("QUIT")) {
-                        System.out.println("\nEl oponente abandonó.");
-                        return;
+                    break;
+                case ESPERANDO_TOTAL:
+                    // El total del cliente es informativo: la mesa ya conoce sus manos y espera el de la última
+                    if (mensaje.tipo == Mensaje.TOTAL && mensaje.indiceMano >= manos[asiento].cantidad() - 1) {
+                        estados[asiento] = Estado.LISTO;
+                        intentarTerminar();
                     }
-                    
-                    // Enviar resultado
-                    int totalServidor = manoServidor.bestBlackjackTotal();
-                    if (servidorBust) {
-                        out.println("TOTAL:BUST:" + totalServidor);
-                    } else {
-                        out.println("TOTAL:" + totalServidor);
+                    break;
+                case ESPERANDO_REVANCHA:
+                    if (mensaje.tipo == Mensaje.QUIERO_JUGAR) {
+                        enviar(asiento, saliente.deTipo(Mensaje.QUIERO_JUGAR));
+                        estados[asiento] = Estado.ESPERANDO_RONDA;
+                        intentarIniciar();
+                    } else if (mensaje.tipo == Mensaje.NO_QUIERO_JUGAR) {
+                        olvidar(asiento);
+                        conexion.cerrar();
                     }
-                    
-                    // Determinar ganador
-                    System.out.println("\n=== Resultado ===");
-                    System.out.println("Tu total: " + totalServidor);
-                    System.out.println("Oponente: " + totalCliente);
-                    
-                    if (servidorBust && clienteBust) {
-                        System.out.println("Ambos se pasaron. Empate.");
-                    } else if (servidorBust) {
-                        System.out.println("Pierdes (te pasaste).");
-                    } else if (clienteBust) {
-                        System.out.println("¡Ganas! (oponente se pasó)");
-                    } else if (totalServidor > totalCliente) {
-                        System.out.println("¡Ganas!");
-                    } else if (totalServidor < totalCliente) {
-                        System.out.println("Pierdes.");
-                    } else {
-                        System.out.println("Empate.");
+                    break;
+                case ESPERANDO_RONDA:
+                    if (mensaje.tipo == Mensaje.JUGADA) {
+                        if (jugadasPendientes[asiento] == null) jugadasPendientes[asiento] = new Mensaje();
+                        jugadasPendientes[asiento].copiarJugada(mensaje);
                     }
-                    
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private Card pedir(int asiento) {
+            registro.hit(asiento);
+            return repartir(asiento);
+        }
+
+        /** Una carta para la mano activa del asiento */
+        private Card repartir(int asiento) {
+            Card nuevaCarta = registro.carta(asiento, deck.deal());
+            int mano = manos[asiento].activa();
+            manos[asiento].agregar(nuevaCarta.getCode());
+            mostrar(asiento, mano);
+            return nuevaCarta;
+        }
+
+        /**
+         * Tras cada jugada: la mano dividida que empieza recibe su segunda carta
+         * y, si no quedan manos, el turno del asiento termina.
+         */
+        private void seguirTurno(int asiento) {
+            Manos m = manos[asiento];
+            while (m.necesitaCarta()) {
+                int mano = m.activa();
+                enviar(asiento, saliente.deTipo(Mensaje.CARTA).conCarta(repartir(asiento).getCode()).enMano(mano));
+            }
+            if (!m.terminada()) return;
+            // Con LOTE no hace falta esperar el TOTAL del cliente
+            estados[asiento] = conexiones[asiento].isLote() ? Estado.LISTO : Estado.ESPERANDO_TOTAL;
+            if (estados[asiento] == Estado.LISTO) intentarTerminar();
+        }
+
+        /**
+         * DOUBLE, SPLIT o SURRENDER sobre la mano activa. Doblar y dividir ponen
+         * otra apuesta igual a la de la mano; sin saldo, o si la mano no lo
+         * admite, la respuesta es NO y el turno sigue igual.
+         */
+        private void decidir(int asiento, byte tipo) {
+            Manos m = manos[asiento];
+            int mano = m.activa();
+            int requiere = tipo == Mensaje.DOBLAR ? Manos.PUEDE_DOBLAR
+                : tipo == Mensaje.DIVIDIR ? Manos.PUEDE_DIVIDIR : Manos.PUEDE_RENDIRSE;
+            boolean pagaOtra = tipo != Mensaje.RENDIRSE;
+            if (!m.puede(requiere) || (pagaOtra && !cuentas[asiento].apostar(base[asiento]))) {
+                enviar(asiento, saliente.deTipo(tipo).enMano(-1));
+                return;
+            }
+            if (pagaOtra) apostado[asiento] += base[asiento];
+            enviar(asiento, saliente.deTipo(tipo).enMano(mano));
+            if (tipo == Mensaje.DOBLAR) {
+                registro.doblar(asiento);
+                m.doblar();
+                enviar(asiento, saliente.deTipo(Mensaje.CARTA).conCarta(repartir(asiento).getCode()).enMano(mano));
+            } else if (tipo == Mensaje.DIVIDIR) {
+                registro.dividir(asiento);
+                m.dividir();
+                mostrar(asiento, mano);
+                mostrar(asiento, m.cantidad() - 1);
+            } else {
+                registro.rendirse(asiento);
+                m.rendirse();
+            }
+            seguirTurno(asiento);
+        }
+
+        /**
+         * Aplica una JUGADA a la mano activa: primero las acciones en cola,
+         * después la política de umbral. Las cartas van todas en un LOTE con la
+         * misma secuencia; una secuencia ya aplicada (reenvío) se ignora. La
+         * jugada termina con la mano: si quedan otras, el LOTE lo dice (MANO) y
+         * el cliente manda otra JUGADA para la siguiente.
+         */
+        private void jugar(int asiento, Mensaje jugada) {
+            if (jugada.secuencia <= secuencias[asiento]) return;
+            secuencias[asiento] = jugada.secuencia;
+            Manos m = manos[asiento];
+            int mano = m.activa();
+            lote.deTipo(Mensaje.LOTE).enSecuencia(jugada.secuencia).enMano(mano);
+            boolean finMano = false;
+            for (int i = 0; i < jugada.numAcciones && !finMano; i++) {
+                if (jugada.acciones[i] == Mensaje.HIT) {
+                    lote.conCarta(pedir(asiento).getCode());
+                    finMano = m.activa() != mano;
                 } else {
-                    // Cliente
-                    System.out.println("\n=== Nueva Partida ===");
-                    
-                    // Recibir cartas
-                    String cartasMsg = in.readLine();
-                    if (cartasMsg == null || cartasMsg.equals("QUIT")) {
-                        System.out.println("\nEl oponente abandonó la partida.");
-                        break;
-                    }
-                    
-                    Hand manoCliente = deserializarMano(cartasMsg.split(":")[1]);
-                    
-                    System.out.println("Tu mano: " + manoCliente);
-                    
-                    // Turno del cliente
-                    boolean clienteBust = false;
-                    while (true) {
-                        if (manoCliente.isBust()) {
-                            System.out.println("Te pasaste de " + BLACKJACK_TARGET + ".");
-                            clienteBust = true;
-                            break;
-                        }
-                        System.out.print("¿HIT (h) o STAND (s) o QUIT (q)? ");
-                        String ans = scanner.nextLine().trim().toLowerCase();
-                        
-                        if (ans.equals("q")) {
-                            out.println("QUIT");
-                            System.out.println("Abandonaste la partida.");
-                            return;
-                        } else if (ans.startsWith("h")) {
-                            // Solicitar carta al servidor
-                            out.println("HIT");
-                            String respuesta = in.readLine();
-                            if (respuesta == null || respuesta.equals("QUIT")) {
-                                System.out.println("\nEl oponente abandonó.");
-                                return;
-                            }
-                            if (respuesta.startsWith("CARTA:")) {
-                                Card c = Card.deserialize(respuesta.split(":", 2)[1]);
-                                manoCliente.add(c);
-                                System.out.println("Tu mano: " + manoCliente);
-                            }
-                        } else if (ans.startsWith("s")) {
-                            out.println("STAND");
-                            break;
-                        }
-                    }
-                    
-                    // Enviar resultado
-                    int totalCliente = manoCliente.bestBlackjackTotal();
-                    if (clienteBust) {
-                        out.println("TOTAL:BUST:" + totalCliente);
-                    } else {
-                        out.println("TOTAL:" + totalCliente);
-                    }
-                    
-                    System.out.println("\nEsperando al oponente...");
-                    
-                    // Recibir resultado del servidor
-                    String resultadoServidor = in.readLine();
-                    if (resultadoServidor == null || resultadoServidor.equals("QUIT")) {
-                        System.out.println("\nEl oponente abandonó.");
-                        break;
-                    }
-                    
-                    boolean servidorBust = resultadoServidor.contains("BUST");
-                    String[] partes = resultadoServidor.split(":");
-                    int totalServidor = Integer.parseInt(partes[partes.length - 1]);
-                    
-                    // Determinar ganador
-                    System.out.println("\n=== Resultado ===");
-                    System.out.println("Tu total: " + totalCliente);
-                    System.out.println("Oponente: " + totalServidor);
-                    
-                    if (servidorBust && clienteBust) {
-                        System.out.println("Ambos se pasaron. Empate.");
-                    } else if (clienteBust) {
-                        System.out.println("Pierdes (te pasaste).");
-                    } else if (servidorBust) {
-                        System.out.println("¡Ganas! (oponente se pasó)");
-                    } else if (totalCliente > totalServidor) {
-                        System.out.println("¡Ganas!");
-                    } else if (totalCliente < totalServidor) {
-                        System.out.println("Pierdes.");
-                    } else {
-                        System.out.println("Empate.");
-                    }
+                    registro.stand(asiento);
+                    m.plantarse();
+                    finMano = true;
                 }
-                
-                // Ambos preguntan independientemente
-                System.out.print("\n¿Jugar otra vez? (s/n): ");
-                String respuesta = scanner.nextLine().trim().toLowerCase();
-                boolean yoQuiero = respuesta.startsWith("s");
-                
-                if (yoQuiero) {
-                    // Yo quiero jugar - envío mi decisión y espero al oponente
-                    out.println("QUIERO_JUGAR");
-                    System.out.println("Esperando al oponente...");
-                    
-                    String respuestaOponente = in.readLine();
-                    
-                    if (respuestaOponente == null) {
-                        System.out.println("Error: Conexión perdida.");
-                        continuarJugando = false;
-                    } else if (respuestaOponente.equals("NO_QUIERO_JUGAR")) {
-                        System.out.println("El oponente no quiere jugar otra vez.");
-                        continuarJugando = false;
-                    } else if (respuestaOponente.equals("QUIERO_JUGAR")) {
-                        System.out.println("¡Ambos quieren jugar! Nueva partida...");
-                        continuarJugando = true;
-                    } else {
-                        System.out.println("Error: Mensaje inesperado del oponente: " + respuestaOponente);
-                        continuarJugando = false;
-                    }
-                } else {
-                    // Yo NO quiero jugar - envío mi decisión y salgo inmediatamente
-                    out.println("NO_QUIERO_JUGAR");
-                    System.out.println("Has decidido no jugar más.");
-                    continuarJugando = false;
-                    // NO esperar respuesta del oponente - salir inmediatamente
+            }
+            if (!finMano && jugada.umbral > 0) {
+                // Una mano que se pasa o termina sola (As dividido) deja el turno: no se le pide más
+                while (m.activa() == mano && m.total(mano) < jugada.umbral) lote.conCarta(pedir(asiento).getCode());
+                if (m.activa() == mano) {
+                    registro.stand(asiento);
+                    m.plantarse();
                 }
+                finMano = true;
             }
-            
-            socket.close();
-            if (servidor != null) servidor.close();
-            
-        } catch (Exception e) {
-            System.out.println("Error durante el juego: " + e.getMessage());
+            lote.conTotal(m.total(mano), m.sePaso(mano)).terminado(m.terminada());
+            lote.finMano = finMano && !m.terminada();
+            enviar(asiento, lote);
+            seguirTurno(asiento);
         }
-    }
-    
-    static String serializarMano(Hand mano) {
-        StringBuilder sb = new StringBuilder();
-        for (Card c : mano.getCards()) {
-            sb.append(c.serialize()).append(";");
+
+        /** Cuando ningún asiento sigue jugando le toca al dealer */
+        private void intentarTerminar() {
+            for (int i = 0; i < MAX_ASIENTOS; i++) {
+                if (estados[i] == Estado.TURNO_JUGADOR || estados[i] == Estado.ESPERANDO_TOTAL) return;
+            }
+            jugarDealer();
+            intentarIniciar();
         }
-        return sb.toString();
-    }
-    
-    static Hand deserializarMano(String data) {
-        Hand mano = new Hand();
-        String[] cartas = data.split(";");
-        for (String carta : cartas) {
-            if (!carta.isEmpty()) {
-                mano.add(Card.deserialize(carta));
+
+        /**
+         * La casa roba hasta DEALER_STAND_VALUE, salvo que todos se hayan pasado.
+         * Los que pidieron MESA reciben un solo RESULTADOS con toda la mesa; el
+         * resto, el TOTAL del dealer como siempre.
+         */
+        private void jugarDealer() {
+            boolean alguienEnPie = false;
+            for (int i = 0; i < MAX_ASIENTOS; i++) {
+                if (estados[i] == Estado.LISTO && manos[i].algunaEnPie()) alguienEnPie = true;
+            }
+            if (alguienEnPie) {
+                while (dealer.bestBlackjackTotal() < DEALER_STAND_VALUE) {
+                    dealer.add(registro.carta(Historial.DEALER, deck.deal()));
+                }
             }
+            int totalDealer = dealer.bestBlackjackTotal();
+            resultados.deTipo(Mensaje.RESULTADOS).conMano(dealer).conTotal(totalDealer, dealer.isBust());
+            // El natural del dealer se cobra al repartir, antes de que nadie juegue: solo se pierde la
+            // apuesta original (y lo puesto al doblar o dividir, si lo hubiera, se devuelve)
+            boolean dealerNatural = Pagos.esNatural(dealer.getEstado());
+            long[] netos = new long[MAX_ASIENTOS];
+            for (int i = 0; i < MAX_ASIENTOS; i++) {
+                if (estados[i] != Estado.LISTO) continue;
+                Manos m = manos[i];
+                for (int mano = 0; mano < m.cantidad(); mano++) {
+                    int resultado = m.resultado(mano, dealer.getEstado());
+                    if (dealerNatural && resultado == Pagos.RENDIDA) resultado = Pagos.PIERDE;
+                    registro.resultado(i, resultado, m.total(mano));
+                    resultados.conResultado(i, m.total(mano), Integer.signum(resultado));
+                    if (!dealerNatural) netos[i] += Pagos.neto(resultado, base[i] * m.unidades(mano));
+                    else if (mano == 0) netos[i] = Pagos.neto(resultado, base[i]);
+                }
+                liquidacion.pagar(cuentas[i], apostado[i], netos[i]);
+                apostado[i] = 0;
+            }
+            Libro.global().liquidar(liquidacion); // Un solo paso por ronda para toda la mesa
+            // La ronda termina antes de difundir: si el RESULTADOS desborda a un espectador, su foto lo trae
+            enRonda = false;
+            if (!difusion.vacia()) difusion.publicar(resultados);
+            long plazo = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ESPERA_REVANCHA);
+            for (int i = 0; i < MAX_ASIENTOS; i++) {
+                if (estados[i] != Estado.LISTO) continue;
+                estados[i] = Estado.ESPERANDO_REVANCHA;
+                revanchas[i] = plazo;
+                if (conexiones[i].isMesa()) enviar(i, resultados);
+                else enviar(i, saliente.deTipo(Mensaje.TOTAL).conTotal(totalDealer, dealer.isBust()));
+                if (conexiones[i].isApuestas()) enviarSaldo(conexiones[i], netos[i]);
+            }
+        }
+    }
+
+    static void iniciarServidorMesas(Consola in) {
+        NetworkDiscovery discovery = null;
+        ServidorMesas servidor = null;
+        try {
+            servidor = new ServidorMesas(PUERTO_JUEGO);
+            servidor.start();
+            Metricas.exponer();
+
+            // Anunciarse en la red (con soporte binario) para que los clientes encuentren el servidor
+            final ServidorMesas mesas = servidor;
+            discovery = new NetworkDiscovery("BIN", mesas::getMesasActivas, mesas::getLugaresLibres);
+            discovery.start();
+            System.out.println("\nServidor de mesas escuchando en el puerto " + PUERTO_JUEGO + ".");
+            System.out.println("Presiona Enter para detenerlo.");
+            in.leerLinea();
+            System.out.println("Mesas activas al detener: " + servidor.getMesasActivas()
+                + " (" + servidor.getJugadores() + " jugadores)");
+        } catch (Exception e) {
+            System.out.println("Error al iniciar el servidor: " + e.getMessage());
+        } finally {
+            if (servidor != null) servidor.detener();
+            if (discovery != null) discovery.detener();
         }
-        return mano;
     }
 
     /** ----- Menú Principal ----- */
     public static void main(String[] args) {
-        Scanner in = new Scanner(System.in);
+        Salida.instalar();
+        Consola in = Consola.global();
         
         while (true) {
             System.out.println("\n╔════════════════════════════════╗");
@@ -705,21 +7135,32 @@ public class BlackJack {
             System.out.println("╚════════════════════════════════╝");
             System.out.println("1. Singleplayer (vs Casa)");
             System.out.println("2. Multiplayer (vs Jugador)");
-            System.out.println("3. Salir");
+            System.out.println("3. Simulación (Monte Carlo)");
+            System.out.println("4. Consejero de estrategia: " + (consejero ? "activado" : "desactivado"));
+            System.out.println("5. Historial de partidas");
+            System.out.println("6. Salir");
             System.out.print("\nSelecciona una opción: ");
             
-            String opcion = in.nextLine().trim();
+            String opcion = in.leerLinea().trim();
             
             switch (opcion) {
                 case "1":
                     jugarSingleplayer();
                     break;
                 case "2":
-                    modoMultiplayer();
+                    modoMultiplayer(in);
                     break;
                 case "3":
+                    menuSimulacion(in);
+                    break;
+                case "4":
+                    alternarConsejero();
+                    break;
+                case "5":
+                    verHistorial(in);
+                    break;
+                case "6":
                     System.out.println("¡Hasta luego!");
-                    in.close();
                     return;
                 default:
                     System.out.println("Opción no válida.");
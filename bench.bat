@@ -0,0 +1,25 @@
+@echo off
+echo ============================================
+echo       BLACKJACK - Benchmarks JMH
+echo ============================================
+echo.
+
+cd benchmarks
+call mvn -B -q package
+
+if %ERRORLEVEL% EQU 0 (
+    echo.
+    echo Ejecutando benchmarks... resultados en benchmarks\jmh-result.json
+    echo ============================================
+    echo.
+    java -jar target\benchmarks.jar -rf json -rff jmh-result.json %*
+) else (
+    echo.
+    echo ERROR: No se pudieron compilar los benchmarks.
+    echo Se necesita Maven ^(mvn^) en el PATH y conexion a internet la primera vez.
+)
+
+cd ..
+echo.
+echo Presiona cualquier tecla para salir...
+pause > nul
@@ -0,0 +1,62 @@
+package blackjack;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Crear, barajar y repartir con Deck y Shoe */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeckBenchmark {
+
+    private Random rnd;
+    private BlackJack.Deck deck;
+    private BlackJack.Shoe shoe;
+    private BlackJack.Shoe shoeContado;
+
+    @Setup
+    public void preparar() {
+        rnd = new Random(42);
+        deck = new BlackJack.Deck();
+        deck.shuffle(rnd);
+        shoe = new BlackJack.Shoe(6, 0.75, new Random(42));
+        shoeContado = new BlackJack.Shoe(6, 0.75, new Random(42)).contar(new BlackJack.Conteo(0));
+    }
+
+    @Benchmark
+    public BlackJack.Deck construir() {
+        return new BlackJack.Deck();
+    }
+
+    @Benchmark
+    public BlackJack.Deck barajar() {
+        deck.shuffle(rnd);
+        return deck;
+    }
+
+    /** Repartir por la API de objetos; rebaraja al vaciarse (1 de cada 52 llamadas) */
+    @Benchmark
+    public BlackJack.Card repartir() {
+        if (deck.remaining() == 0) deck.shuffle(rnd);
+        return deck.deal();
+    }
+
+    /** Repartir del shoe como en una mesa: incluye el rebarajado al salir la carta de corte */
+    @Benchmark
+    public int repartirShoe() {
+        shoe.prepararRonda();
+        return shoe.dealCode();
+    }
+
+    /** Igual que repartirShoe pero con Hi-Lo, KO y Omega II al día: debería costar lo mismo */
+    @Benchmark
+    public int repartirShoeContando() {
+        shoeContado.prepararRonda();
+        return shoeContado.dealCode();
+    }
+}
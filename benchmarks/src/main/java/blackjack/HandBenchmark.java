@@ -0,0 +1,72 @@
+package blackjack;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Totales de una mano según su tamaño y cantidad de Ases */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandBenchmark {
+
+    @Param({"2", "4", "7"})
+    public int cartas;
+
+    @Param({"0", "1", "3"})
+    public int ases;
+
+    private int[] codigos;
+    private BlackJack.Hand mano;
+
+    @Setup
+    public void preparar() {
+        // Ases de los cuatro palos primero, el resto doses: nunca se pasa de 21
+        codigos = new int[cartas];
+        for (int i = 0; i < cartas; i++) {
+            codigos[i] = i < ases ? (i % 4) * 13 : (i % 4) * 13 + 1;
+        }
+        mano = construir();
+    }
+
+    @Benchmark
+    public int bestBlackjackTotal() {
+        return mano.bestBlackjackTotal();
+    }
+
+    @Benchmark
+    public boolean isBust() {
+        return mano.isBust();
+    }
+
+    /** Mano de objetos construida carta a carta, como en el juego interactivo */
+    @Benchmark
+    public BlackJack.Hand construir() {
+        BlackJack.Hand h = new BlackJack.Hand();
+        for (int code : codigos) h.add(BlackJack.Card.of(code));
+        return h;
+    }
+
+    /** El texto de la mano tras cada carta, como en cada HIT del juego interactivo */
+    @Benchmark
+    public String mostrar() {
+        BlackJack.Hand h = new BlackJack.Hand();
+        String texto = null;
+        for (int code : codigos) {
+            h.add(BlackJack.Card.of(code));
+            texto = h.toString();
+        }
+        return texto;
+    }
+
+    /** La misma mano empaquetada en un int, como en la simulación */
+    @Benchmark
+    public int construirCompacta() {
+        int h = BlackJack.ManoCompacta.VACIA;
+        for (int code : codigos) h = BlackJack.ManoCompacta.agregar(h, code);
+        return BlackJack.ManoCompacta.total(h);
+    }
+}
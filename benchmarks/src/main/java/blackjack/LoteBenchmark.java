@@ -0,0 +1,109 @@
+package blackjack;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Totales y resultados de muchas manos: en columnas contra mano por mano */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoteBenchmark {
+
+    @Param({"1024", "65536"})
+    public int manos;
+
+    private int[] compactas;
+    private int[] duros, ases, totales, pasados;
+    private int[] totalesRival, pasadosRival;
+    private int[] resultados;
+    // Contra el dealer: cartas y naturales de cada mano, y la mano del dealer de cada una
+    private int[] numCartas, naturales;
+    private int[] dealers, totalesDealer, pasadosDealer, naturalesDealer;
+
+    @Setup
+    public void preparar() {
+        Random rnd = new Random(42);
+        compactas = new int[manos];
+        duros = new int[manos];
+        ases = new int[manos];
+        totales = new int[manos];
+        pasados = new int[manos];
+        totalesRival = new int[manos];
+        pasadosRival = new int[manos];
+        resultados = new int[manos];
+        numCartas = new int[manos];
+        naturales = new int[manos];
+        dealers = new int[manos];
+        totalesDealer = new int[manos];
+        pasadosDealer = new int[manos];
+        naturalesDealer = new int[manos];
+        for (int i = 0; i < manos; i++) {
+            int h = BlackJack.ManoCompacta.VACIA;
+            int cartas = 2 + rnd.nextInt(4);
+            for (int j = 0; j < cartas && !BlackJack.ManoCompacta.sePaso(h); j++) {
+                h = BlackJack.ManoCompacta.agregar(h, rnd.nextInt(52));
+            }
+            compactas[i] = h;
+            duros[i] = BlackJack.ManoCompacta.duro(h);
+            ases[i] = BlackJack.ManoCompacta.ases(h);
+            totalesRival[i] = 17 + rnd.nextInt(6);
+            pasadosRival[i] = totalesRival[i] > 21 ? 1 : 0;
+            numCartas[i] = BlackJack.ManoCompacta.cartas(h);
+            int d = BlackJack.ManoCompacta.VACIA;
+            while (BlackJack.ManoCompacta.total(d) < 17) d = BlackJack.ManoCompacta.agregar(d, rnd.nextInt(52));
+            dealers[i] = d;
+            totalesDealer[i] = BlackJack.ManoCompacta.total(d);
+            pasadosDealer[i] = BlackJack.ManoCompacta.sePaso(d) ? 1 : 0;
+            naturalesDealer[i] = BlackJack.Pagos.esNatural(d) ? 1 : 0;
+        }
+    }
+
+    @Benchmark
+    public int[] lote() {
+        BlackJack.TotalesLote.totales(duros, ases, totales, manos);
+        BlackJack.TotalesLote.pasados(duros, pasados, manos);
+        BlackJack.TotalesLote.resultados(totales, pasados, totalesRival, pasadosRival, resultados, manos);
+        return resultados;
+    }
+
+    /** Liquidación de mesa en columnas: totales, naturales y resultado contra el dealer */
+    @Benchmark
+    public int[] loteDealer() {
+        BlackJack.TotalesLote.totales(duros, ases, totales, manos);
+        BlackJack.TotalesLote.pasados(duros, pasados, manos);
+        BlackJack.TotalesLote.naturales(numCartas, totales, naturales, manos);
+        BlackJack.TotalesLote.contraDealer(totales, pasados, naturales, totalesDealer, pasadosDealer, naturalesDealer,
+            resultados, manos);
+        return resultados;
+    }
+
+    /** La misma liquidación con Pagos.resultado, una mano empaquetada a la vez */
+    @Benchmark
+    public int[] dealerManoPorMano() {
+        for (int i = 0; i < manos; i++) resultados[i] = BlackJack.Pagos.resultado(compactas[i], dealers[i]);
+        return resultados;
+    }
+
+    /** La cadena de if/else del duelo, una mano empaquetada a la vez */
+    @Benchmark
+    public int[] manoPorMano() {
+        for (int i = 0; i < manos; i++) {
+            int h = compactas[i];
+            boolean pasado = BlackJack.ManoCompacta.sePaso(h);
+            boolean rivalPasado = pasadosRival[i] != 0;
+            int total = BlackJack.ManoCompacta.total(h);
+            int r;
+            if (pasado && rivalPasado) r = 0;
+            else if (pasado) r = -1;
+            else if (rivalPasado) r = 1;
+            else r = Integer.compare(total, totalesRival[i]);
+            resultados[i] = r;
+        }
+        return resultados;
+    }
+}
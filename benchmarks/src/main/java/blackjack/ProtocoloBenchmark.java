@@ -0,0 +1,78 @@
+package blackjack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Codificar y decodificar manos (CARTAS) y cartas sueltas (CARTA) en cada protocolo */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocoloBenchmark {
+
+    @Param({"texto", "binario"})
+    public String formato;
+
+    @Param({"2", "5"})
+    public int cartas;
+
+    private BlackJack.Protocolo protocolo;
+    private final BlackJack.Mensaje mano = new BlackJack.Mensaje();
+    private final BlackJack.Mensaje carta = new BlackJack.Mensaje();
+    private final BlackJack.Mensaje recibido = new BlackJack.Mensaje();
+    private final ByteBuffer salida = ByteBuffer.allocate(1024);
+    private ByteBuffer manoCodificada;
+    private ByteBuffer cartaCodificada;
+
+    @Setup
+    public void preparar() {
+        protocolo = formato.equals("texto")
+            ? BlackJack.ProtocoloTexto.INSTANCIA
+            : BlackJack.ProtocoloBinario.INSTANCIA;
+        mano.deTipo(BlackJack.Mensaje.CARTAS);
+        for (int i = 0; i < cartas; i++) mano.conCarta(i * 11 % 52);
+        carta.deTipo(BlackJack.Mensaje.CARTA).conCarta(51);
+        manoCodificada = codificar(mano);
+        cartaCodificada = codificar(carta);
+    }
+
+    private ByteBuffer codificar(BlackJack.Mensaje m) {
+        ByteBuffer b = ByteBuffer.allocate(1024);
+        protocolo.escribir(m, b);
+        b.flip();
+        return b;
+    }
+
+    @Benchmark
+    public int codificarMano() {
+        salida.clear();
+        protocolo.escribir(mano, salida);
+        return salida.position();
+    }
+
+    @Benchmark
+    public int decodificarMano() throws IOException {
+        manoCodificada.rewind();
+        protocolo.leer(manoCodificada, recibido);
+        return recibido.numCartas;
+    }
+
+    @Benchmark
+    public int codificarCarta() {
+        salida.clear();
+        protocolo.escribir(carta, salida);
+        return salida.position();
+    }
+
+    @Benchmark
+    public int decodificarCarta() throws IOException {
+        cartaCodificada.rewind();
+        protocolo.leer(cartaCodificada, recibido);
+        return recibido.carta(0);
+    }
+}
@@ -0,0 +1,39 @@
+package blackjack;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Una ronda simulada completa: reparto, jugador, dealer y decisión */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RondaBenchmark {
+
+    @Param({"12", "17"})
+    public int umbralJugador;
+
+    @Param({"SHOE", "INFINITO", "COMPOSICION"})
+    public String mazo;
+
+    private BlackJack.FuenteCartas fuente;
+    private BlackJack.PoliticaJugador politica;
+    private BlackJack.Manos manos;
+
+    @Setup
+    public void preparar() {
+        fuente = BlackJack.Simulador.Mazo.valueOf(mazo).crear(new SplittableRandom(42), new BlackJack.Conteo(0));
+        politica = BlackJack.Politicas.umbral(umbralJugador);
+        manos = new BlackJack.Manos();
+    }
+
+    @Benchmark
+    public int ronda() {
+        fuente.prepararRonda();
+        return BlackJack.Simulador.jugarRonda(fuente, politica, manos);
+    }
+}